@@ -0,0 +1,276 @@
+package ru.raiv.syncblestack;
+
+import java.util.UUID;
+
+/**
+ * Flyweight view over a raw advertisement record. AD structures are walked in place, nothing is
+ * copied until a getter has to return an object (UUID, String, byte[]). One instance can be
+ * re-wrapped for every scan result.
+ *
+ * Structure positions returned by {@link #first()}, {@link #next(int)} and {@link #find(int)}
+ * point at the length byte, -1 means none.
+ */
+
+public class BleAdvertisement {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16 = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32 = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128 = 0x07;
+    public static final int TYPE_SHORT_NAME = 0x08;
+    public static final int TYPE_LOCAL_NAME = 0x09;
+    public static final int TYPE_TX_POWER = 0x0A;
+    public static final int TYPE_SERVICE_DATA16 = 0x16;
+    public static final int TYPE_SERVICE_DATA32 = 0x20;
+    public static final int TYPE_SERVICE_DATA128 = 0x21;
+    public static final int TYPE_MANUFACTURER_DATA = 0xFF;
+
+    public static final int NO_TX_POWER = Integer.MIN_VALUE;
+
+    // Bluetooth base UUID 00000000-0000-1000-8000-00805F9B34FB
+    private static final long BASE_MSB = 0x0000000000001000L;
+    private static final long BASE_LSB = 0x800000805F9B34FBL;
+
+    private byte[] record = null;
+    private int limit = 0;
+
+    public BleAdvertisement() {
+    }
+
+    public BleAdvertisement(byte[] record) {
+        wrap(record);
+    }
+
+    /**
+     * Points the view at another record, the array is not copied.
+     */
+    public BleAdvertisement wrap(byte[] record) {
+        this.record = record;
+        this.limit = record != null ? record.length : 0;
+        return this;
+    }
+
+    public byte[] getRecord() {
+        return record;
+    }
+
+    public int first() {
+        return valid(0) ? 0 : -1;
+    }
+
+    public int next(int position) {
+        int next = position + 1 + (record[position] & 0xFF);
+        return valid(next) ? next : -1;
+    }
+
+    // length 0 terminates the significant part, legacy records are zero padded
+    private boolean valid(int position) {
+        if(position >= limit){
+            return false;
+        }
+        int length = record[position] & 0xFF;
+        return length > 0 && position + length < limit;
+    }
+
+    public int type(int position) {
+        return record[position + 1] & 0xFF;
+    }
+
+    public int dataOffset(int position) {
+        return position + 2;
+    }
+
+    public int dataLength(int position) {
+        return (record[position] & 0xFF) - 1;
+    }
+
+    public int find(int type) {
+        for(int position = first(); position >= 0; position = next(position)){
+            if(type(position) == type){
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return advertising flags, -1 if absent
+     */
+    public int getFlags() {
+        int position = find(TYPE_FLAGS);
+        return position >= 0 && dataLength(position) > 0 ? record[dataOffset(position)] & 0xFF : -1;
+    }
+
+    /**
+     * @return TX power level in dBm, {@link #NO_TX_POWER} if absent
+     */
+    public int getTxPower() {
+        int position = find(TYPE_TX_POWER);
+        return position >= 0 && dataLength(position) > 0 ? record[dataOffset(position)] : NO_TX_POWER;
+    }
+
+    /**
+     * @return complete local name, else shortened one, else null
+     */
+    public String getLocalName() {
+        int position = find(TYPE_LOCAL_NAME);
+        if(position < 0){
+            position = find(TYPE_SHORT_NAME);
+        }
+        if(position < 0){
+            return null;
+        }
+        try{
+            return new String(record, dataOffset(position), dataLength(position), "UTF-8");
+        }catch(java.io.UnsupportedEncodingException e){
+            return null;
+        }
+    }
+
+    public boolean hasServiceUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for(int position = first(); position >= 0; position = next(position)){
+            int width = uuidWidth(type(position));
+            if(width == 0){
+                continue;
+            }
+            int end = dataOffset(position) + dataLength(position);
+            for(int offset = dataOffset(position); offset + width <= end; offset += width){
+                if(uuidEquals(offset, width, msb, lsb)){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public int getServiceUuidCount() {
+        int count = 0;
+        for(int position = first(); position >= 0; position = next(position)){
+            int width = uuidWidth(type(position));
+            if(width != 0){
+                count += dataLength(position) / width;
+            }
+        }
+        return count;
+    }
+
+    public UUID getServiceUuid(int index) {
+        for(int position = first(); position >= 0; position = next(position)){
+            int width = uuidWidth(type(position));
+            if(width == 0){
+                continue;
+            }
+            int count = dataLength(position) / width;
+            if(index < count){
+                return readUuid(dataOffset(position) + index * width, width);
+            }
+            index -= count;
+        }
+        throw new IndexOutOfBoundsException("BleAdvertisement: no service uuid " + index + "!");
+    }
+
+    /**
+     * @return position of the manufacturer data structure for {@code manufacturerId}, -1 if absent.
+     * The payload after the company id starts at {@code dataOffset(position) + 2}.
+     */
+    public int findManufacturerData(int manufacturerId) {
+        for(int position = first(); position >= 0; position = next(position)){
+            if(type(position) == TYPE_MANUFACTURER_DATA && dataLength(position) >= 2
+                    && readLe(dataOffset(position), 2) == manufacturerId){
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return company id of the first manufacturer data structure, -1 if absent
+     */
+    public int getManufacturerId() {
+        int position = find(TYPE_MANUFACTURER_DATA);
+        return position >= 0 && dataLength(position) >= 2 ? (int) readLe(dataOffset(position), 2) : -1;
+    }
+
+    /**
+     * @return position of the service data structure for {@code uuid}, -1 if absent.
+     * The payload after the uuid starts at {@code dataOffset(position) + serviceDataUuidWidth(position)}.
+     */
+    public int findServiceData(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for(int position = first(); position >= 0; position = next(position)){
+            int width = serviceDataUuidWidth(position);
+            if(width != 0 && dataLength(position) >= width && uuidEquals(dataOffset(position), width, msb, lsb)){
+                return position;
+            }
+        }
+        return -1;
+    }
+
+    public int serviceDataUuidWidth(int position) {
+        switch(type(position)){
+            case TYPE_SERVICE_DATA16:
+                return 2;
+            case TYPE_SERVICE_DATA32:
+                return 4;
+            case TYPE_SERVICE_DATA128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Copies a structure payload, for callers that need to keep it.
+     */
+    public byte[] copyData(int position, int skip) {
+        int length = Math.max(0, dataLength(position) - skip);
+        byte[] result = new byte[length];
+        System.arraycopy(record, dataOffset(position) + skip, result, 0, length);
+        return result;
+    }
+
+    private static int uuidWidth(int type) {
+        switch(type){
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16:
+                return 2;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32:
+                return 4;
+            case TYPE_UUID128_INCOMPLETE:
+            case TYPE_UUID128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private boolean uuidEquals(int offset, int width, long msb, long lsb) {
+        if(width == 16){
+            return readLe(offset, 8) == lsb && readLe(offset + 8, 8) == msb;
+        }
+        return lsb == BASE_LSB && msb == ((readLe(offset, width) << 32) | BASE_MSB);
+    }
+
+    private UUID readUuid(int offset, int width) {
+        if(width == 16){
+            return new UUID(readLe(offset + 8, 8), readLe(offset, 8));
+        }
+        return new UUID((readLe(offset, width) << 32) | BASE_MSB, BASE_LSB);
+    }
+
+    // advertisement fields are little endian
+    private long readLe(int offset, int width) {
+        long result = 0;
+        for(int i = width - 1; i >= 0; i--){
+            result = (result << 8) | (record[offset + i] & 0xFF);
+        }
+        return result;
+    }
+}
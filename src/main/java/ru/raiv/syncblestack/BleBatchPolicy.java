@@ -0,0 +1,31 @@
+package ru.raiv.syncblestack;
+
+/**
+ * When a batching notification subscription hands collected samples to its listener:
+ * {@code maxDelay} after the first sample of a batch or as soon as {@code maxCount} samples
+ * arrived, whichever comes first. Zero disables a limit, at least one must be set.
+ */
+
+public class BleBatchPolicy {
+
+    private long maxDelay = 0;
+    private int maxCount = 0;
+
+    public BleBatchPolicy setMaxDelay(long millis) {
+        this.maxDelay = millis;
+        return this;
+    }
+
+    public BleBatchPolicy setMaxCount(int count) {
+        this.maxCount = count;
+        return this;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+}
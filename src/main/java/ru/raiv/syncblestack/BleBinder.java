@@ -2,7 +2,18 @@ package ru.raiv.syncblestack;
 
 import android.os.Binder;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
 import ru.raiv.syncblestack.tasks.BleTask;
+import ru.raiv.syncblestack.tasks.BleTaskFuture;
+import ru.raiv.syncblestack.tasks.BleTaskQueue;
+import ru.raiv.syncblestack.utils.BleTrace;
 
 /**
  * Created by Raiv on 03.03.2017.
@@ -10,12 +21,21 @@ import ru.raiv.syncblestack.tasks.BleTask;
 
 public final class BleBinder extends Binder {
     private BluetoothLeServiceSync owner;
+    private static final long DEFAULT_RING_BLOCK = 50;
     public BleBinder( BluetoothLeServiceSync owner){
         this.owner = owner;
     }
 
-    public void addTask(BleTask task){
-        owner.addTask(task);
+    /**
+     * Sync tasks block the caller until done, async ones return at once.
+     * @return handle to wait for, cancel or chain on the task
+     */
+    public BleTaskFuture addTask(BleDeviceInfo device,BleTask task){
+        return owner.addTask(device!=null?device.getAddress():null,task);
+    }
+
+    public BleTaskFuture addTask(String deviceAddress,BleTask task){
+        return owner.addTask(deviceAddress,task);
     }
 
     public void connectDevice(BleDeviceInfo device,boolean autoReconnect){
@@ -24,12 +44,252 @@ public final class BleBinder extends Binder {
             owner.connect(device.getAddress(),autoReconnect);
         }
     }
+    /**
+     * Makes devices connected with autoReconnect come back by themselves after a link loss,
+     * with exponential backoff and jitter. Null (default) leaves reconnecting to the app.
+     */
+    public void setReconnectPolicy(BleReconnectPolicy policy){
+        owner.setReconnectPolicy(policy);
+    }
+
+    /**
+     * Runs a copy of {@code template} on every target: connect, run, disconnect, retry on failure,
+     * keeping up to {@link BleFleetConfig#getMaxConcurrent()} devices in progress. Stops scanning.
+     * @param listener progress and results, called on the main thread
+     */
+    public BleFleetJob runFleetJob(BleTask template, Collection<BleDeviceInfo> targets, BleFleetConfig config, BleFleetListener listener){
+        owner.setScanning(false, false);
+        return owner.runFleetJob(template,targets,config!=null?config:new BleFleetConfig(),listener);
+    }
+
     public void disconnectDevice(BleDeviceInfo device){
         if(device!=null) {
             owner.disconnectDevice(device.getAddress());
         }
 
     }
+    /**
+     * Sets how tasks of different {@link ru.raiv.syncblestack.tasks.BleTaskPriority} share a connection.
+     * @see BleTaskQueue#configure(BleTaskQueue.Policy, int[], int)
+     */
+    public void setQueuePolicy(BleTaskQueue.Policy policy, int[] weights, int starvationLimit){
+        owner.setQueuePolicy(policy,weights,starvationLimit);
+    }
+
+    /**
+     * Sets how READ results of a characteristic are cached per device. Writes and notifications
+     * of the characteristic always drop the cached value.
+     * @param ttlMillis lifetime of a value, used by {@link BleCachePolicy#TTL} only
+     */
+    public void setCachePolicy(UUID service, UUID characteristic, BleCachePolicy policy, long ttlMillis){
+        owner.setCachePolicy(service,characteristic,policy,ttlMillis);
+    }
+
+    /**
+     * MTU requested after service discovery on API 21+. WRITE_NO_RESPONSE values longer than MTU-3
+     * bytes are sent as several packets, WRITE values as one long write the peripheral gets at once.
+     * 23 (default) skips the negotiation.
+     */
+    public void setTargetMtu(int mtu){
+        owner.setTargetMtu(mtu);
+    }
+
+    /**
+     * Joins notifications of the characteristic into one value: a packet that fills the whole MTU
+     * means more follow, a shorter (possibly empty) packet completes the value.
+     */
+    public void setNotificationReassembly(UUID service, UUID characteristic, boolean enable){
+        owner.setNotificationReassembly(service,characteristic,enable);
+    }
+
+    /**
+     * Enables automatic connection interval management on API 21+, null (default) disables it.
+     */
+    public void setConnectionPriorityPolicy(BleConnectionPriorityPolicy policy){
+        owner.setConnectionPriorityPolicy(policy);
+    }
+
+    /**
+     * Registers an in-process notification listener. Null filters match anything.
+     * @param executor where the listener runs, null runs it right on the GATT callback thread
+     */
+    public void addNotificationListener(BleNotificationListener listener, Executor executor,
+                                        BleDeviceInfo device, UUID service, UUID characteristic){
+        owner.addNotificationListener(listener,executor,device!=null?device.getAddress():null,service,characteristic);
+    }
+
+    public void addNotificationListener(BleNotificationListener listener, Executor executor){
+        owner.addNotificationListener(listener,executor,null,null,null);
+    }
+
+    public void removeNotificationListener(BleNotificationListener listener){
+        owner.removeNotificationListener(listener);
+    }
+
+    /**
+     * Registers an in-process listener that gets matching notifications in batches.
+     * @param executor where the listener runs, null runs it on the GATT callback or watchdog thread
+     */
+    public void addNotificationListener(BleNotificationBatchListener listener, Executor executor, BleBatchPolicy policy,
+                                        BleDeviceInfo device, UUID service, UUID characteristic){
+        owner.addNotificationListener(listener,executor,policy,device!=null?device.getAddress():null,service,characteristic);
+    }
+
+    /**
+     * Removes the listener, samples collected so far are delivered first.
+     */
+    public void removeNotificationListener(BleNotificationBatchListener listener){
+        owner.removeNotificationListener(listener);
+    }
+
+    /**
+     * Opens a preallocated ring that receives notifications matching the filters (null matches anything).
+     * @param capacity number of samples the ring holds
+     * @param slotSize max bytes kept per sample, longer values are truncated
+     * @param blockMillis how long {@link BleOverflowPolicy#BLOCK} may stall the GATT callback thread
+     */
+    public BleNotificationRing openNotificationRing(BleDeviceInfo device, UUID service, UUID characteristic,
+                                                    int capacity, int slotSize, BleOverflowPolicy policy, long blockMillis){
+        return owner.openNotificationRing(device!=null?device.getAddress():null,service,characteristic,
+                capacity,slotSize,policy,blockMillis);
+    }
+
+    public BleNotificationRing openNotificationRing(BleDeviceInfo device, UUID service, UUID characteristic,
+                                                    int capacity, int slotSize, BleOverflowPolicy policy){
+        return openNotificationRing(device,service,characteristic,capacity,slotSize,policy,DEFAULT_RING_BLOCK);
+    }
+
+    public void closeNotificationRing(BleNotificationRing ring){
+        owner.closeNotificationRing(ring);
+    }
+
+    /**
+     * Opens a {@link BleBlobTransfer} link to a connected device: packets go to {@code data} without response,
+     * commands are written to {@code control} and come back as its notifications.
+     */
+    public BleTransferTransport openTransferTransport(BleDeviceInfo device, UUID service, UUID data, UUID control){
+        return owner.openTransferTransport(device!=null?device.getAddress():null,service,data,control);
+    }
+
+    public void closeTransferTransport(BleTransferTransport transport){
+        owner.closeTransferTransport(transport);
+    }
+
+    /**
+     * Latency histograms, queue depths, throughput and error counters collected since the start
+     * or the last {@link #resetMetrics()}.
+     */
+    public BleMetricsSnapshot getMetrics(){
+        return owner.getMetrics();
+    }
+
+    public void resetMetrics(){
+        owner.resetMetrics();
+    }
+
+    /**
+     * Starts the binary lifecycle trace, see {@link BleTrace}.
+     * @param capacity number of newest events kept
+     */
+    public void startTrace(int capacity){
+        BleTrace.start(capacity);
+    }
+
+    public void stopTrace(){
+        BleTrace.stop();
+    }
+
+    /**
+     * Writes the trace to {@code file}, {@link BleTrace#format} turns it into text offline.
+     * @return number of events written
+     */
+    public int exportTrace(File file) throws IOException {
+        return BleTrace.export(file);
+    }
+
+    /**
+     * Turns ACTION_CHARACTERISTIC_NOTIFICATION broadcasts on (default) or off.
+     * Switch them off when all consumers use {@link #addNotificationListener}.
+     */
+    public void setNotificationBroadcasts(boolean enable){
+        owner.setNotificationBroadcasts(enable);
+    }
+
+    /**
+     * Switches scan results to ACTION_DEVICES_CHANGED deltas ({@link BleDeviceChangesCallbacks#onDevicesChanged}),
+     * reported at most once per {@code minIntervalMillis}. Full lists are then only sent on {@link #requestDeviceList()}.
+     */
+    public void setDeviceDeltaUpdates(boolean enable, long minIntervalMillis){
+        owner.setDeviceDeltaUpdates(enable,minIntervalMillis);
+    }
+
+    /**
+     * Broadcasts the full ACTION_DEVICES_FOUND list now.
+     */
+    public void requestDeviceList(){
+        owner.requestDeviceList();
+    }
+
+    public BleDeviceInfo[] getFoundDevices(){
+        return owner.getFoundDevices();
+    }
+
+    /**
+     * Device lists broadcast by the service carry no scan record, this returns the last one.
+     * @return raw advertisement, shared: do not modify; null if the device was not scanned
+     */
+    public byte[] getScanRecord(BleDeviceInfo device){
+        return owner.getScanRecord(device!=null?device.getAddress():null);
+    }
+
+    /**
+     * Snapshot of scanned devices filtered by signal and age.
+     * @param minRssi lowest smoothed RSSI in dBm to include
+     * @param maxAgeMillis skip devices not seen for longer, 0 keeps all
+     * @param order e.g. {@link BleDeviceInfo#ORDER_BY_RSSI}, null keeps registry order
+     */
+    public BleDeviceInfo[] getFoundDevices(int minRssi, long maxAgeMillis, Comparator<BleDeviceInfo> order){
+        return owner.getFoundDevices(minRssi,maxAgeMillis,order);
+    }
+
+    /**
+     * Devices this service connected to, persisted across process restarts, so they can be
+     * connected to right away without scanning first.
+     */
+    public BleDeviceInfo[] getKnownDevices(){
+        return owner.getKnownDevices();
+    }
+
+    /**
+     * @return service UUIDs discovered on the last connection, null for an unknown or null device
+     */
+    public UUID[] getKnownServices(BleDeviceInfo device){
+        return owner.getKnownServices(device!=null?device.getAddress():null);
+    }
+
+    public void forgetDevice(BleDeviceInfo device){
+        if(device!=null) {
+            owner.forgetDevice(device.getAddress());
+        }
+    }
+
+    /**
+     * @param alpha weight of a new advertisement in the smoothed RSSI, 0..1 (default 0.25)
+     */
+    public void setRssiSmoothing(float alpha){
+        owner.setRssiSmoothing(alpha);
+    }
+
+    /**
+     * Filters and settings for scans started afterwards. On API 21+ they are handed to BluetoothLeScanner,
+     * so the controller filters and batches advertisements, older devices use the legacy scanner.
+     * @param filters null or empty reports every device
+     * @param settings null restores the defaults
+     */
+    public void setScanConfiguration(List<BleScanFilter> filters, BleScanSettings settings){
+        owner.setScanConfiguration(filters,settings);
+    }
+
     public void scanForDeviceOnce(){
         owner.setScanning(true,false);
     }
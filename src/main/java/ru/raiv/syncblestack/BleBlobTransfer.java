@@ -0,0 +1,378 @@
+package ru.raiv.syncblestack;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * Streams a blob (e.g. a firmware image) to a peripheral over a {@link BleTransferTransport}.
+ * <p>
+ * Protocol, all numbers little endian:
+ * <ul>
+ * <li>{@link #CMD_START} {@code [id u32][length u32][payload u16][ackInterval u16]} opens a session,
+ * the peripheral answers {@link #RSP_STATUS} {@code [offset u32]}: bytes of transfer {@code id} it already has.</li>
+ * <li>data packets {@code [seq u16][payload]}, seq counts packets from the start of the session.</li>
+ * <li>every {@code ackInterval} packets and at the end the peripheral sends {@link #RSP_ACK} {@code [offset u32]},
+ * on a sequence gap it sends {@link #RSP_NACK} {@code [offset u32]} once and drops packets until the expected one.</li>
+ * <li>{@link #CMD_VERIFY} {@code [crc32 u32]} of the whole blob is answered by {@link #RSP_RESULT} {@code [status u8]}, 0 is a match.</li>
+ * </ul>
+ * {@link #run} blocks, so call it off the main thread. When it fails on a lost link, reconnect and call it again:
+ * the transfer continues from the last offset the peripheral acknowledged.
+ */
+
+public class BleBlobTransfer {
+
+    public interface ProgressListener {
+        void onProgress(long acknowledged, long length);
+    }
+
+    public static final byte CMD_START = 0x01;
+    public static final byte CMD_VERIFY = 0x02;
+    public static final byte RSP_STATUS = (byte) 0x81;
+    public static final byte RSP_ACK = (byte) 0x82;
+    public static final byte RSP_NACK = (byte) 0x83;
+    public static final byte RSP_RESULT = (byte) 0x84;
+    public static final int SEQ_HEADER = 2;
+
+    private static final long MAX_LENGTH = 0xFFFFFFFFL;
+    private static final int CRC_CHUNK = 4096;
+
+    private abstract static class Source {
+        /**
+         * Reads exactly {@code length} bytes at {@code position}.
+         */
+        abstract void read(long position, byte[] dst, int offset, int length) throws IOException;
+
+        /**
+         * Bytes before {@code position} are not read again.
+         */
+        void release(long position) {
+        }
+    }
+
+    private static final class ChannelSource extends Source {
+        private final FileChannel channel;
+
+        ChannelSource(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        void read(long position, byte[] dst, int offset, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(dst, offset, length);
+            while(buffer.hasRemaining()){
+                if(channel.read(buffer, position + buffer.position() - offset) < 0){
+                    throw new EOFException("BleBlobTransfer: channel ended before the declared length!");
+                }
+            }
+        }
+    }
+
+    // keeps unacknowledged bytes, so they can be sent again
+    private static final class StreamSource extends Source {
+        private final InputStream stream;
+        private byte[] buffer = new byte[CRC_CHUNK];
+        private long base = 0;
+        private int filled = 0;
+
+        StreamSource(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        void read(long position, byte[] dst, int offset, int length) throws IOException {
+            if(position < base){
+                throw new IOException("BleBlobTransfer: offset " + position + " of the stream is no longer buffered!");
+            }
+            long end = position + length;
+            while(base + filled < end){
+                int needed = (int) (end - base);
+                if(needed > buffer.length){
+                    buffer = Arrays.copyOf(buffer, Math.max(needed, buffer.length * 2));
+                }
+                int count = stream.read(buffer, filled, buffer.length - filled);
+                if(count < 0){
+                    throw new EOFException("BleBlobTransfer: stream ended before the declared length!");
+                }
+                filled += count;
+            }
+            System.arraycopy(buffer, (int) (position - base), dst, offset, length);
+        }
+
+        @Override
+        void release(long position) {
+            int drop = (int) Math.min(position - base, filled);
+            if(drop > 0){
+                System.arraycopy(buffer, drop, buffer, 0, filled - drop);
+                filled -= drop;
+                base += drop;
+            }
+        }
+    }
+
+    private final Source source;
+    private final long length;
+    private final CRC32 crc = new CRC32();
+    private long crcPosition = 0;
+    private int transferId = new Random().nextInt();
+    private int ackInterval = 16;
+    private long ackTimeout = 5000;
+    private int maxRetries = 5;
+    private ProgressListener progressListener = null;
+
+    private volatile long acknowledged = 0;
+    private volatile boolean complete = false;
+    private long sessionBase;
+    private int payloadSize;
+
+    /**
+     * Sends the whole file behind {@code channel}, the channel position is not used.
+     */
+    public BleBlobTransfer(@NonNull FileChannel channel) throws IOException {
+        this(new ChannelSource(channel), channel.size());
+    }
+
+    /**
+     * @param length number of bytes to take from {@code stream}
+     */
+    public BleBlobTransfer(@NonNull InputStream stream, long length) {
+        this(new StreamSource(stream), length);
+    }
+
+    private BleBlobTransfer(Source source, long length) {
+        if(length < 0 || length > MAX_LENGTH){
+            throw new IllegalArgumentException("BleBlobTransfer: length must fit 32 bits!");
+        }
+        this.source = source;
+        this.length = length;
+    }
+
+    /**
+     * The peripheral keeps its offset per id. Random by default, set a stored one to continue
+     * a transfer started by an earlier process.
+     */
+    public BleBlobTransfer setTransferId(int transferId) {
+        this.transferId = transferId;
+        return this;
+    }
+
+    /**
+     * @param packets packets per acknowledgment, up to twice as many are sent ahead of the last one
+     */
+    public BleBlobTransfer setAckInterval(int packets) {
+        if(packets < 1 || packets > 0xFFFF){
+            throw new IllegalArgumentException("BleBlobTransfer: ack interval must be 1..65535!");
+        }
+        this.ackInterval = packets;
+        return this;
+    }
+
+    public BleBlobTransfer setAckTimeout(long millis) {
+        this.ackTimeout = millis;
+        return this;
+    }
+
+    /**
+     * @param retries resynchronizations and NACKs in a row before {@link #run} gives up
+     */
+    public BleBlobTransfer setMaxRetries(int retries) {
+        this.maxRetries = retries;
+        return this;
+    }
+
+    /**
+     * @param listener called on the thread of {@link #run} whenever the acknowledged offset changes
+     */
+    public BleBlobTransfer setProgressListener(@Nullable ProgressListener listener) {
+        this.progressListener = listener;
+        return this;
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * @return true once the peripheral confirmed the checksum
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Sends what the peripheral is missing and verifies the checksum, blocks until done.
+     * @throws IOException when the link fails or the peripheral stops answering, call again to resume
+     */
+    public synchronized void run(@NonNull BleTransferTransport transport) throws IOException, InterruptedException {
+        if(complete){
+            return;
+        }
+        transport.open();
+        payloadSize = transport.getMaxPacketSize() - SEQ_HEADER;
+        if(payloadSize < 1){
+            throw new IOException("BleBlobTransfer: packets are too small!");
+        }
+        long inFlightLimit = 2L * ackInterval * payloadSize;
+        long sent = startSession(transport);
+        int retries = 0;
+        while(acknowledged < length){
+            boolean canSend = sent < length && sent - acknowledged < inFlightLimit;
+            if(canSend){
+                List<byte[]> packets = new ArrayList<>(ackInterval);
+                while(packets.size() < ackInterval && sent < length && sent - acknowledged < inFlightLimit){
+                    int size = (int) Math.min(payloadSize, length - sent);
+                    byte[] packet = new byte[SEQ_HEADER + size];
+                    int seq = (int) ((sent - sessionBase) / payloadSize);
+                    packet[0] = (byte) seq;
+                    packet[1] = (byte) (seq >> 8);
+                    read(sent, packet, SEQ_HEADER, size);
+                    packets.add(packet);
+                    sent += size;
+                }
+                transport.sendPackets(packets);
+            }
+            byte[] message = transport.receiveControl(canSend ? 0 : ackTimeout);
+            if(message == null){
+                if(!canSend){
+                    if(++retries > maxRetries){
+                        throw new IOException("BleBlobTransfer: peripheral stopped acknowledging!");
+                    }
+                    sent = startSession(transport);
+                }
+                continue;
+            }
+            if(message.length < 5 || (message[0] != RSP_ACK && message[0] != RSP_NACK)){
+                continue;
+            }
+            long offset = getInt(message, 1);
+            if(offset > sent){
+                throw new IOException("BleBlobTransfer: peripheral acknowledged unsent data!");
+            }
+            if(message[0] == RSP_NACK){
+                if(++retries > maxRetries){
+                    throw new IOException("BleBlobTransfer: too many lost packets!");
+                }
+                sent = offset;
+            }else if(offset > acknowledged){
+                retries = 0;
+            }
+            acknowledge(offset);
+        }
+        verify(transport);
+    }
+
+    private long startSession(BleTransferTransport transport) throws IOException, InterruptedException {
+        byte[] command = new byte[13];
+        command[0] = CMD_START;
+        putInt(command, 1, transferId);
+        putInt(command, 5, length);
+        command[9] = (byte) payloadSize;
+        command[10] = (byte) (payloadSize >> 8);
+        command[11] = (byte) ackInterval;
+        command[12] = (byte) (ackInterval >> 8);
+        byte[] status = request(transport, command, RSP_STATUS);
+        long offset = getInt(status, 1);
+        if(offset > length){
+            throw new IOException("BleBlobTransfer: peripheral reports more data than the blob has!");
+        }
+        sessionBase = offset;
+        acknowledge(offset);
+        return offset;
+    }
+
+    private void verify(BleTransferTransport transport) throws IOException, InterruptedException {
+        updateCrc(length);
+        byte[] command = new byte[5];
+        command[0] = CMD_VERIFY;
+        putInt(command, 1, crc.getValue());
+        byte[] result = request(transport, command, RSP_RESULT);
+        if(result[1] != 0){
+            throw new IOException("BleBlobTransfer: checksum mismatch, status " + (result[1] & 0xFF) + "!");
+        }
+        complete = true;
+    }
+
+    // sends the command until the answer comes, messages of the previous session are skipped
+    private byte[] request(BleTransferTransport transport, byte[] command, byte answer) throws IOException, InterruptedException {
+        for(int attempt = 0; attempt <= maxRetries; attempt++){
+            transport.sendControl(command);
+            long deadline = System.currentTimeMillis() + ackTimeout;
+            long left = ackTimeout;
+            while(left > 0){
+                byte[] message = transport.receiveControl(left);
+                if(message != null && message.length >= 2 && message[0] == answer && (answer == RSP_RESULT || message.length >= 5)){
+                    return message;
+                }
+                left = deadline - System.currentTimeMillis();
+            }
+        }
+        throw new IOException("BleBlobTransfer: no answer from the peripheral!");
+    }
+
+    private void acknowledge(long offset) {
+        if(offset == acknowledged){
+            return;
+        }
+        acknowledged = offset;
+        source.release(Math.min(offset, crcPosition));
+        ProgressListener listener = progressListener;
+        if(listener != null){
+            listener.onProgress(offset, length);
+        }
+    }
+
+    // the checksum is taken on the first read of every byte, reads only go back to resend
+    private void read(long position, byte[] dst, int offset, int count) throws IOException {
+        if(position > crcPosition){
+            updateCrc(position);
+        }
+        source.read(position, dst, offset, count);
+        long end = position + count;
+        if(end > crcPosition){
+            int skip = (int) (crcPosition - position);
+            crc.update(dst, offset + skip, count - skip);
+            crcPosition = end;
+        }
+    }
+
+    private void updateCrc(long position) throws IOException {
+        byte[] chunk = new byte[CRC_CHUNK];
+        while(crcPosition < position){
+            int count = (int) Math.min(chunk.length, position - crcPosition);
+            read(crcPosition, chunk, 0, count);
+            source.release(Math.min(crcPosition, acknowledged));
+        }
+    }
+
+    private static void putInt(byte[] dst, int offset, long value) {
+        for(int i = 0; i < 4; i++){
+            dst[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static long getInt(byte[] src, int offset) {
+        long value = 0;
+        for(int i = 0; i < 4; i++){
+            value |= (src[offset + i] & 0xFFL) << (8 * i);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,10 @@
+package ru.raiv.syncblestack;
+
+public enum BleCachePolicy {
+    // every READ goes to the peripheral (default)
+    NEVER,
+    // a read value is served from cache for the configured time
+    TTL,
+    // a read value is served from cache until the device disconnects
+    UNTIL_DISCONNECT;
+}
@@ -0,0 +1,75 @@
+package ru.raiv.syncblestack;
+
+import android.bluetooth.BluetoothGatt;
+
+/**
+ * When to switch a connection to {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH} (short connection
+ * interval) and when to fall back. Any exceeded threshold raises the priority, the idle priority
+ * returns after the pipeline stayed empty for {@code idleTimeout}.
+ */
+
+public class BleConnectionPriorityPolicy {
+
+    private int queueDepthThreshold = 4;
+    private long pendingBytesThreshold = 512;
+    private long latencyThreshold = 100;
+    private long idleTimeout = 2000;
+    private int idlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+
+    /**
+     * @param depth number of running and queued tasks that makes the link go fast
+     */
+    public BleConnectionPriorityPolicy setQueueDepthThreshold(int depth) {
+        this.queueDepthThreshold = depth;
+        return this;
+    }
+
+    /**
+     * @param bytes amount of write payload waiting for the device that makes the link go fast
+     */
+    public BleConnectionPriorityPolicy setPendingBytesThreshold(long bytes) {
+        this.pendingBytesThreshold = bytes;
+        return this;
+    }
+
+    /**
+     * @param millis smoothed operation round trip that makes the link go fast while work is pending
+     */
+    public BleConnectionPriorityPolicy setLatencyThreshold(long millis) {
+        this.latencyThreshold = millis;
+        return this;
+    }
+
+    public BleConnectionPriorityPolicy setIdleTimeout(long millis) {
+        this.idleTimeout = millis;
+        return this;
+    }
+
+    /**
+     * @param priority {@link BluetoothGatt#CONNECTION_PRIORITY_BALANCED} or {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+     */
+    public BleConnectionPriorityPolicy setIdlePriority(int priority) {
+        this.idlePriority = priority;
+        return this;
+    }
+
+    public int getQueueDepthThreshold() {
+        return queueDepthThreshold;
+    }
+
+    public long getPendingBytesThreshold() {
+        return pendingBytesThreshold;
+    }
+
+    public long getLatencyThreshold() {
+        return latencyThreshold;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public int getIdlePriority() {
+        return idlePriority;
+    }
+}
@@ -12,8 +12,16 @@ public class BleConst {
     public final static String ACTION_DEVICE_DISCONNECTED = "ACTION_DEVICE_DISCONNECTED";
     public final static String ACTION_DEVICE_ERROR = "ACTION_DEVICE_ERROR";
     public final static String PARAM_DEVICE_ERROR =ACTION_DEVICE_ERROR.concat(".ERROR");
+    // library error codes reported through PARAM_DEVICE_ERROR, negative to never clash with GATT statuses
+    public final static int ERROR_OPERATION_TIMEOUT = -1;
+    public final static int ERROR_TASK_TIMEOUT = -2;
+    public final static int ERROR_RECONNECT_FAILED = -3;
     public final static String ACTION_DEVICES_FOUND = "ACTION_DEVICES_FOUND";
     public final static String PARAM_DEVICES_FOUND_LIST =ACTION_DEVICES_FOUND.concat(".LIST");
+    public final static String ACTION_DEVICES_CHANGED = "ACTION_DEVICES_CHANGED";
+    public final static String PARAM_DEVICES_ADDED =ACTION_DEVICES_CHANGED.concat(".ADDED");
+    public final static String PARAM_DEVICES_UPDATED =ACTION_DEVICES_CHANGED.concat(".UPDATED");
+    public final static String PARAM_DEVICES_REMOVED =ACTION_DEVICES_CHANGED.concat(".REMOVED");
     public final static String ACTION_SEARCH_FINISHED = "ACTION_SEARCH_FINISHED";
     public final static String ACTION_CHARACTERISTIC_NOTIFICATION = "ACTION_CHARACTERISTIC_NOTIFICATION";
     public final static String PARAM_CHARACTERISTIC_NOTIFICATION =ACTION_CHARACTERISTIC_NOTIFICATION.concat(".CHARACTERISTIC");
@@ -25,6 +33,7 @@ public class BleConst {
         iFilter.addAction(ACTION_DEVICE_CONNECTED);
         iFilter.addAction(ACTION_DEVICE_DISCONNECTED);
         iFilter.addAction(ACTION_DEVICES_FOUND);
+        iFilter.addAction(ACTION_DEVICES_CHANGED);
         iFilter.addAction(ACTION_DEVICE_ERROR);
         iFilter.addAction(ACTION_SEARCH_FINISHED);
         iFilter.addAction(ACTION_CHARACTERISTIC_NOTIFICATION);
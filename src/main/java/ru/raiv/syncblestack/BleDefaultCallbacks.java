@@ -6,7 +6,7 @@ import ru.raiv.syncblestack.tasks.BleOperation;
  * Created by Raiv on 17.04.2017.
  */
 
-public class BleDefaultCallbacks implements BleCallbacks {
+public class BleDefaultCallbacks implements BleCallbacks, BleDeviceChangesCallbacks {
     @Override
     public void onDeviceError(BleDeviceInfo device, int errorCode) {
 
@@ -17,6 +17,11 @@ public class BleDefaultCallbacks implements BleCallbacks {
 
     }
 
+    @Override
+    public void onDevicesChanged(BleDeviceInfo[] added, BleDeviceInfo[] updated, BleDeviceInfo[] removed) {
+
+    }
+
     @Override
     public void onDeviceConnected(BleDeviceInfo device) {
 
@@ -0,0 +1,12 @@
+package ru.raiv.syncblestack;
+
+/**
+ * Scan results in delta mode, see {@link BleBinder#setDeviceDeltaUpdates}. Implemented next to
+ * {@link BleCallbacks}, the default receiver reports deltas to callbacks that implement both.
+ */
+
+public interface BleDeviceChangesCallbacks {
+
+    void onDevicesChanged(BleDeviceInfo[] added, BleDeviceInfo[] updated, BleDeviceInfo[] removed);
+
+}
@@ -3,6 +3,8 @@ package ru.raiv.syncblestack;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.Comparator;
+
 /**
  * Created by Raiv on 10.01.2017.
  */
@@ -14,12 +16,55 @@ public class BleDeviceInfo implements Parcelable {
         this.address=address;
     }
 
+    public BleDeviceInfo(String name,String address,byte[] scanRecord){
+        this(name,address);
+        this.scanRecord=scanRecord;
+    }
+
+    BleDeviceInfo(String name,String address,byte[] scanRecord,int rssi,float smoothedRssi,int rssiSamples,long lastSeen){
+        this(name,address,scanRecord);
+        this.rssi=rssi;
+        this.smoothedRssi=smoothedRssi;
+        this.rssiSamples=rssiSamples;
+        this.lastSeen=lastSeen;
+    }
+
+    // strongest smoothed signal first, devices without samples last
+    public static final Comparator<BleDeviceInfo> ORDER_BY_RSSI = new Comparator<BleDeviceInfo>() {
+        @Override
+        public int compare(BleDeviceInfo a, BleDeviceInfo b) {
+            if(a.rssiSamples==0 || b.rssiSamples==0){
+                return (a.rssiSamples==0?1:0)-(b.rssiSamples==0?1:0);
+            }
+            return Float.compare(b.smoothedRssi,a.smoothedRssi);
+        }
+    };
+
+    // most recently seen first
+    public static final Comparator<BleDeviceInfo> ORDER_BY_LAST_SEEN = new Comparator<BleDeviceInfo>() {
+        @Override
+        public int compare(BleDeviceInfo a, BleDeviceInfo b) {
+            return a.lastSeen<b.lastSeen?1:(a.lastSeen==b.lastSeen?0:-1);
+        }
+    };
+
     private String name;
     private String address;
+    // last advertisement as received, null for devices not seen by a scan and in broadcast lists
+    private byte[] scanRecord;
+    private int rssi;
+    private float smoothedRssi;
+    private int rssiSamples;
+    private long lastSeen;
 
     protected BleDeviceInfo(Parcel in) {
         name = in.readString();
         address = in.readString();
+        scanRecord = in.createByteArray();
+        rssi = in.readInt();
+        smoothedRssi = in.readFloat();
+        rssiSamples = in.readInt();
+        lastSeen = in.readLong();
     }
     @Override
     public String toString(){
@@ -72,6 +117,47 @@ public class BleDeviceInfo implements Parcelable {
         this.address = address;
     }
 
+    /**
+     * @return null for devices from ACTION_DEVICES_FOUND and ACTION_DEVICES_CHANGED broadcasts,
+     * see {@link BleBinder#getScanRecord}
+     */
+    public byte[] getScanRecord() {
+        return scanRecord;
+    }
+
+    /**
+     * @return RSSI of the last advertisement in dBm, meaningless while {@link #getRssiSamples()} is 0
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * @return exponentially smoothed RSSI in dBm
+     */
+    public float getSmoothedRssi() {
+        return smoothedRssi;
+    }
+
+    public int getRssiSamples() {
+        return rssiSamples;
+    }
+
+    /**
+     * @return {@link android.os.SystemClock#elapsedRealtime()} of the last advertisement, 0 if never seen
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * @param view reused to avoid an allocation per call, may be null
+     * @return advertisement view over the last scan record
+     */
+    public BleAdvertisement getAdvertisement(BleAdvertisement view) {
+        return (view!=null?view:new BleAdvertisement()).wrap(scanRecord);
+    }
+
     @Override
     public int describeContents() {
         return 0;
@@ -82,5 +168,10 @@ public class BleDeviceInfo implements Parcelable {
 
         dest.writeString(name);
         dest.writeString(address);
+        dest.writeByteArray(scanRecord);
+        dest.writeInt(rssi);
+        dest.writeFloat(smoothedRssi);
+        dest.writeInt(rssiSamples);
+        dest.writeLong(lastSeen);
     }
 }
@@ -0,0 +1,65 @@
+package ru.raiv.syncblestack;
+
+/**
+ * Limits of a {@link BleFleetJob}. {@code maxConcurrent} should match how many links the
+ * controller keeps up reliably, typically 4 to 7 on phones.
+ */
+
+public class BleFleetConfig {
+
+    private int maxConcurrent = 4;
+    private int maxAttempts = 3;
+    private long connectTimeout = 15000;
+    private long retryDelay = 1000;
+
+    public BleFleetConfig setMaxConcurrent(int maxConcurrent) {
+        if(maxConcurrent < 1){
+            throw new IllegalArgumentException("BleFleetConfig: at least one connection is needed!");
+        }
+        this.maxConcurrent = maxConcurrent;
+        return this;
+    }
+
+    /**
+     * @param maxAttempts connect and run attempts per device, a failed task counts as a failed attempt
+     */
+    public BleFleetConfig setMaxAttempts(int maxAttempts) {
+        if(maxAttempts < 1){
+            throw new IllegalArgumentException("BleFleetConfig: at least one attempt is needed!");
+        }
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * @param millis time for a device to connect and discover services
+     */
+    public BleFleetConfig setConnectTimeout(long millis) {
+        this.connectTimeout = millis;
+        return this;
+    }
+
+    /**
+     * @param millis pause before a device is retried, its connection slot serves other devices meanwhile
+     */
+    public BleFleetConfig setRetryDelay(long millis) {
+        this.retryDelay = millis;
+        return this;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public long getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+}
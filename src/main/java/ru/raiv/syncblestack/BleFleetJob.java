@@ -0,0 +1,399 @@
+package ru.raiv.syncblestack;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import ru.raiv.syncblestack.tasks.BleTask;
+import ru.raiv.syncblestack.tasks.BleTaskBuilder;
+import ru.raiv.syncblestack.tasks.BleTaskFuture;
+
+/**
+ * Runs copies of one task on many devices: connect, run, disconnect, with at most
+ * {@link BleFleetConfig#getMaxConcurrent()} devices in progress. A slot is handed to the next
+ * device as soon as the previous one released its connection.
+ * Started through {@link BleBinder#runFleetJob}, all state lives on the main thread.
+ */
+
+public class BleFleetJob {
+
+    private static final String TAG = BleFleetJob.class.getSimpleName();
+    // fallback when the disconnect is never reported
+    private static final long RELEASE_TIMEOUT = 2000;
+
+    private final class Target {
+        final BleDeviceInfo device;
+        int attempts = 0;
+        // the job opened the connection and has to close it
+        boolean owned = false;
+        boolean connecting = false;
+        BleTaskFuture future = null;
+        BleTask task = null;
+        Runnable timeout = null;
+        Runnable released = null;
+
+        Target(BleDeviceInfo device) {
+            this.device = device;
+        }
+
+        String address() {
+            return device.getAddress();
+        }
+    }
+
+    /**
+     * The part of the service the job uses.
+     */
+    interface Host {
+        void addConnectionStateListener(BluetoothLeServiceSync.ConnectionStateListener listener);
+        void removeConnectionStateListener(BluetoothLeServiceSync.ConnectionStateListener listener);
+        boolean isConnectionReady(String address);
+        boolean hasConnection(String address);
+        boolean connect(String address, boolean reconnect);
+        void disconnectDevice(String address);
+        BleTaskFuture addTask(String address, BleTask task);
+    }
+
+    /**
+     * The main thread, as far as the job is concerned.
+     */
+    interface Scheduler {
+        void post(Runnable runnable);
+        void postDelayed(Runnable runnable, long delayMillis);
+        void removeCallbacks(Runnable runnable);
+    }
+
+    private final Host service;
+    private final Scheduler handler;
+    // task callbacks, null lets the task create its own
+    private final Handler callbackHandler;
+    private final Executor executor;
+    private final BleTask template;
+    private final BleFleetConfig config;
+    private final BleFleetListener listener;
+    private final ArrayDeque<Target> waiting = new ArrayDeque<>();
+    private final Map<String, Target> active = new HashMap<>();
+    private final List<BleFleetResult> results = new ArrayList<>();
+    private final int total;
+    private volatile int finished = 0;
+    private volatile boolean cancelled = false;
+
+    private final BluetoothLeServiceSync.ConnectionStateListener connectionListener = new BluetoothLeServiceSync.ConnectionStateListener() {
+        @Override
+        public void onConnectionStateChanged(final String address, final boolean ready) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if(ready){
+                        onReady(address);
+                    }else{
+                        onLost(address);
+                    }
+                }
+            });
+        }
+    };
+
+    BleFleetJob(final BluetoothLeServiceSync service, final Handler handler, @NonNull BleTask template,
+                @NonNull Collection<BleDeviceInfo> targets, @NonNull BleFleetConfig config, @Nullable BleFleetListener listener) {
+        this(new Host() {
+            @Override
+            public void addConnectionStateListener(BluetoothLeServiceSync.ConnectionStateListener listener) {
+                service.addConnectionStateListener(listener);
+            }
+
+            @Override
+            public void removeConnectionStateListener(BluetoothLeServiceSync.ConnectionStateListener listener) {
+                service.removeConnectionStateListener(listener);
+            }
+
+            @Override
+            public boolean isConnectionReady(String address) {
+                return service.isConnectionReady(address);
+            }
+
+            @Override
+            public boolean hasConnection(String address) {
+                return service.hasConnection(address);
+            }
+
+            @Override
+            public boolean connect(String address, boolean reconnect) {
+                return service.connect(address, reconnect);
+            }
+
+            @Override
+            public void disconnectDevice(String address) {
+                service.disconnectDevice(address);
+            }
+
+            @Override
+            public BleTaskFuture addTask(String address, BleTask task) {
+                return service.addTask(address, task);
+            }
+        }, new Scheduler() {
+            @Override
+            public void post(Runnable runnable) {
+                handler.post(runnable);
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        }, handler, template, targets, config, listener);
+    }
+
+    BleFleetJob(Host service, final Scheduler handler, @Nullable Handler callbackHandler, @NonNull BleTask template,
+                @NonNull Collection<BleDeviceInfo> targets, @NonNull BleFleetConfig config, @Nullable BleFleetListener listener) {
+        this.service = service;
+        this.handler = handler;
+        this.callbackHandler = callbackHandler;
+        this.executor = new Executor() {
+            @Override
+            public void execute(@NonNull Runnable command) {
+                handler.post(command);
+            }
+        };
+        this.template = template;
+        this.config = config;
+        this.listener = listener;
+        for(BleDeviceInfo device : targets){
+            waiting.add(new Target(device));
+        }
+        this.total = waiting.size();
+    }
+
+    void start() {
+        service.addConnectionStateListener(connectionListener);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(total == 0){
+                    service.removeConnectionStateListener(connectionListener);
+                    if(listener != null){
+                        listener.onJobFinished(Collections.<BleFleetResult>emptyList());
+                    }
+                    return;
+                }
+                fill();
+            }
+        });
+    }
+
+    /**
+     * Stops the job, devices not finished yet are reported as failed.
+     */
+    public void cancel() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if(cancelled){
+                    return;
+                }
+                cancelled = true;
+                while(!waiting.isEmpty()){
+                    finish(waiting.poll(), false);
+                }
+                for(Target target : new ArrayList<>(active.values())){
+                    if(target.future != null){
+                        target.future.cancel(false);
+                    }else if(target.connecting){
+                        failAttempt(target);
+                    }
+                }
+            }
+        });
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public int getFinished() {
+        return finished;
+    }
+
+    public boolean isDone() {
+        return finished == total;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // everything below runs on the handler thread
+
+    private void fill() {
+        while(!cancelled && active.size() < config.getMaxConcurrent() && !waiting.isEmpty()){
+            Target target = waiting.poll();
+            active.put(target.address(), target);
+            attempt(target);
+        }
+    }
+
+    private void attempt(final Target target) {
+        target.attempts++;
+        if(service.isConnectionReady(target.address())){
+            // somebody else holds the connection, just use it
+            target.owned = false;
+            run(target);
+            return;
+        }
+        target.owned = true;
+        target.connecting = true;
+        if(!service.connect(target.address(), false)){
+            failAttempt(target);
+            return;
+        }
+        target.timeout = new Runnable() {
+            @Override
+            public void run() {
+                target.timeout = null;
+                Log.w(TAG, "connect timeout " + target.address());
+                failAttempt(target);
+            }
+        };
+        handler.postDelayed(target.timeout, config.getConnectTimeout());
+    }
+
+    private void onReady(String address) {
+        Target target = active.get(address);
+        if(target != null && target.connecting){
+            target.connecting = false;
+            cancelTimeout(target);
+            run(target);
+        }
+    }
+
+    private void onLost(String address) {
+        Target target = active.get(address);
+        if(target == null){
+            return;
+        }
+        if(target.released != null){
+            release(target);
+        }else if(target.connecting){
+            failAttempt(target);
+        }
+        // a running task is failed by the service, see onTaskDone
+    }
+
+    private void run(final Target target) {
+        target.task = BleTaskBuilder.fromTemplate(template).setAsync(true).addCallbackHandler(callbackHandler).build();
+        target.future = service.addTask(target.address(), target.task);
+        target.future.addListener(executor, new BleTaskFuture.Listener() {
+            @Override
+            public void onComplete(BleTaskFuture future) {
+                if(target.future != future){
+                    return;
+                }
+                target.future = null;
+                if(!future.isCancelled() && target.task.allSucceed()){
+                    finish(target, true);
+                    releaseConnection(target, null);
+                }else{
+                    failAttempt(target);
+                }
+            }
+        });
+    }
+
+    private void failAttempt(final Target target) {
+        target.connecting = false;
+        cancelTimeout(target);
+        if(cancelled || target.attempts >= config.getMaxAttempts()){
+            finish(target, false);
+            releaseConnection(target, null);
+            return;
+        }
+        releaseConnection(target, new Runnable() {
+            @Override
+            public void run() {
+                // the slot serves other devices until the retry is due
+                handler.postDelayed(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(cancelled){
+                            finish(target, false);
+                        }else{
+                            waiting.add(target);
+                            fill();
+                        }
+                    }
+                }, config.getRetryDelay());
+            }
+        });
+    }
+
+    private void releaseConnection(final Target target, @Nullable final Runnable then) {
+        final Runnable next = then != null ? then : new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        if(!target.owned || !service.hasConnection(target.address())){
+            target.released = next;
+            release(target);
+            return;
+        }
+        target.released = next;
+        service.disconnectDevice(target.address());
+        target.timeout = new Runnable() {
+            @Override
+            public void run() {
+                target.timeout = null;
+                release(target);
+            }
+        };
+        handler.postDelayed(target.timeout, RELEASE_TIMEOUT);
+    }
+
+    private void release(Target target) {
+        cancelTimeout(target);
+        Runnable then = target.released;
+        target.released = null;
+        active.remove(target.address());
+        if(then != null){
+            then.run();
+        }
+        fill();
+    }
+
+    private void finish(Target target, boolean succeed) {
+        BleFleetResult result = new BleFleetResult(target.device, succeed, target.attempts, target.task);
+        results.add(result);
+        finished++;
+        if(listener != null){
+            listener.onDeviceFinished(result, finished, total);
+        }
+        if(finished == total){
+            service.removeConnectionStateListener(connectionListener);
+            if(listener != null){
+                listener.onJobFinished(Collections.unmodifiableList(results));
+            }
+        }
+    }
+
+    private void cancelTimeout(Target target) {
+        if(target.timeout != null){
+            handler.removeCallbacks(target.timeout);
+            target.timeout = null;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package ru.raiv.syncblestack;
+
+import java.util.List;
+
+/**
+ * Progress of a {@link BleFleetJob}, called on the main thread.
+ */
+
+public interface BleFleetListener {
+    void onDeviceFinished(BleFleetResult result, int finished, int total);
+
+    void onJobFinished(List<BleFleetResult> results);
+}
@@ -0,0 +1,40 @@
+package ru.raiv.syncblestack;
+
+import ru.raiv.syncblestack.tasks.BleTask;
+
+/**
+ * Outcome of a {@link BleFleetJob} for one device.
+ */
+
+public final class BleFleetResult {
+    private final BleDeviceInfo device;
+    private final boolean succeed;
+    private final int attempts;
+    private final BleTask task;
+
+    BleFleetResult(BleDeviceInfo device, boolean succeed, int attempts, BleTask task) {
+        this.device = device;
+        this.succeed = succeed;
+        this.attempts = attempts;
+        this.task = task;
+    }
+
+    public BleDeviceInfo getDevice() {
+        return device;
+    }
+
+    public boolean isSucceed() {
+        return succeed;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * @return task of the last attempt with its operation results, null if the device never connected
+     */
+    public BleTask getTask() {
+        return task;
+    }
+}
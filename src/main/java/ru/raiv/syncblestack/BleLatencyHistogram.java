@@ -0,0 +1,82 @@
+package ru.raiv.syncblestack;
+
+/**
+ * Latency distribution in power-of-two microsecond buckets: bucket {@code i} counts latencies
+ * below {@link #getBucketLimitNanos(int)}. Recording does not allocate. Histograms of a
+ * {@link BleMetricsSnapshot} are copies and do not change any more.
+ */
+
+public class BleLatencyHistogram {
+
+    public static final int BUCKETS = 32;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long max = 0;
+
+    BleLatencyHistogram() {
+    }
+
+    synchronized void record(long nanos) {
+        if(nanos < 0){
+            return;
+        }
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        counts[bucket]++;
+        count++;
+        sum += nanos;
+        if(nanos > max){
+            max = nanos;
+        }
+    }
+
+    synchronized BleLatencyHistogram copy() {
+        BleLatencyHistogram copy = new BleLatencyHistogram();
+        System.arraycopy(counts, 0, copy.counts, 0, BUCKETS);
+        copy.count = count;
+        copy.sum = sum;
+        copy.max = max;
+        return copy;
+    }
+
+    public static long getBucketLimitNanos(int bucket) {
+        return (1L << bucket) * 1000;
+    }
+
+    public synchronized long getBucketCount(int bucket) {
+        return counts[bucket];
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getMeanNanos() {
+        return count > 0 ? sum / count : 0;
+    }
+
+    public synchronized long getMaxNanos() {
+        return max;
+    }
+
+    /**
+     * @param percentile 0..100, e.g. 99
+     * @return upper limit of the bucket holding the percentile, never above the maximum seen; 0 when empty
+     */
+    public synchronized long getPercentileNanos(double percentile) {
+        if(count == 0){
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100);
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            seen += counts[i];
+            if(seen >= rank && seen > 0){
+                return Math.min(getBucketLimitNanos(i), max);
+            }
+        }
+        return max;
+    }
+}
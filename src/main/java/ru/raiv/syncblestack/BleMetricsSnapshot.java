@@ -0,0 +1,164 @@
+package ru.raiv.syncblestack;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+
+import ru.raiv.syncblestack.tasks.BleOperationType;
+
+/**
+ * Copy of the service metrics taken by {@link BleBinder#getMetrics()}. Latencies are split into
+ * queue wait (submit to dispatch), GATT round trip (request to callback), whole task and
+ * completion callback delay. Counters run since the service start or the last reset.
+ */
+
+public class BleMetricsSnapshot {
+
+    public static final class DeviceMetrics {
+        private final BleLatencyHistogram queueWait;
+        private final BleLatencyHistogram roundTrip;
+        private final BleLatencyHistogram taskTotal;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final long operations;
+        private final long bytes;
+        private final long failedTasks;
+        private final long errors;
+
+        DeviceMetrics(BleLatencyHistogram queueWait, BleLatencyHistogram roundTrip, BleLatencyHistogram taskTotal,
+                      int queueDepth, int maxQueueDepth, long operations, long bytes, long failedTasks, long errors) {
+            this.queueWait = queueWait;
+            this.roundTrip = roundTrip;
+            this.taskTotal = taskTotal;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.operations = operations;
+            this.bytes = bytes;
+            this.failedTasks = failedTasks;
+            this.errors = errors;
+        }
+
+        public BleLatencyHistogram getQueueWait() {
+            return queueWait;
+        }
+
+        public BleLatencyHistogram getRoundTrip() {
+            return roundTrip;
+        }
+
+        public BleLatencyHistogram getTaskTotal() {
+            return taskTotal;
+        }
+
+        /**
+         * @return tasks waiting for the device when the snapshot was taken
+         */
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        public long getOperations() {
+            return operations;
+        }
+
+        /**
+         * @return payload bytes read, written and streamed
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getFailedTasks() {
+            return failedTasks;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+    }
+
+    private final long elapsedNanos;
+    private final Map<String, DeviceMetrics> devices;
+    private final Map<BleOperationType, BleLatencyHistogram> roundTripByType;
+    private final Map<UUID, BleLatencyHistogram> roundTripByCharacteristic;
+    private final BleLatencyHistogram callbackDelay;
+    private final Map<Integer, Long> errors;
+    private final long operations;
+    private final long bytes;
+
+    BleMetricsSnapshot(long elapsedNanos, Map<String, DeviceMetrics> devices,
+                       Map<BleOperationType, BleLatencyHistogram> roundTripByType,
+                       Map<UUID, BleLatencyHistogram> roundTripByCharacteristic,
+                       BleLatencyHistogram callbackDelay, Map<Integer, Long> errors) {
+        this.elapsedNanos = elapsedNanos;
+        this.devices = Collections.unmodifiableMap(devices);
+        this.roundTripByType = Collections.unmodifiableMap(roundTripByType);
+        this.roundTripByCharacteristic = Collections.unmodifiableMap(roundTripByCharacteristic);
+        this.callbackDelay = callbackDelay;
+        this.errors = Collections.unmodifiableMap(errors);
+        long operations = 0;
+        long bytes = 0;
+        for(DeviceMetrics device : devices.values()){
+            operations += device.operations;
+            bytes += device.bytes;
+        }
+        this.operations = operations;
+        this.bytes = bytes;
+    }
+
+    /**
+     * @return time the counters cover
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return per device address
+     */
+    public Map<String, DeviceMetrics> getDevices() {
+        return devices;
+    }
+
+    public Map<BleOperationType, BleLatencyHistogram> getRoundTripByType() {
+        return roundTripByType;
+    }
+
+    public Map<UUID, BleLatencyHistogram> getRoundTripByCharacteristic() {
+        return roundTripByCharacteristic;
+    }
+
+    /**
+     * @return delay between task completion and its {@link ru.raiv.syncblestack.tasks.BleTaskCompleteCallback}
+     */
+    public BleLatencyHistogram getCallbackDelay() {
+        return callbackDelay;
+    }
+
+    /**
+     * @return occurrences per GATT status or {@code BleConst.ERROR_*} code
+     */
+    public Map<Integer, Long> getErrors() {
+        return errors;
+    }
+
+    public long getOperations() {
+        return operations;
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+
+    public double getOperationsPerSecond() {
+        return elapsedNanos > 0 ? operations * 1e9 / elapsedNanos : 0;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsedNanos > 0 ? bytes * 1e9 / elapsedNanos : 0;
+    }
+}
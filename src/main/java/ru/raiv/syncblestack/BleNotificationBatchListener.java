@@ -0,0 +1,15 @@
+package ru.raiv.syncblestack;
+
+import java.util.List;
+
+/**
+ * Receives notifications collected according to a {@link BleBatchPolicy}.
+ */
+
+public interface BleNotificationBatchListener {
+    /**
+     * @param samples in arrival order, the list is owned by the listener, sample values are
+     *                shared with other listeners and read-only
+     */
+    void onNotifications(List<BleNotificationSample> samples);
+}
@@ -0,0 +1,16 @@
+package ru.raiv.syncblestack;
+
+import java.util.UUID;
+
+/**
+ * In-process receiver of characteristic notifications, registered through {@link BleBinder}.
+ * Unlike {@link BleCallbacks#onCharacteristicNotification} nothing is parcelled or broadcast.
+ */
+
+public interface BleNotificationListener {
+    /**
+     * @param value notification payload, shared with the other listeners and the broadcast
+     *              without copying, so treat it as read-only and copy it before changing it
+     */
+    void onNotification(BleDeviceInfo device, UUID service, UUID characteristic, byte[] value);
+}
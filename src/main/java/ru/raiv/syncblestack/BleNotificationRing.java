@@ -0,0 +1,224 @@
+package ru.raiv.syncblestack;
+
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Preallocated ring of notification samples for high-rate characteristics. The GATT callback
+ * copies each value into a fixed slot, the consumer drains batches into its own arrays,
+ * so no allocation happens per sample on either side.
+ * Obtained from {@link BleBinder#openNotificationRing}, only one thread may drain it.
+ */
+
+public class BleNotificationRing {
+
+    private final int capacity;
+    private final int slotSize;
+    private final byte[] data;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final BleOverflowPolicy policy;
+    private final long blockNanos;
+
+    // indexes only grow, slot is index % capacity
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    private final Object producerSync = new Object();
+    private volatile boolean producerWaiting = false;
+    private volatile boolean closed = false;
+
+    private volatile long received = 0;
+    private volatile long droppedOldest = 0;
+    private volatile long droppedNewest = 0;
+    private volatile long blockTimeouts = 0;
+    private volatile long truncated = 0;
+
+    BleNotificationRing(int capacity, int slotSize, @NonNull BleOverflowPolicy policy, long blockMillis) {
+        if(capacity <= 0 || slotSize <= 0){
+            throw new IllegalArgumentException("BleNotificationRing: capacity and slot size must be positive!");
+        }
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.data = new byte[capacity * slotSize];
+        this.lengths = new int[capacity];
+        this.timestamps = new long[capacity];
+        this.policy = policy;
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockMillis));
+    }
+
+    /**
+     * Producer side, called from GATT callbacks.
+     */
+    void offer(byte[] value, long timestamp) {
+        synchronized (producerSync) {
+            if(closed){
+                return;
+            }
+            received++;
+            long t = tail.get();
+            if(t - head.get() >= capacity){
+                switch(policy){
+                    case DROP_NEWEST:
+                        droppedNewest++;
+                        return;
+                    case DROP_OLDEST:
+                        // a failed CAS means the consumer freed the slot itself
+                        if(head.compareAndSet(t - capacity, t - capacity + 1)){
+                            droppedOldest++;
+                        }
+                        break;
+                    case BLOCK:
+                        if(!awaitSpace(t)){
+                            blockTimeouts++;
+                            return;
+                        }
+                        break;
+                }
+            }
+            int slot = (int) (t % capacity);
+            int length = value.length;
+            if(length > slotSize){
+                length = slotSize;
+                truncated++;
+            }
+            System.arraycopy(value, 0, data, slot * slotSize, length);
+            lengths[slot] = length;
+            timestamps[slot] = timestamp;
+            tail.set(t + 1);
+        }
+    }
+
+    // called with producerSync held
+    private boolean awaitSpace(long t) {
+        long deadline = System.nanoTime() + blockNanos;
+        producerWaiting = true;
+        try{
+            while(t - head.get() >= capacity){
+                long left = deadline - System.nanoTime();
+                if(left <= 0 || closed){
+                    return false;
+                }
+                producerSync.wait(TimeUnit.NANOSECONDS.toMillis(left) + 1);
+            }
+            return true;
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }finally{
+            producerWaiting = false;
+        }
+    }
+
+    /**
+     * Moves up to {@code max} samples, oldest first, into caller-owned arrays.
+     * Sample {@code i} occupies {@code values[i*getSlotSize() .. +valueLengths[i])}.
+     * @param timestampsNanos {@link System#nanoTime()} of each sample arrival, may be null
+     * @return number of samples moved
+     */
+    public int drain(@NonNull byte[] values, @NonNull int[] valueLengths, long[] timestampsNanos, int max) {
+        max = Math.min(max, Math.min(valueLengths.length, values.length / slotSize));
+        if(timestampsNanos != null){
+            max = Math.min(max, timestampsNanos.length);
+        }
+        if(max <= 0){
+            return 0;
+        }
+        while(true){
+            long h = head.get();
+            int n = (int) Math.min(tail.get() - h, max);
+            if(n <= 0){
+                return 0;
+            }
+            for(int i = 0; i < n; i++){
+                int slot = (int) ((h + i) % capacity);
+                valueLengths[i] = lengths[slot];
+                System.arraycopy(data, slot * slotSize, values, i * slotSize, lengths[slot]);
+                if(timestampsNanos != null){
+                    timestampsNanos[i] = timestamps[slot];
+                }
+            }
+            // DROP_OLDEST may have overwritten the first copied slots meanwhile
+            while(!head.compareAndSet(h, h + n)){
+                long moved = head.get() - h;
+                if(moved >= n){
+                    n = 0;
+                    break;
+                }
+                int skip = (int) moved;
+                n -= skip;
+                System.arraycopy(valueLengths, skip, valueLengths, 0, n);
+                System.arraycopy(values, skip * slotSize, values, 0, n * slotSize);
+                if(timestampsNanos != null){
+                    System.arraycopy(timestampsNanos, skip, timestampsNanos, 0, n);
+                }
+                h += skip;
+            }
+            if(n == 0){
+                continue;
+            }
+            if(producerWaiting){
+                synchronized (producerSync) {
+                    producerSync.notifyAll();
+                }
+            }
+            return n;
+        }
+    }
+
+    void close() {
+        closed = true;
+        synchronized (producerSync) {
+            producerSync.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    public BleOverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDroppedOldest() {
+        return droppedOldest;
+    }
+
+    public long getDroppedNewest() {
+        return droppedNewest;
+    }
+
+    public long getBlockTimeouts() {
+        return blockTimeouts;
+    }
+
+    /**
+     * @return total samples lost to overflow, whatever the policy
+     */
+    public long getDropped() {
+        return droppedOldest + droppedNewest + blockTimeouts;
+    }
+
+    public long getTruncated() {
+        return truncated;
+    }
+}
@@ -0,0 +1,49 @@
+package ru.raiv.syncblestack;
+
+import java.util.UUID;
+
+/**
+ * One notification collected by a batching subscription.
+ */
+
+public final class BleNotificationSample {
+    private final BleDeviceInfo device;
+    private final UUID service;
+    private final UUID characteristic;
+    private final byte[] value;
+    private final long timestamp;
+
+    BleNotificationSample(BleDeviceInfo device, UUID service, UUID characteristic, byte[] value, long timestamp) {
+        this.device = device;
+        this.service = service;
+        this.characteristic = characteristic;
+        this.value = value;
+        this.timestamp = timestamp;
+    }
+
+    public BleDeviceInfo getDevice() {
+        return device;
+    }
+
+    public UUID getService() {
+        return service;
+    }
+
+    public UUID getCharacteristic() {
+        return characteristic;
+    }
+
+    /**
+     * @return payload shared with the other listeners, read-only
+     */
+    public byte[] getValue() {
+        return value;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the notification was received
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,10 @@
+package ru.raiv.syncblestack;
+
+public enum BleOverflowPolicy {
+    // the oldest unread sample is overwritten by the new one
+    DROP_OLDEST,
+    // the new sample is discarded
+    DROP_NEWEST,
+    // the GATT callback thread waits for the consumer, up to the ring block timeout
+    BLOCK;
+}
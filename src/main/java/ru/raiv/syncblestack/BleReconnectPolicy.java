@@ -0,0 +1,90 @@
+package ru.raiv.syncblestack;
+
+/**
+ * How a device connected with autoReconnect comes back after a link loss: attempt n waits
+ * {@code min(maxDelay, initialDelay * multiplier^n)}, shortened by a random part of up to
+ * {@code jitter} of it, so devices dropped together do not reconnect together.
+ */
+
+public class BleReconnectPolicy {
+
+    private long initialDelay = 250;
+    private long maxDelay = 30000;
+    private double multiplier = 2;
+    private double jitter = 0.5;
+    private int maxAttempts = 0;
+
+    public BleReconnectPolicy setInitialDelay(long millis) {
+        if(millis < 0){
+            throw new IllegalArgumentException("BleReconnectPolicy: negative initial delay!");
+        }
+        this.initialDelay = millis;
+        return this;
+    }
+
+    public BleReconnectPolicy setMaxDelay(long millis) {
+        if(millis < 0){
+            throw new IllegalArgumentException("BleReconnectPolicy: negative max delay!");
+        }
+        this.maxDelay = millis;
+        return this;
+    }
+
+    public BleReconnectPolicy setMultiplier(double multiplier) {
+        if(multiplier < 1){
+            throw new IllegalArgumentException("BleReconnectPolicy: multiplier below 1!");
+        }
+        this.multiplier = multiplier;
+        return this;
+    }
+
+    /**
+     * @param jitter 0..1, part of the delay that is randomized
+     */
+    public BleReconnectPolicy setJitter(double jitter) {
+        if(jitter < 0 || jitter > 1){
+            throw new IllegalArgumentException("BleReconnectPolicy: jitter out of 0..1!");
+        }
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * @param attempts after this many failed attempts in a row BleConst.ERROR_RECONNECT_FAILED is reported, 0 retries forever
+     */
+    public BleReconnectPolicy setMaxAttempts(int attempts) {
+        if(attempts < 0){
+            throw new IllegalArgumentException("BleReconnectPolicy: negative max attempts!");
+        }
+        this.maxAttempts = attempts;
+        return this;
+    }
+
+    public long getInitialDelay() {
+        return initialDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    public double getMultiplier() {
+        return multiplier;
+    }
+
+    public double getJitter() {
+        return jitter;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * @param random uniformly distributed in 0..1
+     */
+    long delay(int attempt, double random) {
+        double delay = Math.min(maxDelay, initialDelay * Math.pow(multiplier, attempt));
+        return (long) (delay * (1 - jitter * random));
+    }
+}
@@ -0,0 +1,100 @@
+package ru.raiv.syncblestack;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.UUID;
+
+/**
+ * Advertisement filter. All set fields must match, a scan reports devices matching any filter.
+ * On API 21+ filters run in the controller, the legacy scanner checks them on each advertisement.
+ */
+
+public class BleScanFilter {
+
+    private UUID serviceUuid = null;
+    private String deviceName = null;
+    private String deviceAddress = null;
+    private int manufacturerId = -1;
+    private byte[] manufacturerData = null;
+
+    public BleScanFilter setServiceUuid(UUID serviceUuid) {
+        this.serviceUuid = serviceUuid;
+        return this;
+    }
+
+    public BleScanFilter setDeviceName(String deviceName) {
+        this.deviceName = deviceName;
+        return this;
+    }
+
+    public BleScanFilter setDeviceAddress(String deviceAddress) {
+        this.deviceAddress = deviceAddress;
+        return this;
+    }
+
+    /**
+     * @param data prefix the manufacturer specific data must start with, may be null
+     */
+    public BleScanFilter setManufacturer(int manufacturerId, byte[] data) {
+        if(manufacturerId < 0 || manufacturerId > 0xFFFF){
+            throw new IllegalArgumentException("BleScanFilter: manufacturer id is 16 bit!");
+        }
+        this.manufacturerId = manufacturerId;
+        this.manufacturerData = data;
+        return this;
+    }
+
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public String getDeviceAddress() {
+        return deviceAddress;
+    }
+
+    public int getManufacturerId() {
+        return manufacturerId;
+    }
+
+    public byte[] getManufacturerData() {
+        return manufacturerData;
+    }
+
+    boolean matches(BluetoothDevice device, BleAdvertisement advertisement) {
+        if(deviceAddress != null && !deviceAddress.equalsIgnoreCase(device.getAddress())){
+            return false;
+        }
+        if(serviceUuid != null && !advertisement.hasServiceUuid(serviceUuid)){
+            return false;
+        }
+        if(manufacturerId >= 0 && !matchesManufacturer(advertisement)){
+            return false;
+        }
+        return deviceName == null || deviceName.equals(device.getName());
+    }
+
+    private boolean matchesManufacturer(BleAdvertisement advertisement) {
+        int position = advertisement.findManufacturerData(manufacturerId);
+        if(position < 0){
+            return false;
+        }
+        if(manufacturerData == null){
+            return true;
+        }
+        int offset = advertisement.dataOffset(position) + 2;
+        if(advertisement.dataLength(position) - 2 < manufacturerData.length){
+            return false;
+        }
+        byte[] record = advertisement.getRecord();
+        for(int i = 0; i < manufacturerData.length; i++){
+            if(record[offset + i] != manufacturerData[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+}
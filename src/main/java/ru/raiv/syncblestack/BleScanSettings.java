@@ -0,0 +1,52 @@
+package ru.raiv.syncblestack;
+
+/**
+ * Scan parameters passed to the controller on API 21+, ignored by the legacy scanner.
+ */
+
+public class BleScanSettings {
+    // same values as android.bluetooth.le.ScanSettings
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    public static final int SCAN_MODE_BALANCED = 1;
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    private int scanMode = SCAN_MODE_LOW_LATENCY;
+    private long reportDelay = 0;
+    private boolean legacy = false;
+
+    public BleScanSettings setScanMode(int scanMode) {
+        if(scanMode < SCAN_MODE_LOW_POWER || scanMode > SCAN_MODE_LOW_LATENCY){
+            throw new IllegalArgumentException("BleScanSettings: unknown scan mode " + scanMode + "!");
+        }
+        this.scanMode = scanMode;
+        return this;
+    }
+
+    /**
+     * @param millis how long the controller may batch results before reporting, 0 reports each one
+     */
+    public BleScanSettings setReportDelay(long millis) {
+        this.reportDelay = millis;
+        return this;
+    }
+
+    /**
+     * @param legacy force BluetoothAdapter.startLeScan even where BluetoothLeScanner is available
+     */
+    public BleScanSettings setLegacy(boolean legacy) {
+        this.legacy = legacy;
+        return this;
+    }
+
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    public long getReportDelay() {
+        return reportDelay;
+    }
+
+    public boolean isLegacy() {
+        return legacy;
+    }
+}
@@ -0,0 +1,36 @@
+package ru.raiv.syncblestack;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Link used by {@link BleBlobTransfer}: a data channel for packets and a control channel for
+ * commands and the peripheral's answers. {@link BleBinder#openTransferTransport} gives one running
+ * over a characteristic pair, tests may plug an in-memory peripheral instead.
+ */
+
+public interface BleTransferTransport {
+
+    /**
+     * Prepares the link for a transfer session, called at the start of every
+     * {@link BleBlobTransfer#run}, so after a reconnect too.
+     */
+    void open() throws IOException;
+
+    /**
+     * @return largest packet the data channel carries in one piece
+     */
+    int getMaxPacketSize();
+
+    /**
+     * Sends the packets in order, returns once all of them are handed to the link.
+     */
+    void sendPackets(List<byte[]> packets) throws IOException;
+
+    void sendControl(byte[] command) throws IOException;
+
+    /**
+     * @return next message of the control channel, null if none came within {@code timeoutMillis}
+     */
+    byte[] receiveControl(long timeoutMillis) throws IOException, InterruptedException;
+}
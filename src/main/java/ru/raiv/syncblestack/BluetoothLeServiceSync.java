@@ -13,29 +13,47 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
 import android.content.Intent;
+import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import java.io.File;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
 import ru.raiv.syncblestack.tasks.BleAsyncTask;
 import ru.raiv.syncblestack.tasks.BleOperation;
 import ru.raiv.syncblestack.tasks.BleOperationFactory;
+import ru.raiv.syncblestack.tasks.BleOperationType;
 import ru.raiv.syncblestack.tasks.BleSyncTask;
 import ru.raiv.syncblestack.tasks.BleTask;
 import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
+import ru.raiv.syncblestack.tasks.BleTaskFuture;
+import ru.raiv.syncblestack.tasks.BleTaskQueue;
+import ru.raiv.syncblestack.utils.BleTrace;
+import ru.raiv.syncblestack.utils.ConvertUtils;
+import ru.raiv.syncblestack.utils.HashedTimerWheel;
+import ru.raiv.syncblestack.utils.UuidPairMap;
 
 
 /**
@@ -49,51 +67,146 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
 
     private static class BluetoothDeviceWrapper {
         volatile BluetoothGatt gatt;
+        // gatt reported STATE_CONNECTED, only then a disconnect is answered by a callback
+        boolean linkUp = false;
         volatile long scanIteration = 0;
+        // last advertisement, owned by the scan callback that delivered it
+        volatile byte[] scanRecord = null;
+        // signal statistics, written by the scan callback only
+        volatile int rssi = 0;
+        volatile float smoothedRssi = 0;
+        volatile int rssiSamples = 0;
+        // smoothed RSSI of the last delta update
+        volatile int reportedRssi = 0;
+        volatile long lastSeen = 0;
+        // record in the persistent device cache, -1 if the device is not there
+        volatile int cacheSlot = -1;
+
+        void onAdvertisement(byte[] record, int sample, float alpha){
+            scanRecord = record;
+            rssi = sample;
+            smoothedRssi = rssiSamples == 0 ? sample : smoothedRssi + alpha * (sample - smoothedRssi);
+            rssiSamples++;
+            lastSeen = SystemClock.elapsedRealtime();
+        }
+
+        // broadcasts leave the record out, it is parcelled with every list otherwise
+        BleDeviceInfo scanInfo(boolean withRecord){
+            return new BleDeviceInfo(device.getName(),device.getAddress(),withRecord?scanRecord:null,rssi,smoothedRssi,rssiSamples,lastSeen);
+        }
         volatile boolean isReady = false;
         volatile boolean autoReconnect = true;// default behaviour;
         volatile BluetoothDevice device = null;
+        // operation pipeline of this connection, guarded by the wrapper itself
+        final BleTaskQueue taskQueue = new BleTaskQueue();
+        BleTaskFuture currentFuture = null;
+        BleTask currentTask = null;
+        boolean inJob = false;
+        final OperationPipeline pipeline = new OperationPipeline();
+        // watchdog timeouts, a bumped sequence invalidates an operation timeout that already fired
+        HashedTimerWheel.Timeout operationTimeout = null;
+        HashedTimerWheel.Timeout taskTimeout = null;
+        long operationSequence = 0;
+        // set for connections only, scan results do not need them
+        CharacteristicCache cache = null;
+        NotificationReassembler reassembly = null;
+        volatile int mtu = DEFAULT_MTU;
+        HashedTimerWheel.Timeout mtuTimeout = null;
+        ConnectionPriorityManager priorityManager = null;
+        // handed to in-process listeners, so notifications do not allocate it
+        volatile BleDeviceInfo info = null;
+        final GattHandleCache handles = new GattHandleCache();
+        // reconnect engine: a disconnected but still registered gatt to revive with connect()
+        BluetoothGatt idleGatt = null;
+        boolean wantConnected = false;
+        int reconnectAttempt = 0;
+        HashedTimerWheel.Timeout reconnectTimeout = null;
+        HashedTimerWheel.Timeout idleTimeout = null;
+        // warm connect() waits like autoConnect, this falls back to a direct connection
+        HashedTimerWheel.Timeout connectTimeout = null;
+        // System.nanoTime() the current request was issued
+        long operationStart = 0;
     };
 
+    /**
+     * In-process connection events, called from GATT callbacks, possibly with service locks held.
+     */
+    interface ConnectionStateListener {
+        /**
+         * @param ready true once services are discovered, false when the link is lost or could not be made
+         */
+        void onConnectionStateChanged(String address, boolean ready);
+    }
+
     // Device scan callback.
-    private class LeScanCallback implements BluetoothAdapter.LeScanCallback {
+    private class ScanSink implements ScanBackend.Sink {
 
         @Override
-        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord) {
-            if(isScanning()) {// on Zuk z2 scan does not stops immediately?!?
-            boolean notExists = true;
-            boolean needUpdate = false;
-            synchronized (gattSync) {
-
-                for (BluetoothDeviceWrapper found : foundDevices) {
-                    if (device.getAddress().equals(found.device.getAddress())) {
-                            String devname = found.device.getName();
-                            if ((devname == null) || !devname.equals(device.getName())) {
-                                found.device = device;
-                        }
-                        if (found.scanIteration < scanIteration) {
-                            found.scanIteration = scanIteration;
-                            needUpdate = true;
+        public void onScanFailed(final ScanBackend backend, int errorCode) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (gattSync) {
+                        if (currentScan != backend) {
+                            return;
                         }
-                        notExists = false;
-
-                        break;
+                        Log.w(TAG, myNum() + "offloaded scan failed, falling back to legacy scan");
+                        startScan(new BleScanSettings().setLegacy(true));
                     }
                 }
-            }
-            if (notExists) {
-                needUpdate = true;
+            });
+        }
+
+        @Override
+        public void onScanResult(final BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if(isScanning()) {// on Zuk z2 scan does not stops immediately?!?
+            boolean needUpdate = false;
+            long key = ConvertUtils.macToLong(device.getAddress());
+            BluetoothDeviceWrapper found = foundDevices.get(key);
+            if (found == null) {
                 BluetoothDeviceWrapper wrapper = new BluetoothDeviceWrapper();
                 wrapper.device = device;
                 wrapper.scanIteration = scanIteration;
-                synchronized (gattSync) {
-                    foundDevices.add(wrapper);
-                }
-
+                wrapper.onAdvertisement(scanRecord, rssi, rssiSmoothing);
+                wrapper.reportedRssi = rssi;
+                wrapper.cacheSlot = deviceCache.slotOf(key);
+                found = foundDevices.putIfAbsent(key, wrapper);
+                if (found == null) {
+                    needUpdate = true;
                     Log.d(TAG, myNum() + "Le device added to processing");
-
+                    if (deviceDeltaUpdates) {
+                        onDeviceChanged(key, wrapper, true);
+                    }
+                }
             }
-            if (needUpdate) {
+            if (found != null) {
+                found.onAdvertisement(scanRecord, rssi, rssiSmoothing);
+                if (found.cacheSlot >= 0) {
+                    deviceCache.updateSignal(found.cacheSlot, key, rssi, System.currentTimeMillis());
+                }
+                String devname = found.device.getName();
+                String newName = device.getName();
+                if ((devname == null) || !devname.equals(newName)) {
+                    found.device = device;
+                    if (newName != null) {
+                        needUpdate = true;
+                    }
+                }
+                if (found.scanIteration < scanIteration) {
+                    found.scanIteration = scanIteration;
+                    needUpdate = true;
+                }
+                if (deviceDeltaUpdates) {
+                    int smoothed = Math.round(found.smoothedRssi);
+                    if (Math.abs(smoothed - found.reportedRssi) >= RSSI_UPDATE_STEP) {
+                        found.reportedRssi = smoothed;
+                        onDeviceChanged(key, found, false);
+                    } else if (needUpdate) {
+                        onDeviceChanged(key, found, false);
+                    }
+                }
+            }
+            if (needUpdate && !deviceDeltaUpdates) {
                 broadcastDeviceList();
             }
         }
@@ -107,16 +220,60 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
     private volatile BluetoothManager mBluetoothManager;
     private volatile BluetoothAdapter mBluetoothAdapter;
     private static final long SCAN_PERIOD = 30000;
+    private static final long WATCHDOG_TICK = 10;
+    private static final int DEFAULT_MTU = 23;
+    private static final int ATT_HEADER = 3;
+    private static final long MTU_TIMEOUT = 2000;
+    private static final int WATCHDOG_WHEEL_SIZE = 512;
+    private static final long DEFAULT_DEVICE_CHANGES_INTERVAL = 500;
+    // stack needs a moment after disconnect() before close() is safe
+    private static final long CLOSE_DELAY = 100;
+    // how long a revived idle gatt may take to connect
+    private static final long WARM_CONNECT_TIMEOUT = 5000;
+    // GATT_ERROR, the infamous 133
+    private static final int GATT_ERROR = 0x85;
+    private static final float DEFAULT_RSSI_SMOOTHING = 0.25f;
+    // smoothed RSSI change, dBm, reported as an update in delta mode
+    private static final int RSSI_UPDATE_STEP = 3;
+    private static final int DEVICE_CACHE_CAPACITY = 64;
+    private static final String DEVICE_CACHE_FILE = "ble_devices.cache";
     private volatile boolean mScanning = false;
     private volatile boolean continousScanning = true;
     private Handler mHandler;
-    private final Queue<BleTask> taskQueue = new ConcurrentLinkedQueue<BleTask>();
+    private final HashedTimerWheel watchdog = new HashedTimerWheel("BleWatchdog", WATCHDOG_TICK, WATCHDOG_WHEEL_SIZE);
 
     private final Object gattSync=new Object();
-    private volatile BluetoothDeviceWrapper currentGatt=null;
-    private final List<BluetoothDeviceWrapper> foundDevices=Collections.synchronizedList(new ArrayList<BluetoothDeviceWrapper>());
-    private final List<BluetoothDeviceWrapper> prevFoundDevices=Collections.synchronizedList(new ArrayList<BluetoothDeviceWrapper>());
-    private volatile LeScanCallback currentScan = null;
+    // live connections, keyed by device address
+    private final Map<String,BluetoothDeviceWrapper> connections = new ConcurrentHashMap<>();
+    // scan results keyed by ConvertUtils.macToLong(address)
+    private final ConcurrentHashMap<Long,BluetoothDeviceWrapper> foundDevices = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long,BluetoothDeviceWrapper> prevFoundDevices = new ConcurrentHashMap<>();
+    // device list changes not yet reported in delta mode, guarded by deviceChangesSync
+    private final Object deviceChangesSync = new Object();
+    private final Map<Long,BluetoothDeviceWrapper> addedDevices = new LinkedHashMap<>();
+    private final Map<Long,BluetoothDeviceWrapper> updatedDevices = new LinkedHashMap<>();
+    private final Map<Long,BluetoothDeviceWrapper> removedDevices = new LinkedHashMap<>();
+    private boolean deviceChangesScheduled = false;
+    private long lastDeviceChanges = 0;
+    private volatile boolean deviceDeltaUpdates = false;
+    private volatile long deviceChangesInterval = DEFAULT_DEVICE_CHANGES_INTERVAL;
+    private volatile ScanBackend currentScan = null;
+    private final ScanSink scanSink = new ScanSink();
+    private volatile List<BleScanFilter> scanFilters = Collections.emptyList();
+    private volatile BleScanSettings scanSettings = new BleScanSettings();
+    private volatile float rssiSmoothing = DEFAULT_RSSI_SMOOTHING;
+    private volatile BleTaskQueue.Policy queuePolicy = BleTaskQueue.Policy.STRICT;
+    private volatile int[] queueWeights = BleTaskQueue.DEFAULT_WEIGHTS;
+    private volatile int queueStarvationLimit = BleTaskQueue.DEFAULT_STARVATION_LIMIT;
+    private final CharacteristicCache.Policies cachePolicies = new CharacteristicCache.Policies();
+    private volatile int targetMtu = DEFAULT_MTU;
+    private final UuidPairMap<Boolean> reassembledCharacteristics = new UuidPairMap<>();
+    private volatile BleConnectionPriorityPolicy priorityPolicy = null;
+    private final NotificationDispatcher notificationDispatcher = new NotificationDispatcher();
+    private final MetricsCollector metrics = new MetricsCollector();
+    private volatile boolean notificationBroadcasts = true;
+    private PersistentDeviceCache deviceCache;
+    private final List<ConnectionStateListener> connectionStateListeners = new CopyOnWriteArrayList<>();
 
 
     @Override
@@ -125,6 +282,14 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
         instanceNumCount++;
         instanceNum=instanceNumCount;
         initialize();
+        deviceCache = new PersistentDeviceCache(new File(getFilesDir(),DEVICE_CACHE_FILE),DEVICE_CACHE_CAPACITY);
+        // map the file off the main thread, a caller coming first opens it itself
+        disconnectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deviceCache.open();
+            }
+        });
 
     }
 
@@ -143,6 +308,19 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
     public void onDestroy() {
         super.onDestroy();
         close();
+        watchdog.stop();
+        // the stopped watchdog drops the delayed closes, leaked gatts keep their client slots
+        closePendingGatts();
+        deviceCache.close();
+    }
+
+    @Nullable
+    private BluetoothDeviceWrapper connectionFor(BluetoothGatt gatt){
+        BluetoothDeviceWrapper connection = connections.get(gatt.getDevice().getAddress());
+        if(connection!=null && gatt.equals(connection.gatt)){
+            return connection;
+        }
+        return null;
     }
 
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
@@ -152,87 +330,166 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
 
             if (newState == BluetoothProfile.STATE_CONNECTED) {
                 synchronized (gattSync) {
-                    if (gatt.getDevice().getAddress().equals(currentGatt.device.getAddress())) {
+                    // an abandoned gatt is being closed already
+                    BluetoothDeviceWrapper connection = connectionFor(gatt);
+                    if (connection!=null) {
                         if(status==BluetoothGatt.GATT_SUCCESS) {
                             Log.i(TAG, myNum() + "Connected to GATT server.");
-                            currentGatt.gatt = gatt;
-                            currentGatt.gatt.discoverServices();
+                            trace(BleTrace.CONNECT,connection,null,status,0);
+                            connection.reconnectAttempt = 0;
+                            cancelConnectTimeout(connection);
+                            connection.gatt = gatt;
+                            connection.linkUp = true;
+                            connection.gatt.discoverServices();
                         }else{
+                            cancelConnectTimeout(connection);
                             disconnectGatt(gatt);
-                            broadcastGattError(gatt,status);
+                            if(connection.gatt==gatt){
+                                connection.gatt = null;
+                            }
+                            broadcastGattError(connection,status);
+                            notifyConnectionState(connection,false);
+                            if(connection.autoReconnect){
+                                scheduleReconnect(connection);
+                            }
                         }
                     }
                 }
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                BluetoothDeviceWrapper lost = null;
                 synchronized (gattSync) {
-                    if (gatt.equals(currentGatt.gatt)) {
-                        if(!currentGatt.autoReconnect) {
-                            gatt.close();
-                            refreshDeviceCache(gatt);
+                    BluetoothDeviceWrapper connection = connectionFor(gatt);
+                    if (connection!=null) {
+                        lost = connection;
+                        if(!connection.autoReconnect) {
+                            closeGatt(gatt);
+                            connections.remove(connection.device.getAddress());
+                        }else if(status==GATT_ERROR || !connection.wantConnected){
+                            // the stack is in trouble or nobody waits for the device: start from scratch next time
+                            closeGatt(gatt);
+                        }else{
+                            connection.idleGatt = gatt;
                         }
-                        currentGatt.gatt = null;
-                        currentGatt.isReady=false;
-                        broadcastDeviceState(BleConst.ACTION_DEVICE_DISCONNECTED);
-                        if (inJob){
-                            finishTask();
+                        connection.gatt = null;
+                        connection.linkUp = false;
+                        connection.isReady=false;
+                        trace(BleTrace.DISCONNECT,connection,null,status,0);
+                        synchronized (connection) {
+                            connection.cache.onDisconnect();
+                            connection.reassembly.clear();
+                            connection.handles.clear();
+                            connection.mtu = DEFAULT_MTU;
+                            connection.priorityManager.reset();
+                            connection.pipeline.onDisconnect();
+                        }
+                        broadcastDeviceState(connection,BleConst.ACTION_DEVICE_DISCONNECTED);
+                        notifyConnectionState(connection,false);
+                        if(connection.autoReconnect){
+                            scheduleReconnect(connection);
                         }
                         Log.i(TAG, myNum() + "Disconnected from GATT server.");
                     }
                 }
+                if(lost!=null){
+                    // fails the running task and everything still queued for this device,
+                    // outside the service locks as future listeners may run right here
+                    finishTask(lost);
+                }
             }
         }
 
         @Override
         public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            BluetoothDeviceWrapper ready = null;
             synchronized (gattSync) {
-                if (gatt.equals(currentGatt.gatt) ) {
+                BluetoothDeviceWrapper connection = connectionFor(gatt);
+                if (connection!=null) {
                     if(status == BluetoothGatt.GATT_SUCCESS) {
-                        currentGatt.isReady=true;
-                        broadcastDeviceState(BleConst.ACTION_DEVICE_CONNECTED);
-                        doJob();
+                        connection.handles.build(gatt);
+                        int mtu = targetMtu;
+                        if(mtu>DEFAULT_MTU && Build.VERSION.SDK_INT>=Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(mtu)){
+                            // ready once the MTU is agreed, or after a while if the stack never answers
+                            final BluetoothDeviceWrapper negotiating = connection;
+                            final BluetoothGatt negotiatingGatt = gatt;
+                            connection.mtuTimeout = watchdog.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    onConnectionReady(negotiating,negotiatingGatt);
+                                }
+                            },MTU_TIMEOUT);
+                        }else {
+                            ready = connection;
+                        }
                     }else{
-                        broadcastGattError(gatt,status);
+                        broadcastGattError(connection,status);
                     }
                 }else{
                   //  broadcastDeviceState(ACTION_DEVICE_CONNECTED);
                 }
             }
+            if(ready!=null){
+                // starts the queued tasks, keep service locks out of it
+                onConnectionReady(ready,gatt);
+            }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.d(TAG,myNum()+ characteristic.getUuid().toString()+" onCharacteristicRead status: " + status);
-            if(gatt.equals(currentGatt.gatt)){
-                if(status == BluetoothGatt.GATT_SUCCESS) {
-                    finishRW(characteristic);
-                }else{
-                    broadcastGattError(gatt,status);
-                    finishTask();
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            BluetoothDeviceWrapper connection = connectionFor(gatt);
+            if(connection!=null){
+                if(status == BluetoothGatt.GATT_SUCCESS){
+                    connection.mtu = mtu;
                 }
+                Log.i(TAG, myNum() + "MTU "+connection.mtu);
+                onConnectionReady(connection,gatt);
+            }
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            BluetoothDeviceWrapper connection = connectionFor(gatt);
+            if(connection!=null){
+                trace(BleTrace.CALLBACK,connection,characteristic.getUuid(),status,BleOperationType.READ.ordinal());
+                finishRW(connection,characteristic,status);
             }
         }
 
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.d(TAG,myNum()+ characteristic.getUuid().toString()+" onCharacteristicWrite status: " + status);
-            if(gatt.equals(currentGatt.gatt)){
-                if(status == BluetoothGatt.GATT_SUCCESS) {
-                    finishRW(characteristic);
-                }else{
-                    broadcastGattError(gatt,status);
-                    finishTask();
-                }
+            BluetoothDeviceWrapper connection = connectionFor(gatt);
+            if(connection!=null){
+                trace(BleTrace.CALLBACK,connection,characteristic.getUuid(),status,BleOperationType.WRITE.ordinal());
+                finishRW(connection,characteristic,status);
             }
 
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.d(TAG,myNum()+ characteristic.getUuid().toString()+" onCharacteristicChange");
-            if(gatt.equals(currentGatt.gatt)){
-                BleOperation operation = BleOperationFactory.getListenOperation(characteristic.getService().getUuid(),characteristic.getUuid());
-                operation.setValue(characteristic.getValue());
-                operation.setSucceed(true);
-                broadcastCharacteristicNotification(operation);
+            BluetoothDeviceWrapper connection = connectionFor(gatt);
+            if(connection!=null){
+                UUID service = characteristic.getService().getUuid();
+                byte[] value = characteristic.getValue();
+                trace(BleTrace.NOTIFICATION,connection,characteristic.getUuid(),value!=null?value.length:0,0);
+                boolean reassembled = reassembledCharacteristics.get(service,characteristic.getUuid())!=null;
+                if(reassembled || !cachePolicies.isEmpty()) {
+                    synchronized (connection) {
+                        connection.cache.invalidate(service, characteristic.getUuid());
+                        if (reassembled) {
+                            value = connection.reassembly.add(service, characteristic.getUuid(), value, connection.mtu - ATT_HEADER);
+                        }
+                    }
+                    if (value == null) {
+                        // more fragments to come
+                        return;
+                    }
+                }
+                notificationDispatcher.dispatch(connection.info,service,characteristic.getUuid(),value);
+                if(notificationBroadcasts) {
+                    BleOperation operation = BleOperationFactory.getListenOperation(service, characteristic.getUuid());
+                    operation.setValue(value);
+                    operation.setSucceed(true);
+                    broadcastCharacteristicNotification(connection, operation);
+                }
             }
         }
 
@@ -241,213 +498,727 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
             super.onDescriptorWrite(gatt, descriptor, status);
-            if(gatt.equals(currentGatt.gatt)) {
-                if (status == BluetoothGatt.GATT_SUCCESS) {
-                    finishNotification();
-                } else {
-                    broadcastGattError(gatt,status);
-                    finishTask();
-                }
+            BluetoothDeviceWrapper connection = connectionFor(gatt);
+            if(connection!=null) {
+                trace(BleTrace.CALLBACK,connection,descriptor.getCharacteristic().getUuid(),status,BleOperationType.LISTEN.ordinal());
+                finishNotification(connection,descriptor.getCharacteristic(),status);
             }
         }
     };
     private ExecutorService syncTaskExecutor = Executors.newSingleThreadExecutor();
     private ExecutorService disconnectExecutor = Executors.newSingleThreadExecutor();
-    void addTask(BleTask task){
-        synchronized (gattSync){
-            if(currentGatt!=null && currentGatt.gatt!=null && currentGatt.isReady){
-                taskQueue.add(task);
-                if(task.isSync()) {
-                   // BleSyncTask bst = (BleSyncTask)task;
-                    syncTaskExecutor.execute(new Runnable() {
+    private volatile BleReconnectPolicy reconnectPolicy = null;
+    private final Random reconnectRandom = new Random();
+    /**
+     * Queues the task on the device connection. Sync tasks block until they are done,
+     * async ones return at once; either way the returned future tracks completion.
+     */
+    BleTaskFuture addTask(String deviceAddress, final BleTask task){
+        final BluetoothDeviceWrapper connection = deviceAddress!=null?connections.get(deviceAddress):null;
+        final BleTaskFuture future = new BleTaskFuture(task);
+        boolean accepted = false;
+        if(connection!=null) {
+            synchronized (connection) {
+                if (connection.gatt != null && connection.isReady) {
+                    connection.taskQueue.add(future);
+                    metrics.onQueueDepth(deviceAddress,connection.taskQueue.size());
+                    trace(BleTrace.ENQUEUE,connection,null,connection.taskQueue.size(),0);
+                    connection.priorityManager.onTaskQueued(task);
+                    updateConnectionPriority(connection);
+                    accepted = true;
+                }
+            }
+        }
+        if(accepted){
+            future.setCancelHook(new Runnable() {
+                @Override
+                public void run() {
+                    cancelTask(connection,future);
+                }
+            });
+        }else{
+            while(task.hasNext()){
+                BleOperation op = task.next();
+                op.setSucceed(false);
+            }
+            if((!task.isSync())&&(task instanceof BleAsyncTask)){
+                final BleAsyncTask asyncTask=((BleAsyncTask) task);
+                final BleTaskCompleteCallback cb =asyncTask.getCallback();
+                if(cb!=null) {
+                    ((BleAsyncTask) task).callbackHandler().post(new Runnable() {
                         @Override
                         public void run() {
-                            doJob();
+                                cb.onTaskComplete(asyncTask);
                         }
                     });
-                }else{
-                    doJob();
-                }
-
-            }else{
-                while(task.hasNext()){
-                    BleOperation op = task.next();
-                    op.setSucceed(false);
-                }
-                if((!task.isSync())&&(task instanceof BleAsyncTask)){
-                    final BleAsyncTask asyncTask=((BleAsyncTask) task);
-                    final BleTaskCompleteCallback cb =asyncTask.getCallback();
-                    if(cb!=null) {
-                        ((BleAsyncTask) task).callbackHandler().post(new Runnable() {
-                            @Override
-                            public void run() {
-                                    cb.onTaskComplete(asyncTask);
-                            }
-                        });
-                    }
                 }
-                return;
             }
+            future.complete();
+            return future;
         }
         if(task.isSync()) {
-            BleSyncTask bst = (BleSyncTask) task;
-            synchronized (bst.getSyncObject()) {
-                try {
-                    bst.getSyncObject().wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            syncTaskExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    doJob(connection);
                 }
+            });
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (CancellationException e) {
+                // cancelled from another thread, nothing to wait for
+            }
+        }else{
+            doJob(connection);
+        }
+        return future;
+    }
+
+    private void cancelTask(BluetoothDeviceWrapper connection, BleTaskFuture future){
+        boolean removed;
+        synchronized (connection){
+            removed = connection.taskQueue.remove(future);
+            if(removed){
+                connection.priorityManager.onTaskFinished(future.getTask());
+                metrics.onQueueDepth(connection.device.getAddress(),connection.taskQueue.size());
+            }
+        }
+        if(removed){
+            BleTask task = future.getTask();
+            while(task.hasNext()){
+                task.next().setSucceed(false);
             }
+            task.reset();
+            notifyTaskComplete(task);
         }
+        // a running task is stopped by doJob before its next operation
+    }
 
+    void setQueuePolicy(BleTaskQueue.Policy policy, int[] weights, int starvationLimit){
+        BleTaskQueue.checkWeights(weights);
+        synchronized (gattSync) {
+            for(BluetoothDeviceWrapper connection:connections.values()){
+                connection.taskQueue.configure(policy,weights,starvationLimit);
+            }
+            queuePolicy=policy;
+            queueWeights=weights.clone();
+            queueStarvationLimit=starvationLimit;
+        }
     }
 
-    void disconnectDevice(String deviceAddress){
+    void setCachePolicy(UUID service, UUID characteristic, BleCachePolicy policy, long ttlMillis){
+        cachePolicies.set(service,characteristic,policy,ttlMillis);
+    }
+
+    void setConnectionPriorityPolicy(@Nullable BleConnectionPriorityPolicy policy){
+        priorityPolicy = policy;
+    }
+
+    // must be called with connection locked
+    private void updateConnectionPriority(final BluetoothDeviceWrapper connection){
+        BleConnectionPriorityPolicy policy = priorityPolicy;
+        if(policy==null || connection.gatt==null || !connection.isReady || Build.VERSION.SDK_INT<Build.VERSION_CODES.LOLLIPOP){
+            return;
+        }
+        int depth = connection.taskQueue.size()+(connection.currentTask!=null?1:0);
+        int priority = connection.priorityManager.evaluate(policy,depth,SystemClock.elapsedRealtime());
+        if(priority>=0){
+            connection.gatt.requestConnectionPriority(priority);
+        }
+        if(depth>0){
+            if(connection.idleTimeout!=null){
+                connection.idleTimeout.cancel();
+                connection.idleTimeout=null;
+            }
+        }else if(connection.idleTimeout==null && connection.priorityManager.isHigh()){
+            // check again once the idle period is over
+            connection.idleTimeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (connection){
+                        connection.idleTimeout=null;
+                        updateConnectionPriority(connection);
+                    }
+                }
+            },policy.getIdleTimeout());
+        }
+    }
+
+    void addNotificationListener(BleNotificationListener listener, @Nullable Executor executor,
+                                 @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic){
+        notificationDispatcher.addListener(listener,executor,address,service,characteristic);
+    }
+
+    void addNotificationListener(BleNotificationBatchListener listener, @Nullable Executor executor, BleBatchPolicy policy,
+                                 @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic){
+        notificationDispatcher.addBatchListener(listener,executor,policy,watchdog,address,service,characteristic);
+    }
+
+    void removeNotificationListener(BleNotificationBatchListener listener){
+        notificationDispatcher.remove(listener);
+    }
+
+    BleNotificationRing openNotificationRing(@Nullable String address, @Nullable UUID service, @Nullable UUID characteristic,
+                                             int capacity, int slotSize, BleOverflowPolicy policy, long blockMillis){
+        BleNotificationRing ring = new BleNotificationRing(capacity,slotSize,policy,blockMillis);
+        notificationDispatcher.addRing(ring,address,service,characteristic);
+        return ring;
+    }
+
+    void closeNotificationRing(BleNotificationRing ring){
+        notificationDispatcher.remove(ring);
+    }
+
+    void removeNotificationListener(BleNotificationListener listener){
+        notificationDispatcher.remove(listener);
+    }
+
+    BleTransferTransport openTransferTransport(String address, UUID service, UUID data, UUID control){
+        GattTransferTransport transport = new GattTransferTransport(this,address,service,data,control);
+        if(address!=null){
+            // a null address would subscribe to the control notifications of every device
+            notificationDispatcher.addListener(transport,null,address,service,control);
+        }
+        return transport;
+    }
+
+    void closeTransferTransport(BleTransferTransport transport){
+        if(transport instanceof GattTransferTransport){
+            notificationDispatcher.remove(transport);
+        }
+    }
+
+    BleMetricsSnapshot getMetrics(){
+        return metrics.snapshot();
+    }
+
+    void resetMetrics(){
+        metrics.reset();
+    }
+
+    void setNotificationBroadcasts(boolean enable){
+        notificationBroadcasts = enable;
+    }
+
+    void setTargetMtu(int mtu){
+        targetMtu = mtu;
+    }
+
+    void setNotificationReassembly(UUID service, UUID characteristic, boolean enable){
+        if(enable){
+            reassembledCharacteristics.put(service,characteristic,Boolean.TRUE);
+        }else{
+            reassembledCharacteristics.remove(service,characteristic);
+        }
+    }
+
+    private void onConnectionReady(BluetoothDeviceWrapper connection, BluetoothGatt gatt){
         synchronized (gattSync){
-            if(currentGatt!=null && currentGatt.device!=null && currentGatt.device.getAddress().equals(deviceAddress)) {
-                close();
+            if(connection.gatt!=gatt || connection.isReady){
+                return;
+            }
+            if(connection.mtuTimeout!=null){
+                connection.mtuTimeout.cancel();
+                connection.mtuTimeout=null;
             }
+            connection.isReady=true;
+            broadcastDeviceState(connection,BleConst.ACTION_DEVICE_CONNECTED);
+        }
+        rememberDevice(connection,gatt);
+        notifyConnectionState(connection,true);
+        doJob(connection);
+    }
+
+    private void notifyConnectionState(BluetoothDeviceWrapper connection, boolean ready){
+        for(ConnectionStateListener listener:connectionStateListeners){
+            listener.onConnectionStateChanged(connection.device.getAddress(),ready);
         }
     }
 
+    void addConnectionStateListener(ConnectionStateListener listener){
+        connectionStateListeners.add(listener);
+    }
+
+    void removeConnectionStateListener(ConnectionStateListener listener){
+        connectionStateListeners.remove(listener);
+    }
+
+    boolean hasConnection(String address){
+        BluetoothDeviceWrapper connection = connections.get(address);
+        return connection!=null && (connection.gatt!=null || connection.idleGatt!=null);
+    }
+
+    boolean isConnectionReady(String address){
+        BluetoothDeviceWrapper connection = connections.get(address);
+        return connection!=null && connection.gatt!=null && connection.isReady;
+    }
+
+    // largest value written in one packet
+    int getMaxWriteLength(String address){
+        BluetoothDeviceWrapper connection = address!=null?connections.get(address):null;
+        return (connection!=null?connection.mtu:DEFAULT_MTU)-ATT_HEADER;
+    }
+
+    BleFleetJob runFleetJob(BleTask template, Collection<BleDeviceInfo> targets, BleFleetConfig config, @Nullable BleFleetListener listener){
+        BleFleetJob job = new BleFleetJob(this,mHandler,template,targets,config,listener);
+        job.start();
+        return job;
+    }
+
+    private void rememberDevice(BluetoothDeviceWrapper connection, BluetoothGatt gatt){
+        String address = connection.device.getAddress();
+        long key = ConvertUtils.macToLong(address);
+        BluetoothDeviceWrapper scanned = foundDevices.get(key);
+        if(scanned==null){
+            scanned = prevFoundDevices.get(key);
+        }
+        int rssi = 0;
+        if(scanned!=null && scanned.rssiSamples>0){
+            rssi = scanned.rssi;
+        }else{
+            PersistentDeviceCache.Entry known = deviceCache.get(address);
+            if(known!=null){
+                rssi = known.rssi;
+            }
+        }
+        ArrayList<UUID> services = new ArrayList<>();
+        List<BluetoothGattService> discovered = gatt.getServices();
+        if(discovered!=null){
+            for(BluetoothGattService service:discovered){
+                services.add(service.getUuid());
+            }
+        }
+        int slot = deviceCache.store(address,connection.info.getName(),rssi,System.currentTimeMillis(),services);
+        if(scanned!=null){
+            scanned.cacheSlot = slot;
+        }
+    }
 
+    /**
+     * @return devices connected before, also across restarts. Last seen is converted to the
+     * {@link SystemClock#elapsedRealtime()} base and may be negative for devices seen before boot.
+     * The stored RSSI counts as one sample, devices stored without one have no samples.
+     */
+    BleDeviceInfo[] getKnownDevices(){
+        List<PersistentDeviceCache.Entry> entries = deviceCache.entries();
+        BleDeviceInfo[] result = new BleDeviceInfo[entries.size()];
+        long shift = System.currentTimeMillis()-SystemClock.elapsedRealtime();
+        for(int i=0;i<result.length;i++){
+            PersistentDeviceCache.Entry entry = entries.get(i);
+            // 0 is what store() gets for a device never scanned, real RSSI is negative
+            int samples = entry.rssi!=0?1:0;
+            result[i] = new BleDeviceInfo(entry.name,entry.address,null,entry.rssi,entry.rssi,samples,entry.lastSeen-shift);
+        }
+        return result;
+    }
 
     @Nullable
-    private BluetoothGattCharacteristic findCharacteristic(BluetoothGatt gatt, BleOperation operation){
-        BluetoothGattService service =gatt.getService(operation.getService());
-        if(service!=null){
-            return service.getCharacteristic(operation.getCharacteristic());
+    UUID[] getKnownServices(String address){
+        PersistentDeviceCache.Entry entry = deviceCache.get(address);
+        return entry!=null?entry.services:null;
+    }
+
+    void forgetDevice(String address){
+        deviceCache.remove(address);
+        BluetoothDeviceWrapper scanned = foundDevices.get(ConvertUtils.macToLong(address));
+        if(scanned!=null){
+            scanned.cacheSlot = -1;
+        }
+    }
+
+    private static byte[] fragment(byte[] value, int start, int end){
+        if(value==null || (start==0 && end==value.length)){
+            return value;
+        }
+        return Arrays.copyOfRange(value,start,end);
+    }
+
+    void disconnectDevice(String deviceAddress){
+        synchronized (gattSync){
+            BluetoothDeviceWrapper connection = connections.get(deviceAddress);
+            if(connection!=null) {
+                disconnect(connection);
+            }
         }
-        return null;
     }
 
 
-    private void finishTask(){
-        inJob=false;
-        synchronized (gattSync) {
-            BleTask task=taskQueue.poll();
+
+
+    private void finishTask(BluetoothDeviceWrapper connection){
+        completeTask(connection);
+        doJob(connection);
+    }
+
+    // completes the current task without starting the next one
+    private void completeTask(BluetoothDeviceWrapper connection){
+        BleTask task;
+        BleTaskFuture future;
+        synchronized (connection) {
+            task=connection.currentTask;
+            future=connection.currentFuture;
+            connection.currentTask=null;
+            connection.currentFuture=null;
+            connection.inJob=false;
+            if(task!=null){
+                connection.priorityManager.onTaskFinished(task);
+            }
+            disarmOperationTimeout(connection);
+            if(connection.taskTimeout!=null){
+                connection.taskTimeout.cancel();
+                connection.taskTimeout=null;
+            }
+            connection.pipeline.abandon();
+        }
+        if(task!=null) {
+            long elapsed = System.nanoTime()-future.getSubmitNanos();
+            boolean succeeded = task.allSucceed();
+            metrics.onTaskFinished(connection.device.getAddress(),elapsed,succeeded);
+            trace(BleTrace.COMPLETE,connection,null,succeeded?1:0,(int)Math.min(Integer.MAX_VALUE,elapsed/1000));
             task.reset();
-            if(task instanceof BleSyncTask){
-                BleSyncTask syncTask = (BleSyncTask)task;
-                synchronized (syncTask.getSyncObject()){
-                    syncTask.getSyncObject().notifyAll();
-                }
-            }else if(task instanceof BleAsyncTask){
-                final BleAsyncTask asyncTask = (BleAsyncTask)task;
-                Handler callbackHandler = asyncTask.callbackHandler();
-                if(callbackHandler==null && asyncTask.getCallback()!=null){
-                    callbackHandler=mHandler;
-                }
-                if(callbackHandler!=null) {
-                    callbackHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            BleTaskCompleteCallback callback = asyncTask.getCallback();
-                            if (callback != null) {
-                                callback.onTaskComplete(asyncTask);
-                            }
+            future.complete();
+            notifyTaskComplete(task);
+        }
+    }
+
+    private void notifyTaskComplete(BleTask task){
+        if(task instanceof BleSyncTask){
+            BleSyncTask syncTask = (BleSyncTask)task;
+            synchronized (syncTask.getSyncObject()){
+                syncTask.getSyncObject().notifyAll();
+            }
+        }else if(task instanceof BleAsyncTask){
+            final BleAsyncTask asyncTask = (BleAsyncTask)task;
+            Handler callbackHandler = asyncTask.callbackHandler();
+            if(callbackHandler==null && asyncTask.getCallback()!=null){
+                callbackHandler=mHandler;
+            }
+            if(callbackHandler!=null) {
+                final long completed = System.nanoTime();
+                callbackHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        metrics.onCallbackDispatched(System.nanoTime()-completed);
+                        BleTaskCompleteCallback callback = asyncTask.getCallback();
+                        if (callback != null) {
+                            callback.onTaskComplete(asyncTask);
                         }
-                    });
-                }
+                    }
+                });
             }
         }
-        doJob();
     }
 
 
-    private void finishRW(BluetoothGattCharacteristic characteristic){
-        BleTask task = null;
-        synchronized (gattSync) {
-            task = taskQueue.peek();
+    private void finishRW(BluetoothDeviceWrapper connection,BluetoothGattCharacteristic characteristic,int status){
+        BleTask task;
+        boolean failed = status!=BluetoothGatt.GATT_SUCCESS;
+        synchronized (connection) {
+            int answer = connection.pipeline.takeAnswer();
+            task = connection.currentTask;
+            if(answer==OperationPipeline.ANSWER_LATE || task==null || !connection.inJob){
+                // late answer to an operation that has already expired
+                return;
+            }
+            if(answer==OperationPipeline.ANSWER_STREAMED && !failed){
+                disarmOperationTimeout(connection);
+                BleOperation written = connection.pipeline.confirmStreamed();
+                if(written!=null){
+                    written.setSucceed(true);
+                    metrics.onOperationComplete(connection.device.getAddress(),written,-1);
+                }
+                task=null;
+                connection.inJob=false;
+            }
         }
-        if(task!=null){
+        if(failed){
+            broadcastGattError(connection,status);
+            finishTask(connection);
+        }else if(task!=null){
             final BleOperation operation =task.current();
-            operation.setValue(characteristic.getValue());
+            if(operation==null || !operation.getCharacteristic().equals(characteristic.getUuid())){
+                return;
+            }
+            long elapsed = System.nanoTime()-connection.operationStart;
+            synchronized (connection) {
+                connection.priorityManager.onOperationComplete(elapsed/1000000);
+                if (operation.getOpType() == BleOperationType.READ) {
+                    operation.setValue(characteristic.getValue());
+                    connection.cache.store(operation.getService(), operation.getCharacteristic(), operation.getValue());
+                }
+            }
             operation.setSucceed(true);
-            finishOperation(task);
+            operation.setFromCache(false);
+            metrics.onOperationComplete(connection.device.getAddress(),operation,elapsed);
+            finishOperation(connection);
+        }else{
+            doJob(connection);
         }
 
     }
 
-    private void finishNotification(){
-        BleTask task = null;
-        synchronized (gattSync) {
-            task = taskQueue.peek();
+    private void finishNotification(BluetoothDeviceWrapper connection,BluetoothGattCharacteristic characteristic,int status){
+        BleTask task;
+        synchronized (connection) {
+            int answer = connection.pipeline.takeAnswer();
+            task = answer==OperationPipeline.ANSWER_CURRENT && connection.inJob?connection.currentTask:null;
         }
         if(task!=null){
+            if(status!=BluetoothGatt.GATT_SUCCESS){
+                broadcastGattError(connection,status);
+                finishTask(connection);
+                return;
+            }
             final BleOperation operation =task.current();
+            if(operation==null || !operation.getCharacteristic().equals(characteristic.getUuid())){
+                return;
+            }
+            long elapsed = System.nanoTime()-connection.operationStart;
+            synchronized (connection) {
+                connection.priorityManager.onOperationComplete(elapsed/1000000);
+            }
             operation.setSucceed(true);
-            finishOperation(task);
+            metrics.onOperationComplete(connection.device.getAddress(),operation,elapsed);
+            finishOperation(connection);
         }
 
     }
 
-    private void finishOperation(BleTask task){
-        if(task.hasNext()){
-            inJob=false;
-            doJob();
-        }else{
-            finishTask();
+    private void finishOperation(BluetoothDeviceWrapper connection){
+        synchronized (connection) {
+            connection.inJob = false;
+            disarmOperationTimeout(connection);
         }
+        doJob(connection);
     }
 
-    private volatile boolean inJob=false;
+    // must be called with connection locked
+    private void armOperationTimeout(final BluetoothDeviceWrapper connection, final BleTask task){
+        disarmOperationTimeout(connection);
+        long timeout = task.getOperationTimeout();
+        if(timeout>0){
+            final long sequence = connection.operationSequence;
+            connection.operationTimeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expireTask(connection,task,sequence);
+                }
+            },timeout);
+        }
+    }
 
-    private void doJob(){
-        if(inJob){
-            return;
+    // must be called with connection locked
+    private void disarmOperationTimeout(BluetoothDeviceWrapper connection){
+        connection.operationSequence++;
+        if(connection.operationTimeout!=null){
+            connection.operationTimeout.cancel();
+            connection.operationTimeout=null;
         }
-        boolean queueEmpty;
-        synchronized (gattSync) {
-            queueEmpty = taskQueue.isEmpty();
+    }
+
+    // must be called with connection locked
+    private void armTaskTimeout(final BluetoothDeviceWrapper connection, final BleTask task){
+        long timeout = task.getTaskTimeout();
+        if(timeout>0){
+            connection.taskTimeout = watchdog.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expireTask(connection,task,-1);
+                }
+            },timeout);
         }
-        if(queueEmpty){
-            stopSelfIfNeeded();
-        }else{
-            BleTask task = null;
-            boolean check = false;
-            synchronized (gattSync) {
-                task = taskQueue.peek();
-                if (currentGatt.gatt != null && currentGatt.isReady && task != null && task.hasNext()) {
-                    BleOperation operation = task.next();
-                    BluetoothGattCharacteristic characteristic = findCharacteristic(currentGatt.gatt, operation);
-                    if (characteristic == null) {
-                        // return
-                        operation.setSucceed(false);
-                        finishTask();
-                        return;
+    }
+
+    /**
+     * Watchdog entry: fails the task if it is still waiting for the operation the timeout was armed for.
+     * @param sequence operation sequence the timeout belongs to, -1 for the task timeout
+     */
+    private void expireTask(BluetoothDeviceWrapper connection, BleTask task, long sequence){
+        synchronized (connection){
+            if(connection.currentTask!=task || (sequence>=0 && sequence!=connection.operationSequence)){
+                return;
+            }
+            BleOperation operation = task.current();
+            if(operation!=null){
+                operation.setSucceed(false);
+            }
+        }
+        Log.w(TAG,myNum()+(sequence>=0?"Operation":"Task")+" timed out");
+        broadcastGattError(connection,sequence>=0?BleConst.ERROR_OPERATION_TIMEOUT:BleConst.ERROR_TASK_TIMEOUT);
+        finishTask(connection);
+    }
+
+    private void doJob(final BluetoothDeviceWrapper connection){
+        // finished tasks are completed in a loop, a lost link with many queued tasks must not recurse
+        while(nextJobStep(connection)){
+        }
+    }
+
+    /**
+     * Issues what the current task needs next, taking the next task from the queue if there is none.
+     * @return true if a task was completed and the next one should be looked at
+     */
+    private boolean nextJobStep(final BluetoothDeviceWrapper connection){
+        BleTask task;
+        boolean complete = false;
+        boolean failed = false;
+        long retryDelay = 0;
+        synchronized (connection) {
+            if(connection.inJob){
+                return false;
+            }
+            if(connection.currentTask==null){
+                connection.currentFuture=connection.taskQueue.poll();
+                connection.currentTask=connection.currentFuture!=null?connection.currentFuture.getTask():null;
+                if(connection.currentTask!=null){
+                    metrics.onTaskDispatched(connection.device.getAddress(),System.nanoTime()-connection.currentFuture.getSubmitNanos(),connection.taskQueue.size());
+                    connection.pipeline.startTask(connection.currentTask);
+                    armTaskTimeout(connection,connection.currentTask);
+                }
+            }
+            task = connection.currentTask;
+            while(task!=null) {
+                if (connection.gatt == null || !connection.isReady) {
+                    // connection was lost while the task waited in queue
+                    failed = true;
+                    break;
+                }
+                if (connection.currentFuture.isCancelled()){
+                    failed = true;
+                    break;
+                }
+                BleOperation operation = connection.pipeline.next(task);
+                if(operation != null && operation.getOpType() == BleOperationType.READ){
+                    byte[] cached = connection.cache.lookup(operation.getService(), operation.getCharacteristic());
+                    if(cached != null){
+                        operation.setValue(cached);
+                        operation.setSucceed(true);
+                        operation.setFromCache(true);
+                        continue;
                     }
-                    switch (operation.getOpType()) {
-                        case READ:
-                            currentGatt.gatt.readCharacteristic(characteristic);
-                            break;
-                        case WRITE_NO_RESPONSE:
-                            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
-
-                        case WRITE:
-                            characteristic.setValue(operation.getValue());
-                            currentGatt.gatt.writeCharacteristic(characteristic);
-                            break;
-                        case CHECK:
-                            operation.setSucceed(true);
-                            check=true;
-                            break;
-                        case LISTEN:
-                            currentGatt.gatt.setCharacteristicNotification(characteristic,true);
-                            UUID uuid = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
-                            BluetoothGattDescriptor descriptor = characteristic.getDescriptor(uuid);
-                            descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                            currentGatt.gatt.writeDescriptor(descriptor);
-                            break;
+                }
+                if(operation == null){
+                    if(!connection.pipeline.hasInFlight()){
+                        complete = true;
+                    }else{
+                        connection.inJob = true;// wait for the rest of the stream
                     }
-
+                    break;
+                }
+                GattHandleCache.Handle handle = connection.handles.resolve(connection.gatt, operation.getService(), operation.getCharacteristic());
+                if (handle == null || (operation.getOpType() == BleOperationType.LISTEN && handle.cccd == null)) {
+                    operation.setSucceed(false);
+                    failed = true;
+                    break;
+                }
+                BluetoothGattCharacteristic characteristic = handle.characteristic;
+                if(operation.getOpType() == BleOperationType.WRITE_NO_RESPONSE || operation.getOpType() == BleOperationType.WRITE){
+                    connection.cache.invalidate(operation.getService(), operation.getCharacteristic());
+                }
+                if(operation.getOpType() == BleOperationType.WRITE_NO_RESPONSE){
+                    if(!connection.pipeline.hasCredit()){
+                        connection.pipeline.hold(operation);
+                        connection.inJob = true;
+                        break;
+                    }
+                    characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+                    int start = connection.pipeline.getFragmentOffset();
+                    int end = connection.pipeline.fragmentEnd(operation.getValue(), connection.mtu - ATT_HEADER);
+                    characteristic.setValue(fragment(operation.getValue(), start, end));
+                    if(connection.gatt.writeCharacteristic(characteristic)){
+                        trace(BleTrace.DISPATCH,connection,operation.getCharacteristic(),operation.getOpType().ordinal(),end-start);
+                        // one in-flight entry per fragment, the operation stays pending until fully sent
+                        connection.pipeline.onStreamed(operation, end);
+                        continue;
+                    }
+                    // stack is busy: shrink the window and retry later,
+                    // on timer if there is no confirmation to wait for
+                    retryDelay = connection.pipeline.onStackBusy(operation);
+                    connection.inJob = true;
+                    break;
+                }
+                if(connection.pipeline.hasInFlight()){
+                    // the stream must be confirmed before other requests are issued
+                    connection.pipeline.hold(operation);
+                    connection.inJob = true;
+                    break;
+                }
+                boolean issued = false;
+                switch (operation.getOpType()) {
+                    case READ:
+                        issued = connection.gatt.readCharacteristic(characteristic);
+                        break;
+                    case WRITE:
+                        // values longer than MTU-3 go as one prepare/execute long write, atomic for the peripheral
+                        characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+                        characteristic.setValue(operation.getValue());
+                        issued = connection.gatt.writeCharacteristic(characteristic);
+                        break;
+                    case CHECK:
+                        operation.setSucceed(true);
+                        continue;
+                    case LISTEN:
+                        BluetoothGattDescriptor descriptor = handle.cccd;
+                        descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                        issued = connection.gatt.setCharacteristicNotification(characteristic, true)
+                                && connection.gatt.writeDescriptor(descriptor);
+                        break;
+                }
+                if(!issued){
+                    // the stack refused the request, no answer will come
+                    Log.w(TAG,myNum()+operation.getOpType()+" "+operation.getCharacteristic()+" refused by the stack");
+                    operation.setSucceed(false);
+                    failed = true;
+                    break;
                 }
+                connection.pipeline.onRequestIssued();
+                trace(BleTrace.DISPATCH,connection,operation.getCharacteristic(),operation.getOpType().ordinal(),
+                        operation.getValue()!=null?operation.getValue().length:0);
+                connection.operationStart = System.nanoTime();
+                connection.inJob = true;
+                break;
             }
-            if(check) {
-                finishOperation(task);
-            }else{
-                inJob=true;
+            if(connection.inJob){
+                armOperationTimeout(connection,task);
+            }
+            updateConnectionPriority(connection);
+        }
+        if(task==null){
+            stopSelfIfNeeded();
+        }else if(failed){
+            while(task.hasNext()){
+                task.next().setSucceed(false);
             }
+            completeTask(connection);
+            return true;
+        }else if(complete) {
+            completeTask(connection);
+            return true;
+        }else if(retryDelay>0){
+            final BleTask retryTask = task;
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (connection){
+                        if(connection.currentTask!=retryTask || !connection.pipeline.hasPending() || connection.pipeline.hasInFlight()){
+                            return;
+                        }
+                        connection.inJob = false;
+                    }
+                    doJob(connection);
+                }
+            },retryDelay);
+        }
+        return false;
+    }
+
+    // a single volatile read while the trace is off
+    private static void trace(int event, BluetoothDeviceWrapper connection, @Nullable UUID characteristic, int arg0, int arg1){
+        if(BleTrace.isEnabled()){
+            BleTrace.record(event,ConvertUtils.macToLong(connection.device.getAddress()),
+                    characteristic!=null?characteristic.getMostSignificantBits():0,arg0,arg1);
         }
     }
 
@@ -456,54 +1227,178 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
         sendBroadcast(i);
     }
 
-    private void broadcastCharacteristicNotification(BleOperation operation){
+    private void broadcastCharacteristicNotification(BluetoothDeviceWrapper connection,BleOperation operation){
         Intent i = new Intent( BleConst.ACTION_CHARACTERISTIC_NOTIFICATION);
         i.putExtra(BleConst.PARAM_CHARACTERISTIC_NOTIFICATION,operation);
-        synchronized (gattSync) {
-            BleDeviceInfo info = new BleDeviceInfo(currentGatt.device.getName(),currentGatt.device.getAddress());
-            i.putExtra(BleConst.PARAM_DEVICE_NAME,info );
-        }
-
+        i.putExtra(BleConst.PARAM_DEVICE_NAME,connection.info );
         sendBroadcast(i);
     }
 
-    private void broadcastDeviceState(String action){
+    private void broadcastDeviceState(BluetoothDeviceWrapper connection,String action){
         Intent i = new Intent(action);
-        synchronized (gattSync) {
-            BleDeviceInfo info = new BleDeviceInfo(currentGatt.device.getName(),currentGatt.device.getAddress());
-            i.putExtra(BleConst.PARAM_DEVICE_NAME,info );
-        }
+        BleDeviceInfo info = new BleDeviceInfo(connection.device.getName(),connection.device.getAddress());
+        i.putExtra(BleConst.PARAM_DEVICE_NAME,info );
         sendBroadcast(i);
     }
-    private void broadcastGattError(BluetoothGatt gatt,int status){
-
-        synchronized (gattSync) {
-            //if(currentGatt.gatt==gatt) {
-                Intent i = new Intent(BleConst.ACTION_DEVICE_ERROR);
-                BleDeviceInfo info = new BleDeviceInfo(currentGatt.device.getName(), currentGatt.device.getAddress());
-                i.putExtra(BleConst.PARAM_DEVICE_NAME, info);
-                i.putExtra(BleConst.PARAM_DEVICE_ERROR, status);
-                sendBroadcast(i);
-           // }
-        }
-
+    private void broadcastGattError(BluetoothDeviceWrapper connection,int status){
+        metrics.onError(connection.device.getAddress(),status);
+        trace(BleTrace.ERROR,connection,null,status,0);
+        Intent i = new Intent(BleConst.ACTION_DEVICE_ERROR);
+        BleDeviceInfo info = new BleDeviceInfo(connection.device.getName(), connection.device.getAddress());
+        i.putExtra(BleConst.PARAM_DEVICE_NAME, info);
+        i.putExtra(BleConst.PARAM_DEVICE_ERROR, status);
+        sendBroadcast(i);
     }
     private void broadcastDeviceList(){
         Intent i = new Intent(BleConst.ACTION_DEVICES_FOUND);
+        //if(hasDevices) {
+            i.putExtra(BleConst.PARAM_DEVICES_FOUND_LIST, getFoundDevices(Integer.MIN_VALUE,0,null,false));
+            sendBroadcast(i);
+        //}
+    }
 
+    BleDeviceInfo[] getFoundDevices(){
+        return getFoundDevices(Integer.MIN_VALUE,0,null);
+    }
+
+    /**
+     * @param minRssi lowest smoothed RSSI to include
+     * @param maxAge devices not seen for longer are skipped, 0 keeps all
+     * @param order null keeps registry order
+     */
+    BleDeviceInfo[] getFoundDevices(int minRssi, long maxAge, @Nullable Comparator<BleDeviceInfo> order){
+        return getFoundDevices(minRssi,maxAge,order,true);
+    }
+
+    private BleDeviceInfo[] getFoundDevices(int minRssi, long maxAge, @Nullable Comparator<BleDeviceInfo> order, boolean withRecords){
         ArrayList<BleDeviceInfo> devices = new ArrayList<>();
-        //boolean hasDevices = false;
-        synchronized (gattSync){
-          //  hasDevices=foundDevices.size()>0;
-            for(BluetoothDeviceWrapper wrapper:foundDevices){
-                BleDeviceInfo info = new BleDeviceInfo(wrapper.device.getName(),wrapper.device.getAddress());
-                devices.add(info);
+        long now = SystemClock.elapsedRealtime();
+        for(BluetoothDeviceWrapper wrapper:foundDevices.values()){
+            if(wrapper.rssiSamples>0 && wrapper.smoothedRssi<minRssi){
+                continue;
             }
+            if(maxAge>0 && now-wrapper.lastSeen>maxAge){
+                continue;
+            }
+            devices.add(wrapper.scanInfo(withRecords));
         }
-        //if(hasDevices) {
-            i.putExtra(BleConst.PARAM_DEVICES_FOUND_LIST, devices.toArray(new BleDeviceInfo[devices.size()]));
+        if(order!=null){
+            Collections.sort(devices,order);
+        }
+        return devices.toArray(new BleDeviceInfo[devices.size()]);
+    }
+
+    /**
+     * @return last advertisement of a scanned device, null if it was not seen
+     */
+    @Nullable byte[] getScanRecord(String address){
+        long key = ConvertUtils.macToLong(address);
+        BluetoothDeviceWrapper scanned = foundDevices.get(key);
+        if(scanned==null){
+            scanned = prevFoundDevices.get(key);
+        }
+        return scanned!=null ? scanned.scanRecord : null;
+    }
+
+    /**
+     * @param alpha weight of a new sample in the smoothed RSSI, 0..1
+     */
+    void setRssiSmoothing(float alpha){
+        if(!(alpha>0 && alpha<=1)){
+            throw new IllegalArgumentException("BluetoothLeServiceSync: smoothing factor must be in (0,1]!");
+        }
+        rssiSmoothing = alpha;
+    }
+
+    void requestDeviceList(){
+        broadcastDeviceList();
+    }
+
+    /**
+     * In delta mode scan results are reported as ACTION_DEVICES_CHANGED at most once per {@code interval}
+     * instead of a full ACTION_DEVICES_FOUND list on every change.
+     */
+    void setDeviceDeltaUpdates(boolean enable, long interval){
+        if(interval<0){
+            throw new IllegalArgumentException("BluetoothLeServiceSync: negative device update interval!");
+        }
+        deviceChangesInterval = interval;
+        synchronized (deviceChangesSync){
+            deviceDeltaUpdates = enable;
+            addedDevices.clear();
+            updatedDevices.clear();
+            removedDevices.clear();
+        }
+    }
+
+    private void onDeviceChanged(long key, BluetoothDeviceWrapper wrapper, boolean added){
+        synchronized (deviceChangesSync){
+            if(added && removedDevices.remove(key)==null){
+                addedDevices.put(key,wrapper);
+            }else if(!addedDevices.containsKey(key)){
+                updatedDevices.put(key,wrapper);
+            }
+            scheduleDeviceChanges();
+        }
+    }
+
+    private void onDevicesRemoved(Map<Long,BluetoothDeviceWrapper> devices){
+        synchronized (deviceChangesSync){
+            for(Map.Entry<Long,BluetoothDeviceWrapper> entry:devices.entrySet()){
+                updatedDevices.remove(entry.getKey());
+                if(addedDevices.remove(entry.getKey())==null){
+                    removedDevices.put(entry.getKey(),entry.getValue());
+                }
+            }
+            scheduleDeviceChanges();
+        }
+    }
+
+    // called with deviceChangesSync held
+    private void scheduleDeviceChanges(){
+        if(deviceChangesScheduled){
+            return;
+        }
+        deviceChangesScheduled = true;
+        long delay = Math.max(0,lastDeviceChanges+deviceChangesInterval-SystemClock.uptimeMillis());
+        mHandler.postDelayed(broadcastDeviceChanges,delay);
+    }
+
+    private final Runnable broadcastDeviceChanges = new Runnable() {
+        @Override
+        public void run() {
+            BleDeviceInfo[] added;
+            BleDeviceInfo[] updated;
+            BleDeviceInfo[] removed;
+            synchronized (deviceChangesSync){
+                deviceChangesScheduled = false;
+                lastDeviceChanges = SystemClock.uptimeMillis();
+                if(!deviceDeltaUpdates){
+                    return;
+                }
+                added = toDeviceInfos(addedDevices);
+                updated = toDeviceInfos(updatedDevices);
+                removed = toDeviceInfos(removedDevices);
+            }
+            if(added.length+updated.length+removed.length==0){
+                return;
+            }
+            Intent i = new Intent(BleConst.ACTION_DEVICES_CHANGED);
+            i.putExtra(BleConst.PARAM_DEVICES_ADDED, added);
+            i.putExtra(BleConst.PARAM_DEVICES_UPDATED, updated);
+            i.putExtra(BleConst.PARAM_DEVICES_REMOVED, removed);
             sendBroadcast(i);
-        //}
+        }
+    };
+
+    private static BleDeviceInfo[] toDeviceInfos(Map<Long,BluetoothDeviceWrapper> devices){
+        BleDeviceInfo[] result = new BleDeviceInfo[devices.size()];
+        int i=0;
+        for(BluetoothDeviceWrapper wrapper:devices.values()){
+            result[i++] = wrapper.scanInfo(false);
+        }
+        devices.clear();
+        return result;
     }
 
     @Override
@@ -518,8 +1413,8 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
 
     public void stopSelfIfNeeded(){
         if(bound) return;
-        synchronized (taskQueue) {
-            if(taskQueue.isEmpty()) {
+        synchronized (gattSync) {
+            if(!hasPendingTasks()) {
                 close();
                 setScanning(false,false);
                 stopSelf();
@@ -527,6 +1422,17 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
         }
     }
 
+    private boolean hasPendingTasks(){
+        for(BluetoothDeviceWrapper connection:connections.values()){
+            synchronized (connection){
+                if(connection.currentTask!=null || !connection.taskQueue.isEmpty()){
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     @Override
     public boolean onUnbind(Intent intent) {
 
@@ -563,35 +1469,20 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
             Log.w(TAG,myNum()+ "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-        if(currentGatt!= null&&currentGatt.gatt!=null&&currentGatt.device!=null &&currentGatt.device.getAddress().equals(address)){
+        BluetoothDeviceWrapper existing = connections.get(address);
+        if(existing!=null&&existing.gatt!=null){
             return false;
         }
 
 
         BluetoothDevice device =mBluetoothAdapter.getRemoteDevice(address);
-        //if(device==null){
-            synchronized (gattSync) {
-                 for(BluetoothDeviceWrapper bdw: foundDevices){
-                     if(bdw.device!=null&& bdw.device.getAddress().equals(address)){
-                         currentGatt=bdw;
-                         device=bdw.device;
-                         currentGatt.autoReconnect=reconnect;
-                         break;
-                     }
-                 }
-            }
-        //}
-        if(device==null){
-        synchronized (gattSync) {
-            for(BluetoothDeviceWrapper bdw: prevFoundDevices){
-                if(bdw.device!=null&& bdw.device.getAddress().equals(address)){
-                    currentGatt=bdw;
-                    device =bdw.device;
-                    currentGatt.autoReconnect=reconnect;
-                    break;
-                }
-            }
+        long key = ConvertUtils.macToLong(address);
+        BluetoothDeviceWrapper scanned = foundDevices.get(key);
+        if(scanned==null){
+            scanned = prevFoundDevices.get(key);
         }
+        if(scanned!=null&&scanned.device!=null){
+            device=scanned.device;
         }
 
         if (device == null) {
@@ -602,14 +1493,43 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
         // autoConnect
         // parameter to false.
         synchronized (gattSync) {
-            if(currentGatt==null){
-                currentGatt=new BluetoothDeviceWrapper();
-
+            BluetoothDeviceWrapper connection = connections.get(address);
+            if(connection==null){
+                connection=new BluetoothDeviceWrapper();
+                connection.taskQueue.configure(queuePolicy,queueWeights,queueStarvationLimit);
+                connection.cache = new CharacteristicCache(cachePolicies);
+                connection.reassembly = new NotificationReassembler();
+                connection.priorityManager = new ConnectionPriorityManager();
+                connections.put(address,connection);
             }
-            currentGatt.isReady=false;
-            currentGatt.device=device;
-            synchronized (disconnectSync) {
-                currentGatt.gatt = device.connectGatt(this, false, mGattCallback);
+            connection.autoReconnect=reconnect;
+            connection.isReady=false;
+            connection.device=device;
+            connection.wantConnected=true;
+            connection.reconnectAttempt=0;
+            cancelReconnect(connection);
+            cancelConnectTimeout(connection);
+            String name = device.getName();
+            if(name==null){
+                // not scanned in this process, the stack may not know the name yet
+                PersistentDeviceCache.Entry known = deviceCache.get(address);
+                name = known!=null?known.name:null;
+            }
+            connection.info=new BleDeviceInfo(name,device.getAddress());
+            BluetoothGatt idle = connection.idleGatt;
+            connection.idleGatt = null;
+            connection.linkUp = false;
+            if(idle!=null && reconnect && idle.connect()){
+                // warm reconnect, the client registration is reused
+                connection.gatt = idle;
+                scheduleConnectTimeout(connection,idle);
+            }else {
+                if(idle!=null){
+                    closeGatt(idle);
+                }
+                synchronized (disconnectSync) {
+                    connection.gatt = device.connectGatt(this, false, mGattCallback);
+                }
             }
 
         }
@@ -619,27 +1539,142 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
     }
 
     private final Object disconnectSync = new Object();
+    // gatts scheduled for close() and not closed yet, a gatt is closed once however many paths give it up
+    private final Set<BluetoothGatt> closingGatts = Collections.newSetFromMap(new ConcurrentHashMap<BluetoothGatt, Boolean>());
 
     private void disconnectGatt(final BluetoothGatt gatt){
 
         gatt.disconnect();
-        disconnectExecutor.execute(
-                new Runnable() {
+        closeGatt(gatt);
+    }
+
+    /**
+     * Closes the gatt after CLOSE_DELAY without blocking anyone, many devices can be closing at once.
+     */
+    private void closeGatt(final BluetoothGatt gatt){
+        if(!closingGatts.add(gatt)){
+            return;
+        }
+        watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                disconnectExecutor.execute(new Runnable() {
                     @Override
                     public void run() {
                         synchronized (disconnectSync) {
-                            try {
-                                Thread.sleep(100);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
+                            if(!closingGatts.contains(gatt)){
+                                return;
                             }
-
                             gatt.close();
+                            // closed gatts get no more callbacks, nobody schedules it again
+                            closingGatts.remove(gatt);
                         }
                         refreshDeviceCache(gatt);
                     }
+                });
+            }
+        },CLOSE_DELAY);
+    }
+
+    // closes at once whatever closeGatt() has not closed yet
+    private void closePendingGatts(){
+        synchronized (disconnectSync) {
+            for(BluetoothGatt gatt:closingGatts){
+                gatt.close();
+            }
+            closingGatts.clear();
+        }
+    }
+
+    void setReconnectPolicy(@Nullable BleReconnectPolicy policy){
+        reconnectPolicy = policy;
+        if(policy==null){
+            synchronized (gattSync){
+                for(BluetoothDeviceWrapper connection:connections.values()){
+                    cancelReconnect(connection);
                 }
-        );
+            }
+        }
+    }
+
+    // called with gattSync held
+    private void scheduleReconnect(final BluetoothDeviceWrapper connection){
+        BleReconnectPolicy policy = reconnectPolicy;
+        if(policy==null || !connection.wantConnected || connection.reconnectTimeout!=null){
+            return;
+        }
+        if(policy.getMaxAttempts()>0 && connection.reconnectAttempt>=policy.getMaxAttempts()){
+            connection.reconnectAttempt = 0;
+            broadcastGattError(connection,BleConst.ERROR_RECONNECT_FAILED);
+            return;
+        }
+        double random;
+        synchronized (reconnectRandom){
+            random = reconnectRandom.nextDouble();
+        }
+        long delay = policy.delay(connection.reconnectAttempt,random);
+        connection.reconnectAttempt++;
+        connection.reconnectTimeout = watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (gattSync){
+                            connection.reconnectTimeout = null;
+                            if(connection.wantConnected && connections.get(connection.device.getAddress())==connection){
+                                int attempt = connection.reconnectAttempt;
+                                reconnect(connection);
+                                // connect() resets the counter, keep counting until the link is up
+                                connection.reconnectAttempt = attempt;
+                            }
+                        }
+                    }
+                });
+            }
+        },delay);
+    }
+
+    // called with gattSync held
+    private void scheduleConnectTimeout(final BluetoothDeviceWrapper connection, final BluetoothGatt warm){
+        connection.connectTimeout = watchdog.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (gattSync){
+                            connection.connectTimeout = null;
+                            if(connection.gatt!=warm || !connection.wantConnected){
+                                return;
+                            }
+                            // the stack waits for the device in the background, connect directly instead
+                            Log.w(TAG, myNum()+"Warm reconnect timed out, connecting directly.");
+                            connection.gatt = null;
+                            disconnectGatt(warm);
+                            synchronized (disconnectSync) {
+                                connection.gatt = connection.device.connectGatt(BluetoothLeServiceSync.this, false, mGattCallback);
+                            }
+                            // reconnectAttempt is left alone, a failed direct connection continues the backoff
+                        }
+                    }
+                });
+            }
+        },WARM_CONNECT_TIMEOUT);
+    }
+
+    private void cancelConnectTimeout(BluetoothDeviceWrapper connection){
+        if(connection.connectTimeout!=null){
+            connection.connectTimeout.cancel();
+            connection.connectTimeout = null;
+        }
+    }
+
+    private void cancelReconnect(BluetoothDeviceWrapper connection){
+        if(connection.reconnectTimeout!=null){
+            connection.reconnectTimeout.cancel();
+            connection.reconnectTimeout = null;
+        }
     }
 
     /**
@@ -650,16 +1685,36 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
      */
     public void disconnect() {
         synchronized (gattSync) {
-            if (currentGatt!=null &&currentGatt.gatt != null) {
-
-               // fix for https://issuetracker.google.com/37057260
-                disconnectGatt(currentGatt.gatt);
-                //currentGatt.gatt = null;
-                currentGatt.isReady=false;
+            for(BluetoothDeviceWrapper connection:connections.values()){
+                disconnect(connection);
             }
         }
     }
 
+    private void disconnect(BluetoothDeviceWrapper connection){
+        connection.wantConnected = false;
+        cancelReconnect(connection);
+        cancelConnectTimeout(connection);
+        if (connection.idleGatt != null) {
+            closeGatt(connection.idleGatt);
+            connection.idleGatt = null;
+        }
+        if (connection.gatt != null && !connection.linkUp) {
+            // never came up, so no DISCONNECTED callback follows: let go of the gatt here
+            // or connect() keeps refusing the device
+            BluetoothGatt pending = connection.gatt;
+            connection.gatt = null;
+            disconnectGatt(pending);
+            notifyConnectionState(connection,false);
+        } else if (connection.gatt != null) {
+
+           // fix for https://issuetracker.google.com/37057260
+            disconnectGatt(connection.gatt);
+            //connection.gatt = null;
+            connection.isReady=false;
+        }
+    }
+
     /**
      * After using a given BLE device, the app must call this method to ensure
      * resources are released properly.
@@ -680,23 +1735,57 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
     public void resetCardsList() {
 
             synchronized (gattSync) {
+                if(deviceDeltaUpdates){
+                    onDevicesRemoved(foundDevices);
+                }
                 prevFoundDevices.clear();
-                prevFoundDevices.addAll(foundDevices);
+                prevFoundDevices.putAll(foundDevices);
                 foundDevices.clear();
             }
     }
 
+    // continuous scan in delta mode: devices not seen during the scan period that just ended are gone
+    private void dropLostDevices(){
+        if(!deviceDeltaUpdates){
+            return;
+        }
+        Map<Long,BluetoothDeviceWrapper> lost = new LinkedHashMap<>();
+        for(Map.Entry<Long,BluetoothDeviceWrapper> entry:foundDevices.entrySet()){
+            if(entry.getValue().scanIteration<scanIteration && foundDevices.remove(entry.getKey(),entry.getValue())){
+                prevFoundDevices.put(entry.getKey(),entry.getValue());
+                lost.put(entry.getKey(),entry.getValue());
+            }
+        }
+        if(!lost.isEmpty()){
+            onDevicesRemoved(lost);
+        }
+    }
+
     public void reconnect(){
         synchronized(gattSync) {
-            if (currentGatt != null && currentGatt.device != null && !currentGatt.isReady) {
-                connect(currentGatt.device.getAddress(),currentGatt.autoReconnect);
+            for(BluetoothDeviceWrapper connection:connections.values()) {
+                reconnect(connection);
+            }
+        }
+    }
+
+    public void reconnect(String address){
+        synchronized(gattSync) {
+            BluetoothDeviceWrapper connection = connections.get(address);
+            if(connection!=null) {
+                reconnect(connection);
             }
         }
     }
 
+    private void reconnect(BluetoothDeviceWrapper connection){
+        if (connection.device != null && !connection.isReady) {
+            connect(connection.device.getAddress(),connection.autoReconnect);
+        }
+    }
+
 
     private Runnable stopScanRunnable = new Runnable() {
-        @SuppressWarnings("deprecation")
         @Override
         public void run() {
 
@@ -705,13 +1794,23 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
                 {
                     return;
                 }
-                mBluetoothAdapter.stopLeScan(currentScan);
-                broadcastDeviceList();
+                boolean restart = currentScan.needsRestart();
+                if(continousScanning && !restart){
+                    // the controller keeps scanning, only a new scan period starts
+                    currentScan.flush();
+                }else {
+                    currentScan.stop();
+                }
+                if(!deviceDeltaUpdates) {
+                    broadcastDeviceList();
+                }
               //  resetCardsList();
                 if(continousScanning) {
+                    dropLostDevices();
                     scanIteration++;
-                    currentScan = new LeScanCallback();
-                    mBluetoothAdapter.startLeScan(currentScan);
+                    if(restart && !startScan(scanSettings)) {
+                        return;
+                    }
                     mHandler.postDelayed(stopScanRunnable, SCAN_PERIOD);
                 }else{
                     mScanning=false;
@@ -725,7 +1824,33 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
 
 
 
-    @SuppressWarnings("deprecation")
+    /**
+     * Starts a new scan backend, ends the scan as finished if the stack refuses it. Called with
+     * gattSync held.
+     * @return true if the scan runs
+     */
+    private boolean startScan(BleScanSettings settings){
+        currentScan = ScanBackend.create(mBluetoothAdapter, scanFilters, settings, scanSink);
+        if(currentScan.start()){
+            return true;
+        }
+        Log.w(TAG, myNum() + "scan failed to start");
+        mHandler.removeCallbacks(stopScanRunnable);
+        mScanning=false;
+        currentScan=null;
+        broadcastScanFinish();
+        resetCardsList();
+        return false;
+    }
+
+    /**
+     * Applied when the next scan starts.
+     */
+    void setScanConfiguration(@Nullable List<BleScanFilter> filters, @Nullable BleScanSettings settings){
+        scanFilters = filters!=null ? new ArrayList<>(filters) : Collections.<BleScanFilter>emptyList();
+        scanSettings = settings!=null ? settings : new BleScanSettings();
+    }
+
     public void setScanning(boolean enable, boolean continous) {
         continousScanning=continous;
         if (mScanning == enable)
@@ -744,11 +1869,12 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
                 {
                     throw new RuntimeException("Something dublicates scans!!!");
                 }
-                currentScan =new LeScanCallback();
-                mBluetoothAdapter.startLeScan(currentScan);
+                startScan(scanSettings);
             } else {
                 mHandler.removeCallbacks(stopScanRunnable);
-                mBluetoothAdapter.stopLeScan(currentScan);
+                if(currentScan!=null) {
+                    currentScan.stop();
+                }
                 currentScan = null;
                 //broadcastDeviceList();
                 resetCardsList();
@@ -756,10 +1882,13 @@ import ru.raiv.syncblestack.tasks.BleTaskCompleteCallback;
         }
     }
 
-    public boolean refreshCurrentGatt(){
+    public boolean refreshGatt(String address){
         synchronized (gattSync) {
-            if (currentGatt != null && currentGatt.gatt != null) {
-                return refreshDeviceCache(currentGatt.gatt);
+            BluetoothDeviceWrapper connection = connections.get(address);
+            if (connection != null && connection.gatt != null) {
+                // resolved handles belong to the discarded service list
+                connection.handles.clear();
+                return refreshDeviceCache(connection.gatt);
             }
         }
         return false;
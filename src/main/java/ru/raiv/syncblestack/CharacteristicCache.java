@@ -0,0 +1,170 @@
+package ru.raiv.syncblestack;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-device cache of characteristic values consulted before READ operations.
+ * Not thread safe, guarded by the owning connection.
+ */
+
+class CharacteristicCache {
+
+    /**
+     * Source of the time TTL values are measured against.
+     */
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    /**
+     * Cache rules shared by all devices, keyed by service and characteristic.
+     */
+    static class Policies {
+        private final ConcurrentHashMap<UUID, ConcurrentHashMap<UUID, Rule>> rules = new ConcurrentHashMap<>();
+
+        void set(@NonNull UUID service, @NonNull UUID characteristic, @NonNull BleCachePolicy policy, long ttlMillis) {
+            ConcurrentHashMap<UUID, Rule> serviceRules = rules.get(service);
+            if(serviceRules == null){
+                serviceRules = new ConcurrentHashMap<>();
+                ConcurrentHashMap<UUID, Rule> raced = rules.putIfAbsent(service, serviceRules);
+                if(raced != null){
+                    serviceRules = raced;
+                }
+            }
+            if(policy == BleCachePolicy.NEVER){
+                serviceRules.remove(characteristic);
+            }else{
+                serviceRules.put(characteristic, new Rule(policy, ttlMillis));
+            }
+        }
+
+        @Nullable
+        Rule get(UUID service, UUID characteristic) {
+            Map<UUID, Rule> serviceRules = rules.get(service);
+            return serviceRules != null ? serviceRules.get(characteristic) : null;
+        }
+
+        boolean isEmpty() {
+            return rules.isEmpty();
+        }
+    }
+
+    static final class Rule {
+        final BleCachePolicy policy;
+        final long ttlMillis;
+
+        Rule(BleCachePolicy policy, long ttlMillis) {
+            this.policy = policy;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    private static final class Entry {
+        byte[] value;
+        long storedAt;
+        BleCachePolicy policy;
+    }
+
+    private final Policies policies;
+    private final Clock clock;
+    private final HashMap<UUID, HashMap<UUID, Entry>> entries = new HashMap<>();
+
+    CharacteristicCache(@NonNull Policies policies) {
+        this(policies, SYSTEM_CLOCK);
+    }
+
+    CharacteristicCache(@NonNull Policies policies, @NonNull Clock clock) {
+        this.policies = policies;
+        this.clock = clock;
+    }
+
+    /**
+     * @return copy of the cached value, or null if there is no fresh value
+     */
+    @Nullable
+    byte[] lookup(UUID service, UUID characteristic) {
+        if(entries.isEmpty()){
+            return null;
+        }
+        Rule rule = policies.get(service, characteristic);
+        Entry entry = find(service, characteristic);
+        if(entry == null){
+            return null;
+        }
+        if(rule == null || (rule.policy == BleCachePolicy.TTL && clock.elapsedRealtime() - entry.storedAt > rule.ttlMillis)){
+            // rule was dropped or value expired
+            invalidate(service, characteristic);
+            return null;
+        }
+        return entry.value != null ? entry.value.clone() : null;
+    }
+
+    void store(UUID service, UUID characteristic, @Nullable byte[] value) {
+        if(policies.isEmpty()){
+            return;
+        }
+        Rule rule = policies.get(service, characteristic);
+        if(rule == null || value == null){
+            return;
+        }
+        HashMap<UUID, Entry> serviceEntries = entries.get(service);
+        if(serviceEntries == null){
+            serviceEntries = new HashMap<>();
+            entries.put(service, serviceEntries);
+        }
+        Entry entry = serviceEntries.get(characteristic);
+        if(entry == null){
+            entry = new Entry();
+            serviceEntries.put(characteristic, entry);
+        }
+        entry.value = value.clone();
+        entry.storedAt = clock.elapsedRealtime();
+        entry.policy = rule.policy;
+    }
+
+    void invalidate(UUID service, UUID characteristic) {
+        HashMap<UUID, Entry> serviceEntries = entries.get(service);
+        if(serviceEntries != null){
+            serviceEntries.remove(characteristic);
+        }
+    }
+
+    /**
+     * Drops UNTIL_DISCONNECT values, TTL ones keep living until they expire.
+     */
+    void onDisconnect() {
+        for(HashMap<UUID, Entry> serviceEntries : entries.values()){
+            Iterator<Entry> it = serviceEntries.values().iterator();
+            while(it.hasNext()){
+                if(it.next().policy == BleCachePolicy.UNTIL_DISCONNECT){
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    @Nullable
+    private Entry find(UUID service, UUID characteristic) {
+        HashMap<UUID, Entry> serviceEntries = entries.get(service);
+        return serviceEntries != null ? serviceEntries.get(characteristic) : null;
+    }
+}
@@ -0,0 +1,98 @@
+package ru.raiv.syncblestack;
+
+import android.bluetooth.BluetoothGatt;
+import android.support.annotation.NonNull;
+
+import java.util.List;
+
+import ru.raiv.syncblestack.tasks.BleOperation;
+import ru.raiv.syncblestack.tasks.BleOperationType;
+import ru.raiv.syncblestack.tasks.BleTask;
+
+/**
+ * Load tracking of one connection for {@link BleConnectionPriorityPolicy}.
+ * Not thread safe, guarded by the owning connection.
+ */
+
+class ConnectionPriorityManager {
+
+    private static final int UNKNOWN = -1;
+    // weight of the newest sample in the smoothed latency
+    private static final float LATENCY_SMOOTHING = 0.2f;
+
+    private int priority = UNKNOWN;
+    private long pendingBytes = 0;
+    private float latency = 0;
+    private long idleSince = 0;
+
+    void onTaskQueued(BleTask task) {
+        pendingBytes += writeBytes(task);
+    }
+
+    void onTaskFinished(BleTask task) {
+        pendingBytes = Math.max(0, pendingBytes - writeBytes(task));
+    }
+
+    void onOperationComplete(long latencyMillis) {
+        latency = latency == 0 ? latencyMillis : latency + LATENCY_SMOOTHING * (latencyMillis - latency);
+    }
+
+    /**
+     * @param depth running plus queued tasks
+     * @param now monotonic time in milliseconds
+     * @return priority to request, or -1 if the current one is fine
+     */
+    int evaluate(@NonNull BleConnectionPriorityPolicy policy, int depth, long now) {
+        int wanted;
+        if(depth == 0){
+            if(idleSince == 0){
+                idleSince = now;
+            }
+            if(priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH && now - idleSince < policy.getIdleTimeout()){
+                return UNKNOWN;// keep the fast link for a while, more work may follow
+            }
+            wanted = policy.getIdlePriority();
+        }else{
+            idleSince = 0;
+            boolean busy = depth >= policy.getQueueDepthThreshold()
+                    || pendingBytes >= policy.getPendingBytesThreshold()
+                    || latency >= policy.getLatencyThreshold();
+            if(busy){
+                wanted = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+            }else if(priority == UNKNOWN){
+                wanted = policy.getIdlePriority();
+            }else{
+                return UNKNOWN;// light load, leave the link as it is until it gets idle
+            }
+        }
+        if(wanted == priority){
+            return UNKNOWN;
+        }
+        priority = wanted;
+        return wanted;
+    }
+
+    boolean isHigh() {
+        return priority == BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+    }
+
+    void reset() {
+        priority = UNKNOWN;
+        pendingBytes = 0;
+        latency = 0;
+        idleSince = 0;
+    }
+
+    private static long writeBytes(BleTask task) {
+        long bytes = 0;
+        List<BleOperation> operations = task.getOperations();
+        for(int i = 0; i < operations.size(); i++){
+            BleOperation operation = operations.get(i);
+            BleOperationType type = operation.getOpType();
+            if((type == BleOperationType.WRITE || type == BleOperationType.WRITE_NO_RESPONSE) && operation.getValue() != null){
+                bytes += operation.getValue().length;
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,70 @@
+package ru.raiv.syncblestack;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.UUID;
+
+import ru.raiv.syncblestack.utils.UuidPairMap;
+
+/**
+ * Characteristics and their CCCDs resolved once after service discovery, so dispatching an
+ * operation is a hash lookup instead of walking the framework service and characteristic lists.
+ */
+
+class GattHandleCache {
+
+    static final UUID CCCD = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+
+    static final class Handle {
+        final BluetoothGattCharacteristic characteristic;
+        // null if the characteristic cannot notify
+        final BluetoothGattDescriptor cccd;
+
+        Handle(BluetoothGattCharacteristic characteristic) {
+            this.characteristic = characteristic;
+            this.cccd = characteristic.getDescriptor(CCCD);
+        }
+    }
+
+    private final UuidPairMap<Handle> handles = new UuidPairMap<>();
+    private volatile boolean built = false;
+
+    void build(BluetoothGatt gatt) {
+        handles.clear();
+        List<BluetoothGattService> services = gatt.getServices();
+        if(services != null){
+            for(BluetoothGattService service : services){
+                for(BluetoothGattCharacteristic characteristic : service.getCharacteristics()){
+                    // the first instance wins, as with BluetoothGatt.getService
+                    if(handles.get(service.getUuid(), characteristic.getUuid()) == null){
+                        handles.put(service.getUuid(), characteristic.getUuid(), new Handle(characteristic));
+                    }
+                }
+            }
+        }
+        built = true;
+    }
+
+    /**
+     * Falls back to searching the gatt while the table is not built.
+     */
+    @Nullable
+    Handle resolve(BluetoothGatt gatt, UUID service, UUID characteristic) {
+        if(built){
+            return handles.get(service, characteristic);
+        }
+        BluetoothGattService found = gatt.getService(service);
+        BluetoothGattCharacteristic resolved = found != null ? found.getCharacteristic(characteristic) : null;
+        return resolved != null ? new Handle(resolved) : null;
+    }
+
+    void clear() {
+        built = false;
+        handles.clear();
+    }
+}
@@ -0,0 +1,78 @@
+package ru.raiv.syncblestack;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import ru.raiv.syncblestack.tasks.BleTask;
+import ru.raiv.syncblestack.tasks.BleTaskBuilder;
+
+/**
+ * {@link BleTransferTransport} over a characteristic pair of a connected device: packets are
+ * streamed as WRITE_NO_RESPONSE to the data characteristic, commands are written to the control
+ * characteristic and its notifications are the answers. Packets fit the MTU, so nothing is fragmented.
+ */
+
+final class GattTransferTransport implements BleTransferTransport, BleNotificationListener {
+
+    private final BluetoothLeServiceSync owner;
+    private final String address;
+    private final UUID service;
+    private final UUID data;
+    private final UUID control;
+    private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<>();
+
+    GattTransferTransport(BluetoothLeServiceSync owner, String address, UUID service, UUID data, UUID control) {
+        this.owner = owner;
+        this.address = address;
+        this.service = service;
+        this.data = data;
+        this.control = control;
+    }
+
+    @Override
+    public void open() throws IOException {
+        received.clear();
+        // notifications are off again after a reconnect
+        execute(new BleTaskBuilder(service).addListenOperation(service, control).build());
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return owner.getMaxWriteLength(address);
+    }
+
+    @Override
+    public void sendPackets(List<byte[]> packets) throws IOException {
+        BleTaskBuilder builder = new BleTaskBuilder(service).setWriteWindow(Math.max(1, packets.size()));
+        for(byte[] packet : packets){
+            builder.addWriteNoResponseOperation(service, data, packet);
+        }
+        execute(builder.build());
+    }
+
+    @Override
+    public void sendControl(byte[] command) throws IOException {
+        execute(new BleTaskBuilder(service).addWriteOperation(service, control, command).build());
+    }
+
+    @Override
+    public byte[] receiveControl(long timeoutMillis) throws InterruptedException {
+        return timeoutMillis > 0 ? received.poll(timeoutMillis, TimeUnit.MILLISECONDS) : received.poll();
+    }
+
+    @Override
+    public void onNotification(BleDeviceInfo device, UUID service, UUID characteristic, byte[] value) {
+        received.add(value);
+    }
+
+    // sync tasks return once processed
+    private void execute(BleTask task) throws IOException {
+        owner.addTask(address, task);
+        if(!task.allSucceed()){
+            throw new IOException("GattTransferTransport: link to " + address + " failed!");
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package ru.raiv.syncblestack;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import ru.raiv.syncblestack.tasks.BleOperation;
+import ru.raiv.syncblestack.tasks.BleOperationType;
+
+/**
+ * Latency histograms and counters of the service. Once a device or characteristic has been seen,
+ * recording only looks up maps and bumps counters, nothing is allocated.
+ */
+
+class MetricsCollector {
+
+    // library errors (negative) and GATT statuses (a byte) are counted without boxing
+    private static final int MIN_STATUS = BleConst.ERROR_RECONNECT_FAILED;
+    private static final int MAX_STATUS = 0xFF;
+
+    private static final class DeviceStats {
+        final BleLatencyHistogram queueWait = new BleLatencyHistogram();
+        final BleLatencyHistogram roundTrip = new BleLatencyHistogram();
+        final BleLatencyHistogram taskTotal = new BleLatencyHistogram();
+        int queueDepth = 0;
+        int maxQueueDepth = 0;
+        long operations = 0;
+        long bytes = 0;
+        long failedTasks = 0;
+        long errors = 0;
+
+        synchronized void setQueueDepth(int depth) {
+            queueDepth = depth;
+            if(depth > maxQueueDepth){
+                maxQueueDepth = depth;
+            }
+        }
+
+        synchronized BleMetricsSnapshot.DeviceMetrics snapshot() {
+            return new BleMetricsSnapshot.DeviceMetrics(queueWait.copy(), roundTrip.copy(), taskTotal.copy(),
+                    queueDepth, maxQueueDepth, operations, bytes, failedTasks, errors);
+        }
+    }
+
+    // swapped as a whole on reset, so recording needs no extra lock
+    private static final class State {
+        final long start = System.nanoTime();
+        final ConcurrentHashMap<String, DeviceStats> devices = new ConcurrentHashMap<>();
+        final BleLatencyHistogram[] byType = new BleLatencyHistogram[BleOperationType.values().length];
+        final ConcurrentHashMap<UUID, BleLatencyHistogram> byCharacteristic = new ConcurrentHashMap<>();
+        final BleLatencyHistogram callbackDelay = new BleLatencyHistogram();
+        final AtomicLongArray errors = new AtomicLongArray(MAX_STATUS - MIN_STATUS + 1);
+        // statuses out of range, none are known
+        final ConcurrentHashMap<Integer, AtomicLong> otherErrors = new ConcurrentHashMap<>();
+
+        State() {
+            for(int i = 0; i < byType.length; i++){
+                byType[i] = new BleLatencyHistogram();
+            }
+        }
+
+        DeviceStats device(String address) {
+            DeviceStats stats = devices.get(address);
+            if(stats == null){
+                DeviceStats created = new DeviceStats();
+                stats = devices.putIfAbsent(address, created);
+                if(stats == null){
+                    stats = created;
+                }
+            }
+            return stats;
+        }
+
+        BleLatencyHistogram characteristic(UUID characteristic) {
+            BleLatencyHistogram histogram = byCharacteristic.get(characteristic);
+            if(histogram == null){
+                BleLatencyHistogram created = new BleLatencyHistogram();
+                histogram = byCharacteristic.putIfAbsent(characteristic, created);
+                if(histogram == null){
+                    histogram = created;
+                }
+            }
+            return histogram;
+        }
+    }
+
+    private volatile State state = new State();
+
+    void onQueueDepth(String address, int depth) {
+        state.device(address).setQueueDepth(depth);
+    }
+
+    void onTaskDispatched(String address, long waitNanos, int depth) {
+        DeviceStats stats = state.device(address);
+        stats.queueWait.record(waitNanos);
+        stats.setQueueDepth(depth);
+    }
+
+    /**
+     * @param nanos GATT round trip, negative when unknown (streamed writes)
+     */
+    void onOperationComplete(String address, BleOperation operation, long nanos) {
+        State current = state;
+        DeviceStats stats = current.device(address);
+        byte[] value = operation.getValue();
+        synchronized (stats) {
+            stats.operations++;
+            if(value != null){
+                stats.bytes += value.length;
+            }
+        }
+        if(nanos >= 0){
+            stats.roundTrip.record(nanos);
+            current.byType[operation.getOpType().ordinal()].record(nanos);
+            current.characteristic(operation.getCharacteristic()).record(nanos);
+        }
+    }
+
+    void onTaskFinished(String address, long nanos, boolean succeeded) {
+        DeviceStats stats = state.device(address);
+        stats.taskTotal.record(nanos);
+        if(!succeeded){
+            synchronized (stats) {
+                stats.failedTasks++;
+            }
+        }
+    }
+
+    void onCallbackDispatched(long nanos) {
+        state.callbackDelay.record(nanos);
+    }
+
+    void onError(String address, int status) {
+        State current = state;
+        DeviceStats stats = current.device(address);
+        synchronized (stats) {
+            stats.errors++;
+        }
+        if(status >= MIN_STATUS && status <= MAX_STATUS){
+            current.errors.incrementAndGet(status - MIN_STATUS);
+            return;
+        }
+        AtomicLong counter = current.otherErrors.get(status);
+        if(counter == null){
+            AtomicLong created = new AtomicLong();
+            counter = current.otherErrors.putIfAbsent(status, created);
+            if(counter == null){
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+
+    BleMetricsSnapshot snapshot() {
+        State current = state;
+        Map<String, BleMetricsSnapshot.DeviceMetrics> devices = new HashMap<>();
+        for(Map.Entry<String, DeviceStats> entry : current.devices.entrySet()){
+            devices.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        Map<BleOperationType, BleLatencyHistogram> byType = new EnumMap<>(BleOperationType.class);
+        for(BleOperationType type : BleOperationType.values()){
+            byType.put(type, current.byType[type.ordinal()].copy());
+        }
+        Map<UUID, BleLatencyHistogram> byCharacteristic = new HashMap<>();
+        for(Map.Entry<UUID, BleLatencyHistogram> entry : current.byCharacteristic.entrySet()){
+            byCharacteristic.put(entry.getKey(), entry.getValue().copy());
+        }
+        Map<Integer, Long> errors = new HashMap<>();
+        for(int i = 0; i < current.errors.length(); i++){
+            long count = current.errors.get(i);
+            if(count > 0){
+                errors.put(i + MIN_STATUS, count);
+            }
+        }
+        for(Map.Entry<Integer, AtomicLong> entry : current.otherErrors.entrySet()){
+            errors.put(entry.getKey(), entry.getValue().get());
+        }
+        return new BleMetricsSnapshot(System.nanoTime() - current.start, devices, byType, byCharacteristic,
+                current.callbackDelay.copy(), errors);
+    }
+
+    void reset() {
+        state = new State();
+    }
+}
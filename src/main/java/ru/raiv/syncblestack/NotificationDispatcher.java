@@ -0,0 +1,272 @@
+package ru.raiv.syncblestack;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import ru.raiv.syncblestack.utils.HashedTimerWheel;
+
+/**
+ * Registry of in-process notification subscriptions. Dispatch walks a copy-on-write array,
+ * so the GATT callback thread neither locks nor allocates an iterator.
+ */
+
+class NotificationDispatcher {
+
+    abstract static class Subscription {
+        final String address;
+        final UUID service;
+        final UUID characteristic;
+
+        Subscription(@Nullable String address, @Nullable UUID service, @Nullable UUID characteristic) {
+            this.address = address;
+            this.service = service;
+            this.characteristic = characteristic;
+        }
+
+        boolean matches(String address, UUID service, UUID characteristic) {
+            return (this.characteristic == null || this.characteristic.equals(characteristic))
+                    && (this.service == null || this.service.equals(service))
+                    && (this.address == null || this.address.equals(address));
+        }
+
+        abstract boolean isFor(Object owner);
+
+        abstract void deliver(BleDeviceInfo device, UUID service, UUID characteristic, byte[] value);
+
+        void close() {
+        }
+    }
+
+    private static final class ListenerSubscription extends Subscription {
+        private final BleNotificationListener listener;
+        private final Executor executor;
+
+        ListenerSubscription(BleNotificationListener listener, @Nullable Executor executor,
+                             @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic) {
+            super(address, service, characteristic);
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        @Override
+        boolean isFor(Object owner) {
+            return listener == owner;
+        }
+
+        @Override
+        void deliver(final BleDeviceInfo device, final UUID service, final UUID characteristic, final byte[] value) {
+            if(executor == null){
+                listener.onNotification(device, service, characteristic, value);
+            }else{
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onNotification(device, service, characteristic, value);
+                    }
+                });
+            }
+        }
+    }
+
+    private static final class RingSubscription extends Subscription {
+        private final BleNotificationRing ring;
+
+        RingSubscription(BleNotificationRing ring,
+                         @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic) {
+            super(address, service, characteristic);
+            this.ring = ring;
+        }
+
+        @Override
+        boolean isFor(Object owner) {
+            return ring == owner;
+        }
+
+        @Override
+        void deliver(BleDeviceInfo device, UUID service, UUID characteristic, byte[] value) {
+            ring.offer(value, System.nanoTime());
+        }
+
+        @Override
+        void close() {
+            ring.close();
+        }
+    }
+
+    private static final class BatchSubscription extends Subscription implements Runnable {
+        private final BleNotificationBatchListener listener;
+        private final Executor executor;
+        private final long maxDelay;
+        private final int maxCount;
+        private final HashedTimerWheel timer;
+        private ArrayList<BleNotificationSample> batch = null;
+        private HashedTimerWheel.Timeout flushTimeout = null;
+        private boolean closed = false;
+
+        BatchSubscription(BleNotificationBatchListener listener, @Nullable Executor executor, BleBatchPolicy policy,
+                          HashedTimerWheel timer,
+                          @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic) {
+            super(address, service, characteristic);
+            if(policy.getMaxDelay() <= 0 && policy.getMaxCount() <= 0){
+                throw new IllegalArgumentException("NotificationDispatcher: batch policy without limits!");
+            }
+            this.listener = listener;
+            this.executor = executor;
+            this.maxDelay = policy.getMaxDelay();
+            this.maxCount = policy.getMaxCount();
+            this.timer = timer;
+        }
+
+        @Override
+        boolean isFor(Object owner) {
+            return listener == owner;
+        }
+
+        @Override
+        void deliver(BleDeviceInfo device, UUID service, UUID characteristic, byte[] value) {
+            BleNotificationSample sample = new BleNotificationSample(device, service, characteristic, value, System.nanoTime());
+            ArrayList<BleNotificationSample> full = null;
+            synchronized (this) {
+                if(closed){
+                    return;
+                }
+                if(batch == null){
+                    batch = new ArrayList<>(maxCount > 0 ? maxCount : 16);
+                    if(maxDelay > 0){
+                        flushTimeout = timer.schedule(this, maxDelay);
+                    }
+                }
+                batch.add(sample);
+                if(maxCount > 0 && batch.size() >= maxCount){
+                    full = take();
+                }
+            }
+            post(full);
+        }
+
+        // flush on timer
+        @Override
+        public void run() {
+            ArrayList<BleNotificationSample> due;
+            synchronized (this) {
+                due = take();
+            }
+            post(due);
+        }
+
+        @Override
+        void close() {
+            ArrayList<BleNotificationSample> rest;
+            synchronized (this) {
+                closed = true;
+                rest = take();
+            }
+            post(rest);
+        }
+
+        private ArrayList<BleNotificationSample> take() {
+            ArrayList<BleNotificationSample> taken = batch;
+            batch = null;
+            if(flushTimeout != null){
+                flushTimeout.cancel();
+                flushTimeout = null;
+            }
+            return taken;
+        }
+
+        private void post(final List<BleNotificationSample> samples) {
+            if(samples == null){
+                return;
+            }
+            if(executor == null){
+                listener.onNotifications(samples);
+            }else{
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onNotifications(samples);
+                    }
+                });
+            }
+        }
+    }
+
+    private volatile Subscription[] subscriptions = new Subscription[0];
+
+    /**
+     * @param executor null delivers on the GATT callback thread
+     */
+    void addListener(@NonNull BleNotificationListener listener, @Nullable Executor executor,
+                     @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic) {
+        add(new ListenerSubscription(listener, executor, address, service, characteristic));
+    }
+
+    /**
+     * @param executor null delivers on the thread completing the batch, a GATT callback or the timer
+     */
+    void addBatchListener(@NonNull BleNotificationBatchListener listener, @Nullable Executor executor,
+                          @NonNull BleBatchPolicy policy, @NonNull HashedTimerWheel timer,
+                          @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic) {
+        add(new BatchSubscription(listener, executor, policy, timer, address, service, characteristic));
+    }
+
+    void addRing(@NonNull BleNotificationRing ring,
+                 @Nullable String address, @Nullable UUID service, @Nullable UUID characteristic) {
+        add(new RingSubscription(ring, address, service, characteristic));
+    }
+
+    synchronized void add(@NonNull Subscription subscription) {
+        Subscription[] current = subscriptions;
+        Subscription[] updated = new Subscription[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, current.length);
+        updated[current.length] = subscription;
+        subscriptions = updated;
+    }
+
+    /**
+     * Removes every subscription registered for {@code owner}.
+     */
+    void remove(@NonNull Object owner) {
+        ArrayList<Subscription> removed = new ArrayList<>();
+        synchronized (this) {
+            ArrayList<Subscription> kept = new ArrayList<>();
+            for(Subscription subscription : subscriptions){
+                if(subscription.isFor(owner)){
+                    removed.add(subscription);
+                }else{
+                    kept.add(subscription);
+                }
+            }
+            subscriptions = kept.toArray(new Subscription[kept.size()]);
+        }
+        for(Subscription subscription : removed){
+            subscription.close();
+        }
+    }
+
+    boolean isEmpty() {
+        return subscriptions.length == 0;
+    }
+
+    /**
+     * Hands the same {@code value} to every matching subscription, nobody may modify it.
+     * @return true if at least one subscription took the value
+     */
+    boolean dispatch(BleDeviceInfo device, UUID service, UUID characteristic, byte[] value) {
+        boolean delivered = false;
+        Subscription[] current = subscriptions;
+        for(int i = 0; i < current.length; i++){
+            Subscription subscription = current[i];
+            if(subscription.matches(device.getAddress(), service, characteristic)){
+                subscription.deliver(device, service, characteristic, value);
+                delivered = true;
+            }
+        }
+        return delivered;
+    }
+}
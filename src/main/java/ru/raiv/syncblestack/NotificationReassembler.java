@@ -0,0 +1,53 @@
+package ru.raiv.syncblestack;
+
+import android.support.annotation.Nullable;
+
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+
+import ru.raiv.syncblestack.utils.UuidPairMap;
+
+/**
+ * Collects notification fragments of one connection: a packet filling the whole MTU means more
+ * follow, a shorter one (possibly empty) ends the value.
+ * Not thread safe, guarded by the owning connection.
+ */
+
+class NotificationReassembler {
+
+    private final UuidPairMap<ByteArrayOutputStream> buffers = new UuidPairMap<>();
+
+    /**
+     * @param packetSize payload of a full packet, MTU minus the ATT header
+     * @return the complete value, or null while it is incomplete
+     */
+    @Nullable
+    byte[] add(UUID service, UUID characteristic, @Nullable byte[] fragment, int packetSize) {
+        int length = fragment != null ? fragment.length : 0;
+        ByteArrayOutputStream buffer = buffers.get(service, characteristic);
+        if(length >= packetSize){
+            if(buffer == null){
+                buffer = new ByteArrayOutputStream(length * 4);
+                buffers.put(service, characteristic, buffer);
+            }
+            buffer.write(fragment, 0, length);
+            return null;
+        }
+        if(buffer == null || buffer.size() == 0){
+            return fragment;
+        }
+        if(length > 0){
+            buffer.write(fragment, 0, length);
+        }
+        byte[] value = buffer.toByteArray();
+        buffer.reset();
+        return value;
+    }
+
+    /**
+     * Drops incomplete values, their remaining fragments will not come.
+     */
+    void clear() {
+        buffers.clear();
+    }
+}
@@ -0,0 +1,204 @@
+package ru.raiv.syncblestack;
+
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+import ru.raiv.syncblestack.tasks.BleOperation;
+import ru.raiv.syncblestack.tasks.BleTask;
+
+/**
+ * Request bookkeeping of one connection: the operation waiting to be issued, WRITE_NO_RESPONSE
+ * packets in flight with their credit window, and the numbering that matches GATT answers to
+ * requests. Not thread safe, guarded by the owning connection.
+ */
+
+class OperationPipeline {
+
+    static final int ANSWER_LATE = 0;
+    static final int ANSWER_STREAMED = 1;
+    static final int ANSWER_CURRENT = 2;
+
+    static final long WRITE_BACKOFF_MIN = 5;
+    static final long WRITE_BACKOFF_MAX = 320;
+
+    // packets handed to the stack but not yet confirmed, one entry per fragment
+    private final ArrayDeque<BleOperation> inFlight = new ArrayDeque<>();
+    // operation taken from the task but not issued yet (no credits or stack busy)
+    private BleOperation pendingOperation = null;
+    // bytes of the pending WRITE_NO_RESPONSE value already handed to the stack
+    private int fragmentOffset = 0;
+    private int writeWindow = 1;
+    private int maxWriteWindow = 1;
+    private long writeBackoff = 0;
+    // answers come back in issue order, see takeAnswer()
+    private long requestsIssued = 0;
+    private long answersReceived = 0;
+    private long currentRequest = -1;
+
+    void startTask(BleTask task) {
+        maxWriteWindow = task.getWriteWindow();
+        writeWindow = maxWriteWindow;
+        writeBackoff = 0;
+    }
+
+    /**
+     * Writes superseded by a later one are skipped, they are already reported as succeeded.
+     * @return the held operation, or the next one of the task, null when the task has no more
+     */
+    @Nullable
+    BleOperation next(BleTask task) {
+        BleOperation operation = pendingOperation;
+        pendingOperation = null;
+        while(operation == null || operation.isCoalesced()){
+            if(!task.hasNext()){
+                return null;
+            }
+            operation = task.next();
+        }
+        return operation;
+    }
+
+    /**
+     * Keeps the operation for the next {@link #next(BleTask)}, e.g. while the stream drains.
+     */
+    void hold(BleOperation operation) {
+        pendingOperation = operation;
+    }
+
+    boolean hasPending() {
+        return pendingOperation != null;
+    }
+
+    boolean hasInFlight() {
+        return !inFlight.isEmpty();
+    }
+
+    int getWriteWindow() {
+        return writeWindow;
+    }
+
+    boolean hasCredit() {
+        return inFlight.size() < writeWindow;
+    }
+
+    int getFragmentOffset() {
+        return fragmentOffset;
+    }
+
+    /**
+     * @param packetSize payload of one packet, MTU minus the ATT header
+     * @return end of the next packet of the value
+     */
+    int fragmentEnd(@Nullable byte[] value, int packetSize) {
+        if(value == null){
+            return 0;
+        }
+        return Math.min(value.length, fragmentOffset + packetSize);
+    }
+
+    /**
+     * The stack took a WRITE_NO_RESPONSE packet ending at {@code end}. A value with more to send
+     * stays held.
+     */
+    void onStreamed(BleOperation operation, int end) {
+        requestsIssued++;
+        inFlight.add(operation);
+        if(operation.getValue() != null && end < operation.getValue().length){
+            fragmentOffset = end;
+            pendingOperation = operation;
+        }else{
+            fragmentOffset = 0;
+        }
+    }
+
+    /**
+     * The stack refused a WRITE_NO_RESPONSE packet: the operation is held and the window halves.
+     * @return delay before retrying, 0 if a confirmation will restart the stream
+     */
+    long onStackBusy(BleOperation operation) {
+        pendingOperation = operation;
+        writeWindow = Math.max(1, writeWindow / 2);
+        if(!inFlight.isEmpty()){
+            return 0;
+        }
+        writeBackoff = writeBackoff == 0 ? WRITE_BACKOFF_MIN : Math.min(WRITE_BACKOFF_MAX, writeBackoff * 2);
+        return writeBackoff;
+    }
+
+    /**
+     * The stack took a request answered by its own callback.
+     */
+    void onRequestIssued() {
+        currentRequest = requestsIssued++;
+    }
+
+    /**
+     * Android answers GATT requests one at a time in the order they were issued, so the n-th answer
+     * belongs to the n-th request.
+     * @return {@link #ANSWER_STREAMED} for the oldest packet in flight, {@link #ANSWER_CURRENT} for
+     * the request issued last, {@link #ANSWER_LATE} for a request nobody waits for
+     */
+    int takeAnswer() {
+        if(answersReceived >= requestsIssued){
+            // late answer to an abandoned request, see abandon()
+            return ANSWER_LATE;
+        }
+        long answer = answersReceived++;
+        // streamed packets are issued back to back, nothing else is issued while they are in flight
+        if(!inFlight.isEmpty() && answer == requestsIssued - inFlight.size()){
+            return ANSWER_STREAMED;
+        }
+        if(answer == currentRequest){
+            currentRequest = -1;
+            return ANSWER_CURRENT;
+        }
+        return ANSWER_LATE;
+    }
+
+    /**
+     * Confirmation of the oldest streamed packet, returns one credit.
+     * @return the operation if this was its last fragment, null while fragments are outstanding
+     */
+    @Nullable
+    BleOperation confirmStreamed() {
+        BleOperation streamed = inFlight.poll();
+        if(writeWindow < maxWriteWindow){
+            writeWindow++;
+        }
+        writeBackoff = 0;
+        // a fragmented value is written once all its fragments are confirmed
+        boolean lastFragment = streamed != inFlight.peek()
+                && !(streamed == pendingOperation && fragmentOffset > 0);
+        return lastFragment ? streamed : null;
+    }
+
+    /**
+     * Fails everything issued or held, the task is over.
+     */
+    void abandon() {
+        for(BleOperation operation : inFlight){
+            operation.setSucceed(false);
+        }
+        inFlight.clear();
+        if(pendingOperation != null){
+            pendingOperation.setSucceed(false);
+            pendingOperation = null;
+        }
+        fragmentOffset = 0;
+        // an answer still on its way belongs to nobody now
+        currentRequest = -1;
+        // and it may never come: count it as received, or every later answer would be taken for
+        // the one before it. A late one is dropped by takeAnswer(), the stack refuses new
+        // requests until it is delivered.
+        answersReceived = requestsIssued;
+    }
+
+    /**
+     * The next gatt starts with nothing outstanding.
+     */
+    void onDisconnect() {
+        requestsIssued = 0;
+        answersReceived = 0;
+    }
+}
@@ -0,0 +1,271 @@
+package ru.raiv.syncblestack;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import ru.raiv.syncblestack.utils.ConvertUtils;
+
+/**
+ * Devices the service connected to, kept in a memory-mapped file of fixed size records so they
+ * are known right after a process restart. RSSI and last-seen updates are plain stores into the
+ * mapping, the OS writes them back. When full, the least recently seen record is reused.
+ */
+
+class PersistentDeviceCache {
+
+    private static final String TAG = PersistentDeviceCache.class.getSimpleName();
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x424C4543; // "BLEC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+
+    static final int MAX_NAME = 32;
+    static final int MAX_SERVICES = 12;
+
+    // record layout, mac 0 marks a free record
+    private static final int RECORD_SIZE = 256;
+    private static final int OFF_MAC = 0;
+    private static final int OFF_LAST_SEEN = 8;
+    private static final int OFF_RSSI = 16;
+    private static final int OFF_NAME_LENGTH = 20;
+    private static final int OFF_NAME = 21;
+    private static final int OFF_SERVICE_COUNT = 56;
+    private static final int OFF_SERVICES = 64;
+
+    static final class Entry {
+        final String address;
+        final String name;
+        final int rssi;
+        final long lastSeen;
+        final UUID[] services;
+
+        Entry(String address, String name, int rssi, long lastSeen, UUID[] services) {
+            this.address = address;
+            this.name = name;
+            this.rssi = rssi;
+            this.lastSeen = lastSeen;
+            this.services = services;
+        }
+    }
+
+    private final File path;
+    private final int capacity;
+    private final Map<Long, Integer> slots = new HashMap<>();
+    private boolean opened = false;
+    private RandomAccessFile file = null;
+    private MappedByteBuffer buffer = null;
+
+    PersistentDeviceCache(File path, int capacity) {
+        this.path = path;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Maps the file once, on first use unless called ahead of it off the main thread. A missing,
+     * foreign or resized file is reinitialized. A closed cache stays closed.
+     * @return true if the file is mapped
+     */
+    synchronized boolean open() {
+        if(opened){
+            return buffer != null;
+        }
+        opened = true;
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        try{
+            file = new RandomAccessFile(path, "rw");
+            boolean fresh = file.length() != size;
+            file.setLength(size);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if(fresh || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != capacity){
+                for(int i = 0; i < size; i++){
+                    buffer.put(i, (byte) 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+            }
+            slots.clear();
+            for(int slot = 0; slot < capacity; slot++){
+                long mac = buffer.getLong(offset(slot) + OFF_MAC);
+                if(mac != 0){
+                    slots.put(mac, slot);
+                }
+            }
+            return true;
+        }catch(IOException e){
+            Log.w(TAG, "device cache unavailable", e);
+            close();
+            return false;
+        }
+    }
+
+    synchronized void close() {
+        opened = true;
+        if(buffer != null){
+            buffer.force();
+            buffer = null;
+        }
+        if(file != null){
+            try{
+                file.close();
+            }catch(IOException e){
+                Log.w(TAG, "device cache close failed", e);
+            }
+            file = null;
+        }
+        slots.clear();
+    }
+
+    /**
+     * @return record of a known device, -1 if the device is not cached
+     */
+    synchronized int slotOf(long mac) {
+        open();
+        Integer slot = slots.get(mac);
+        return slot != null ? slot : -1;
+    }
+
+    synchronized void updateSignal(int slot, long mac, int rssi, long lastSeen) {
+        if(!open()){
+            return;
+        }
+        int offset = offset(slot);
+        // the record may have been reused for another device meanwhile
+        if(buffer.getLong(offset + OFF_MAC) != mac){
+            return;
+        }
+        buffer.putInt(offset + OFF_RSSI, rssi);
+        buffer.putLong(offset + OFF_LAST_SEEN, lastSeen);
+    }
+
+    /**
+     * Stores a connected device and its service layout, services beyond {@link #MAX_SERVICES} are not kept.
+     * @return record used
+     */
+    synchronized int store(String address, @Nullable String name, int rssi, long lastSeen, List<UUID> services) {
+        long mac = ConvertUtils.macToLong(address);
+        if(!open() || mac <= 0){
+            return -1;
+        }
+        int slot = slotOf(mac);
+        if(slot < 0){
+            slot = freeSlot();
+            Long evicted = buffer.getLong(offset(slot) + OFF_MAC);
+            slots.remove(evicted);
+            slots.put(mac, slot);
+        }
+        int offset = offset(slot);
+        buffer.putLong(offset + OFF_MAC, mac);
+        buffer.putLong(offset + OFF_LAST_SEEN, lastSeen);
+        buffer.putInt(offset + OFF_RSSI, rssi);
+        byte[] nameBytes = name != null ? name.getBytes(UTF8) : new byte[0];
+        int nameLength = truncatedLength(nameBytes, MAX_NAME);
+        buffer.put(offset + OFF_NAME_LENGTH, (byte) nameLength);
+        for(int i = 0; i < nameLength; i++){
+            buffer.put(offset + OFF_NAME + i, nameBytes[i]);
+        }
+        int count = Math.min(services.size(), MAX_SERVICES);
+        buffer.put(offset + OFF_SERVICE_COUNT, (byte) count);
+        for(int i = 0; i < count; i++){
+            UUID uuid = services.get(i);
+            buffer.putLong(offset + OFF_SERVICES + i * 16, uuid.getMostSignificantBits());
+            buffer.putLong(offset + OFF_SERVICES + i * 16 + 8, uuid.getLeastSignificantBits());
+        }
+        // written back by the OS like signal updates, close() forces the rest
+        return slot;
+    }
+
+    synchronized void remove(String address) {
+        open();
+        Integer slot = slots.remove(ConvertUtils.macToLong(address));
+        if(slot != null && buffer != null){
+            buffer.putLong(offset(slot) + OFF_MAC, 0);
+        }
+    }
+
+    @Nullable
+    synchronized Entry get(String address) {
+        int slot = slotOf(ConvertUtils.macToLong(address));
+        return slot >= 0 ? read(slot) : null;
+    }
+
+    synchronized List<Entry> entries() {
+        open();
+        ArrayList<Entry> result = new ArrayList<>(slots.size());
+        for(int slot : slots.values()){
+            result.add(read(slot));
+        }
+        return result;
+    }
+
+    private Entry read(int slot) {
+        int offset = offset(slot);
+        int nameLength = buffer.get(offset + OFF_NAME_LENGTH) & 0xFF;
+        byte[] nameBytes = new byte[nameLength];
+        for(int i = 0; i < nameLength; i++){
+            nameBytes[i] = buffer.get(offset + OFF_NAME + i);
+        }
+        int count = Math.min(buffer.get(offset + OFF_SERVICE_COUNT) & 0xFF, MAX_SERVICES);
+        UUID[] services = new UUID[count];
+        for(int i = 0; i < count; i++){
+            services[i] = new UUID(buffer.getLong(offset + OFF_SERVICES + i * 16),
+                    buffer.getLong(offset + OFF_SERVICES + i * 16 + 8));
+        }
+        return new Entry(ConvertUtils.longToMac(buffer.getLong(offset + OFF_MAC)),
+                nameLength > 0 ? new String(nameBytes, UTF8) : null,
+                buffer.getInt(offset + OFF_RSSI),
+                buffer.getLong(offset + OFF_LAST_SEEN),
+                services);
+    }
+
+    /**
+     * @return length of the longest prefix of a UTF-8 value not longer than {@code max} that does
+     * not split a character
+     */
+    static int truncatedLength(byte[] utf8, int max) {
+        if(utf8.length <= max){
+            return utf8.length;
+        }
+        int end = max;
+        // continuation bytes are 10xxxxxx, drop the character the cut falls into
+        while(end > 0 && (utf8[end] & 0xC0) == 0x80){
+            end--;
+        }
+        return end;
+    }
+
+    // empty record or the least recently seen one
+    private int freeSlot() {
+        int oldest = 0;
+        long oldestSeen = Long.MAX_VALUE;
+        for(int slot = 0; slot < capacity; slot++){
+            int offset = offset(slot);
+            if(buffer.getLong(offset + OFF_MAC) == 0){
+                return slot;
+            }
+            long seen = buffer.getLong(offset + OFF_LAST_SEEN);
+            if(seen < oldestSeen){
+                oldestSeen = seen;
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private static int offset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+}
@@ -0,0 +1,202 @@
+package ru.raiv.syncblestack;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scanner implementation behind BluetoothLeServiceSync: BluetoothLeScanner with controller side
+ * filtering and batching where available, BluetoothAdapter.startLeScan on API 18-20.
+ */
+
+abstract class ScanBackend {
+
+    private static final String TAG = ScanBackend.class.getSimpleName();
+
+    interface Sink {
+        void onScanResult(BluetoothDevice device, int rssi, byte[] scanRecord);
+
+        void onScanFailed(ScanBackend backend, int errorCode);
+    }
+
+    final List<BleScanFilter> filters;
+    final BleScanSettings settings;
+    final Sink sink;
+
+    ScanBackend(List<BleScanFilter> filters, BleScanSettings settings, Sink sink) {
+        this.filters = filters;
+        this.settings = settings;
+        this.sink = sink;
+    }
+
+    static ScanBackend create(BluetoothAdapter adapter, List<BleScanFilter> filters, BleScanSettings settings, Sink sink) {
+        if(!settings.isLegacy() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+            BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+            if(scanner != null){
+                return new LeScanner(scanner, filters, settings, sink);
+            }
+        }
+        return new Legacy(adapter, filters, settings, sink);
+    }
+
+    abstract boolean start();
+
+    abstract void stop();
+
+    /**
+     * @return true if the scan has to be stopped and restarted to see already reported devices again
+     */
+    abstract boolean needsRestart();
+
+    /**
+     * Asks the controller to deliver results batched so far.
+     */
+    void flush() {
+    }
+
+    @SuppressWarnings("deprecation")
+    private static final class Legacy extends ScanBackend implements BluetoothAdapter.LeScanCallback {
+        private final BluetoothAdapter adapter;
+        // callbacks come one at a time, the view is reused for all of them
+        private final BleAdvertisement advertisement = new BleAdvertisement();
+
+        Legacy(BluetoothAdapter adapter, List<BleScanFilter> filters, BleScanSettings settings, Sink sink) {
+            super(filters, settings, sink);
+            this.adapter = adapter;
+        }
+
+        @Override
+        boolean start() {
+            return adapter.startLeScan(this);
+        }
+
+        @Override
+        void stop() {
+            adapter.stopLeScan(this);
+        }
+
+        @Override
+        boolean needsRestart() {
+            return true;
+        }
+
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if(!filters.isEmpty()){
+                boolean matches = false;
+                for(int i = 0; i < filters.size() && !matches; i++){
+                    matches = filters.get(i).matches(device, advertisement.wrap(scanRecord));
+                }
+                if(!matches){
+                    return;
+                }
+            }
+            sink.onScanResult(device, rssi, scanRecord);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static final class LeScanner extends ScanBackend {
+        private final BluetoothLeScanner scanner;
+        private final ScanCallback callback = new ScanCallback() {
+            @Override
+            public void onScanResult(int callbackType, ScanResult result) {
+                deliver(result);
+            }
+
+            @Override
+            public void onBatchScanResults(List<ScanResult> results) {
+                for(int i = 0; i < results.size(); i++){
+                    deliver(results.get(i));
+                }
+            }
+
+            @Override
+            public void onScanFailed(int errorCode) {
+                Log.w(TAG, "BluetoothLeScanner failed: " + errorCode);
+                sink.onScanFailed(LeScanner.this, errorCode);
+            }
+        };
+
+        LeScanner(BluetoothLeScanner scanner, List<BleScanFilter> filters, BleScanSettings settings, Sink sink) {
+            super(filters, settings, sink);
+            this.scanner = scanner;
+        }
+
+        private void deliver(ScanResult result) {
+            ScanRecord record = result.getScanRecord();
+            sink.onScanResult(result.getDevice(), result.getRssi(), record != null ? record.getBytes() : null);
+        }
+
+        @Override
+        boolean start() {
+            List<ScanFilter> scanFilters = new ArrayList<>(filters.size());
+            for(BleScanFilter filter : filters){
+                ScanFilter.Builder builder = new ScanFilter.Builder();
+                if(filter.getServiceUuid() != null){
+                    builder.setServiceUuid(new ParcelUuid(filter.getServiceUuid()));
+                }
+                if(filter.getDeviceName() != null){
+                    builder.setDeviceName(filter.getDeviceName());
+                }
+                if(filter.getDeviceAddress() != null){
+                    builder.setDeviceAddress(filter.getDeviceAddress().toUpperCase());
+                }
+                if(filter.getManufacturerId() >= 0){
+                    byte[] data = filter.getManufacturerData();
+                    builder.setManufacturerData(filter.getManufacturerId(), data != null ? data : new byte[0]);
+                }
+                scanFilters.add(builder.build());
+            }
+            ScanSettings scanSettings = new ScanSettings.Builder()
+                    .setScanMode(settings.getScanMode())
+                    .setReportDelay(settings.getReportDelay())
+                    .build();
+            try{
+                scanner.startScan(scanFilters, scanSettings, callback);
+                return true;
+            }catch(IllegalStateException e){
+                // adapter switched off meanwhile
+                Log.w(TAG, "BluetoothLeScanner start failed", e);
+                return false;
+            }
+        }
+
+        @Override
+        void stop() {
+            try{
+                scanner.stopScan(callback);
+            }catch(IllegalStateException e){
+                Log.w(TAG, "BluetoothLeScanner stop failed", e);
+            }
+        }
+
+        @Override
+        boolean needsRestart() {
+            return false;
+        }
+
+        @Override
+        void flush() {
+            if(settings.getReportDelay() > 0){
+                try{
+                    scanner.flushPendingScanResults(callback);
+                }catch(IllegalStateException e){
+                    Log.w(TAG, "BluetoothLeScanner flush failed", e);
+                }
+            }
+        }
+    }
+}
@@ -18,6 +18,8 @@ public class BleOperation implements Parcelable{
     private byte[] value;
 
     private boolean succeed = false;
+    private boolean coalesced = false;
+    private boolean fromCache = false;
     private UUID service;
     private UUID characteristic;
     private BleOperationType opType;
@@ -31,6 +33,13 @@ public class BleOperation implements Parcelable{
     }
 
 
+    /**
+     * @return a fresh, not yet executed operation with the same target, type and value
+     */
+    public BleOperation copy(){
+        return new BleOperation(service,characteristic,value!=null?value.clone():null,opType);
+    }
+
     protected BleOperation(Parcel in) {
         value = in.createByteArray();
         succeed = in.readByte() != 0;
@@ -38,6 +47,8 @@ public class BleOperation implements Parcelable{
         characteristic=UUID.fromString(in.readString());
         int ord = in.readInt();
         opType=BleOperationType.values()[ord];
+        coalesced = in.readByte() != 0;
+        fromCache = in.readByte() != 0;
     }
 
     @Override
@@ -47,6 +58,8 @@ public class BleOperation implements Parcelable{
         dest.writeString(service.toString());
         dest.writeString(characteristic.toString());
         dest.writeInt(opType!=null?opType.ordinal():-1);
+        dest.writeByte((byte) (coalesced ? 1 : 0));
+        dest.writeByte((byte) (fromCache ? 1 : 0));
     }
 
     @Override
@@ -157,5 +170,31 @@ public class BleOperation implements Parcelable{
         this.succeed = succeed;
     }
 
+    /**
+     * @return true if the write was never sent because a later write to the same characteristic replaced it
+     */
+    public boolean isCoalesced() {
+        return coalesced;
+    }
+
+    void setCoalesced(boolean coalesced) {
+        this.coalesced = coalesced;
+    }
+
+    /**
+     * @return true if a READ was answered from the device value cache instead of the peripheral
+     */
+    public boolean isFromCache() {
+        return fromCache;
+    }
+
+    public void setFromCache(boolean fromCache) {
+        this.fromCache = fromCache;
+    }
+
+    boolean isWrite() {
+        return opType == BleOperationType.WRITE || opType == BleOperationType.WRITE_NO_RESPONSE;
+    }
+
 
 }
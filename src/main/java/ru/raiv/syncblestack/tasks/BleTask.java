@@ -1,6 +1,7 @@
 package ru.raiv.syncblestack.tasks;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -16,4 +17,31 @@ public interface BleTask extends Iterator<BleOperation> {
     BleOperation getByName(String name);
     boolean hasCurrent();
     boolean allSucceed();
+
+    /**
+     * @return how many WRITE_NO_RESPONSE operations may be in flight at once, 1 disables streaming
+     */
+    int getWriteWindow();
+
+    /**
+     * @return milliseconds to wait for the peripheral to answer one operation, 0 waits forever
+     */
+    long getOperationTimeout();
+
+    /**
+     * @return milliseconds the whole task may run once dispatched, 0 means no limit
+     */
+    long getTaskTimeout();
+
+    BleTaskPriority getPriority();
+
+    /**
+     * @return true if queued writes of this task may be superseded by later coalescing tasks
+     */
+    boolean isCoalescing();
+
+    /**
+     * @return all operations in execution order, without touching the iteration state
+     */
+    List<BleOperation> getOperations();
 }
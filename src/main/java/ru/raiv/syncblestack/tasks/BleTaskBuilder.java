@@ -37,9 +37,31 @@ public class BleTaskBuilder {
         operationFactory = new BleOperationFactory();
     }
 
+    /**
+     * Starts a builder with copies of the template operations and its settings, so the same
+     * task can run on several devices. Callbacks and sync/async mode are not taken over.
+     */
+    public static BleTaskBuilder fromTemplate(@NonNull BleTask template){
+        BleTaskBuilder builder = new BleTaskBuilder();
+        for(BleOperation operation:template.getOperations()){
+            builder.addOperation(operation.copy());
+        }
+        builder.writeWindow=template.getWriteWindow();
+        builder.operationTimeout=template.getOperationTimeout();
+        builder.taskTimeout=template.getTaskTimeout();
+        builder.priority=template.getPriority();
+        builder.coalescing=template.isCoalescing();
+        return builder;
+    }
+
     private BleTaskCompleteCallback callback = null;
     private boolean isAsync = false;
     private Handler callbackHandler=null;
+    private int writeWindow = 1;
+    private long operationTimeout = 0;
+    private long taskTimeout = 0;
+    private BleTaskPriority priority = BleTaskPriority.NORMAL;
+    private boolean coalescing = false;
 
 
 
@@ -168,16 +190,73 @@ public class BleTaskBuilder {
         return this;
     }
 
+    /**
+     * Enables streaming of consecutive WRITE_NO_RESPONSE operations: up to {@code window} packets
+     * are handed to the stack before waiting for write confirmations. 1 (default) sends them one by one.
+     */
+    public BleTaskBuilder setWriteWindow(int window){
+        if(window<1){
+            throw new IllegalArgumentException("BleTaskBuilder: write window must be positive!");
+        }
+        this.writeWindow=window;
+        return this;
+    }
+
+    /**
+     * Fails the task when the peripheral does not answer a single operation within {@code millis}.
+     * 0 (default) waits forever.
+     */
+    public BleTaskBuilder setOperationTimeout(long millis){
+        if(millis<0){
+            throw new IllegalArgumentException("BleTaskBuilder: timeout must not be negative!");
+        }
+        this.operationTimeout=millis;
+        return this;
+    }
+
+    /**
+     * Fails the task when it is not finished within {@code millis} after it was dispatched.
+     * 0 (default) means no limit.
+     */
+    public BleTaskBuilder setTaskTimeout(long millis){
+        if(millis<0){
+            throw new IllegalArgumentException("BleTaskBuilder: timeout must not be negative!");
+        }
+        this.taskTimeout=millis;
+        return this;
+    }
+
+    public BleTaskBuilder setPriority(@NonNull BleTaskPriority priority){
+        this.priority=priority;
+        return this;
+    }
+
+    /**
+     * Opt-in write coalescing: a WRITE or WRITE_NO_RESPONSE of this task supersedes unsent writes
+     * to the same characteristic in queued coalescing tasks, so only the latest value goes on air.
+     * Superseded operations complete as succeeded and {@link BleOperation#isCoalesced()}.
+     */
+    public BleTaskBuilder setCoalesceWrites(boolean coalescing){
+        this.coalescing=coalescing;
+        return this;
+    }
+
     public BleTask build(){
-        //BleTask task;
+        MultiTask task;
 
             if(isAsync){
-                return new MultiTaskAsync(operations,callback,callbackHandler!=null?callbackHandler:new Handler());
+                task = new MultiTaskAsync(operations,callback,callbackHandler!=null?callbackHandler:new Handler());
 
             }else{
-                return new MultiTaskSync(operations);
+                task = new MultiTaskSync(operations);
 
             }
+        task.writeWindow=writeWindow;
+        task.operationTimeout=operationTimeout;
+        task.taskTimeout=taskTimeout;
+        task.priority=priority;
+        task.coalescing=coalescing;
+        return task;
     }
 
 }
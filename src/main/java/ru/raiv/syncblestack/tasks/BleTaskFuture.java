@@ -0,0 +1,230 @@
+package ru.raiv.syncblestack.tasks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle of a submitted {@link BleTask}. Completes with the task itself once all its
+ * operations are processed, check {@link BleTask#allSucceed()} for the outcome.
+ * Nobody is parked while waiting: listeners run on the executor they were registered with.
+ */
+
+public class BleTaskFuture implements Future<BleTask> {
+
+    public interface Listener {
+        void onComplete(BleTaskFuture future);
+    }
+
+    /**
+     * Produces the next step of a chain, return null to end the chain with the current task.
+     */
+    public interface Continuation {
+        @Nullable
+        BleTaskFuture then(BleTask completed);
+    }
+
+    private static final int PENDING = 0;
+    private static final int DONE = 1;
+    private static final int CANCELLED = 2;
+
+    private final BleTask task;
+    private final long submitNanos = System.nanoTime();
+    private int state = PENDING;
+    private BleTask result = null;
+    private List<Runnable> listeners = null;
+    private Runnable cancelHook = null;
+
+    public BleTaskFuture(@NonNull BleTask task) {
+        this.task = task;
+    }
+
+    public BleTask getTask() {
+        return task;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when the task was submitted
+     */
+    public long getSubmitNanos() {
+        return submitNanos;
+    }
+
+    /**
+     * Completes the future with its task. Has no effect once the future is done or cancelled.
+     * @return true if this call completed the future
+     */
+    public boolean complete() {
+        return finish(DONE, task);
+    }
+
+    /**
+     * Installs the action run by {@link #cancel(boolean)}, e.g. removal from a dispatch queue.
+     */
+    public void setCancelHook(@Nullable Runnable cancelHook) {
+        synchronized (this) {
+            if(state == PENDING){
+                this.cancelHook = cancelHook;
+                return;
+            }
+        }
+        // already cancelled, let the owner clean up
+        if(cancelHook != null && isCancelled()){
+            cancelHook.run();
+        }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return finish(CANCELLED, null);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return state == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    @Override
+    public synchronized BleTask get() throws InterruptedException {
+        while(state == PENDING){
+            wait();
+        }
+        return report();
+    }
+
+    @Override
+    public synchronized BleTask get(long timeout, @NonNull TimeUnit unit) throws InterruptedException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(state == PENDING){
+            long left = deadline - System.nanoTime();
+            if(left <= 0){
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return report();
+    }
+
+    /**
+     * Runs {@code listener} on {@code executor} once the future is done or cancelled,
+     * immediately if it already is.
+     */
+    public BleTaskFuture addListener(@NonNull final Executor executor, @NonNull final Listener listener) {
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onComplete(BleTaskFuture.this);
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if(state == PENDING){
+                if(listeners == null){
+                    listeners = new ArrayList<>(2);
+                }
+                listeners.add(notification);
+                return this;
+            }
+        }
+        notification.run();
+        return this;
+    }
+
+    /**
+     * Chains the next step: when this future completes, {@code continuation} runs on {@code executor}
+     * and the returned future follows the future it produced. Cancellation is propagated downstream.
+     */
+    public BleTaskFuture then(@NonNull Executor executor, @NonNull final Continuation continuation) {
+        final BleTaskFuture chained = new BleTaskFuture(task);
+        addListener(executor, new Listener() {
+            @Override
+            public void onComplete(BleTaskFuture future) {
+                if(future.isCancelled()){
+                    chained.cancel(false);
+                    return;
+                }
+                BleTaskFuture next;
+                try{
+                    next = continuation.then(future.result);
+                }catch(RuntimeException e){
+                    chained.cancel(false);
+                    throw e;
+                }
+                if(next == null){
+                    chained.finish(DONE, future.result);
+                }else{
+                    next.addListener(DIRECT, new Listener() {
+                        @Override
+                        public void onComplete(BleTaskFuture future) {
+                            if(future.isCancelled()){
+                                chained.cancel(false);
+                            }else{
+                                chained.finish(DONE, future.result);
+                            }
+                        }
+                    });
+                }
+            }
+        });
+        return chained;
+    }
+
+    /**
+     * Executor that runs listeners on the completing thread.
+     */
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(@NonNull Runnable command) {
+            command.run();
+        }
+    };
+
+    private BleTask report() {
+        if(state == CANCELLED){
+            throw new CancellationException();
+        }
+        return result;
+    }
+
+    private boolean finish(int newState, BleTask newResult) {
+        List<Runnable> toNotify;
+        Runnable hook;
+        synchronized (this) {
+            if(state != PENDING){
+                return false;
+            }
+            state = newState;
+            result = newResult;
+            toNotify = listeners;
+            listeners = null;
+            hook = newState == CANCELLED ? cancelHook : null;
+            cancelHook = null;
+            notifyAll();
+        }
+        if(hook != null){
+            hook.run();
+        }
+        if(toNotify != null){
+            for(Runnable notification : toNotify){
+                notification.run();
+            }
+        }
+        return true;
+    }
+}
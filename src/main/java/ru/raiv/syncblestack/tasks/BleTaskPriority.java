@@ -0,0 +1,9 @@
+package ru.raiv.syncblestack.tasks;
+
+public enum BleTaskPriority {
+    // user initiated commands, served first
+    INTERACTIVE,
+    NORMAL,
+    // background polling and large transfers
+    BULK;
+}
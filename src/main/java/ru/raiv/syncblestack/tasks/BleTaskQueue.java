@@ -0,0 +1,185 @@
+package ru.raiv.syncblestack.tasks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+
+/**
+ * Task queue with one FIFO lane per {@link BleTaskPriority}.
+ * STRICT always serves the highest non-empty lane, but a waiting lane that was passed over
+ * {@code starvationLimit} times in a row is served once. WEIGHTED interleaves lanes in
+ * proportion to their weights (smooth weighted round robin).
+ */
+
+public class BleTaskQueue {
+
+    public enum Policy {
+        STRICT,
+        WEIGHTED;
+    }
+
+    public static final int[] DEFAULT_WEIGHTS = {8, 4, 1};
+    public static final int DEFAULT_STARVATION_LIMIT = 8;
+
+    private static final int LANES = BleTaskPriority.values().length;
+
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<BleTaskFuture>[] lanes = new ArrayDeque[LANES];
+    private final int[] weights = new int[LANES];
+    private final int[] current = new int[LANES];
+    private final int[] passedOver = new int[LANES];
+    private Policy policy = Policy.STRICT;
+    private int starvationLimit = DEFAULT_STARVATION_LIMIT;
+    private int size = 0;
+
+    public BleTaskQueue() {
+        for(int i = 0; i < LANES; i++){
+            lanes[i] = new ArrayDeque<>();
+        }
+        System.arraycopy(DEFAULT_WEIGHTS, 0, weights, 0, LANES);
+    }
+
+    /**
+     * @param weights one positive weight per priority, in {@link BleTaskPriority} order. Used by WEIGHTED only
+     * @param starvationLimit dispatches a lower lane may be skipped under STRICT, 0 disables the guard
+     */
+    public synchronized void configure(@NonNull Policy policy, @NonNull int[] weights, int starvationLimit) {
+        checkWeights(weights);
+        this.policy = policy;
+        System.arraycopy(weights, 0, this.weights, 0, LANES);
+        this.starvationLimit = starvationLimit;
+        for(int i = 0; i < LANES; i++){
+            current[i] = 0;
+            passedOver[i] = 0;
+        }
+    }
+
+    public static void checkWeights(@NonNull int[] weights) {
+        if(weights.length != LANES){
+            throw new IllegalArgumentException("BleTaskQueue: one weight per priority expected!");
+        }
+        for(int weight : weights){
+            if(weight <= 0){
+                throw new IllegalArgumentException("BleTaskQueue: weights must be positive!");
+            }
+        }
+    }
+
+    public synchronized void add(@NonNull BleTaskFuture task) {
+        for(BleOperation operation : task.getTask().getOperations()){
+            operation.setCoalesced(false);
+        }
+        if(task.getTask().isCoalescing()){
+            supersedeWrites(task.getTask());
+        }
+        lanes[laneOf(task)].add(task);
+        size++;
+    }
+
+    /**
+     * @return true if the task was still waiting and is removed now
+     */
+    public synchronized boolean remove(@NonNull BleTaskFuture task) {
+        if(lanes[laneOf(task)].remove(task)){
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    @Nullable
+    public synchronized BleTaskFuture poll() {
+        if(size == 0){
+            return null;
+        }
+        int lane = policy == Policy.WEIGHTED ? pickWeighted() : pickStrict();
+        size--;
+        return lanes[lane].poll();
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // marks waiting writes of coalescing tasks that target a characteristic written by the incoming task
+    private void supersedeWrites(BleTask incoming) {
+        for(BleOperation write : incoming.getOperations()){
+            if(!write.isWrite()){
+                continue;
+            }
+            for(ArrayDeque<BleTaskFuture> lane : lanes){
+                for(BleTaskFuture waiting : lane){
+                    if(!waiting.getTask().isCoalescing()){
+                        continue;
+                    }
+                    for(BleOperation queued : waiting.getTask().getOperations()){
+                        if(queued.isWrite() && !queued.isCoalesced()
+                                && queued.getCharacteristic().equals(write.getCharacteristic())
+                                && queued.getService().equals(write.getService())){
+                            queued.setCoalesced(true);
+                            queued.setSucceed(true);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int laneOf(BleTaskFuture task) {
+        BleTaskPriority priority = task.getTask().getPriority();
+        return priority != null ? priority.ordinal() : BleTaskPriority.NORMAL.ordinal();
+    }
+
+    private int pickStrict() {
+        int lane = -1;
+        if(starvationLimit > 0){
+            // the most starved lane wins once it hits the limit
+            int worst = 0;
+            for(int i = LANES - 1; i > 0; i--){
+                if(!lanes[i].isEmpty() && passedOver[i] >= starvationLimit && passedOver[i] > worst){
+                    worst = passedOver[i];
+                    lane = i;
+                }
+            }
+        }
+        if(lane < 0){
+            for(int i = 0; i < LANES; i++){
+                if(!lanes[i].isEmpty()){
+                    lane = i;
+                    break;
+                }
+            }
+        }
+        for(int i = 0; i < LANES; i++){
+            if(i == lane || lanes[i].isEmpty()){
+                passedOver[i] = 0;
+            }else{
+                passedOver[i]++;
+            }
+        }
+        return lane;
+    }
+
+    private int pickWeighted() {
+        int total = 0;
+        int lane = -1;
+        for(int i = 0; i < LANES; i++){
+            if(lanes[i].isEmpty()){
+                current[i] = 0;
+                continue;
+            }
+            current[i] += weights[i];
+            total += weights[i];
+            if(lane < 0 || current[i] > current[lane]){
+                lane = i;
+            }
+        }
+        current[lane] -= total;
+        return lane;
+    }
+}
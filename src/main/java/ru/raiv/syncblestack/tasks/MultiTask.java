@@ -1,9 +1,11 @@
 package ru.raiv.syncblestack.tasks;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
 import java.util.UUID;
 
 /**
@@ -12,14 +14,22 @@ import java.util.UUID;
 
 class MultiTask implements BleTask{
 
-    LinkedHashMap<UUID,BleOperation> operations =new LinkedHashMap<>();
-    //int innerIndex = -1;
-    Iterator<Map.Entry<UUID,BleOperation>> current;
+    // several operations may target one characteristic (e.g. a chunked write stream),
+    // so order is kept in a list and the map only serves lookups by name
+    final ArrayList<BleOperation> operations =new ArrayList<>();
+    final HashMap<UUID,BleOperation> byName =new HashMap<>();
+    Iterator<BleOperation> current;
     BleOperation currentOp = null;
+    int writeWindow = 1;
+    long operationTimeout = 0;
+    long taskTimeout = 0;
+    BleTaskPriority priority = BleTaskPriority.NORMAL;
+    boolean coalescing = false;
     MultiTask(Collection<BleOperation> tasks)
     {
         for(BleOperation op:tasks) {
-            operations.put(op.getCharacteristic(), op);
+            operations.add(op);
+            byName.put(op.getCharacteristic(), op);
         }
         reset();
     }
@@ -33,7 +43,7 @@ class MultiTask implements BleTask{
 
     public synchronized BleOperation next(){
         if(current.hasNext()){
-            currentOp= current.next().getValue();
+            currentOp= current.next();
 
         }else{
             currentOp=null;
@@ -43,7 +53,7 @@ class MultiTask implements BleTask{
 
     public synchronized void reset(){
 
-        current=operations.entrySet().iterator();
+        current=operations.iterator();
         currentOp=null;
         //switch to first element
 
@@ -63,7 +73,7 @@ class MultiTask implements BleTask{
 
     @Override
     public BleOperation getByName(UUID name) {
-       return operations.get(name);
+       return byName.get(name);
     }
 
     @Override
@@ -78,11 +88,41 @@ class MultiTask implements BleTask{
 
     @Override
     public boolean allSucceed() {
-        for(BleOperation op:operations.values()){
+        for(BleOperation op:operations){
             if(!op.isSucceed()){
                 return false;
             }
         }
         return true;
     }
+
+    @Override
+    public int getWriteWindow() {
+        return writeWindow;
+    }
+
+    @Override
+    public long getOperationTimeout() {
+        return operationTimeout;
+    }
+
+    @Override
+    public long getTaskTimeout() {
+        return taskTimeout;
+    }
+
+    @Override
+    public BleTaskPriority getPriority() {
+        return priority;
+    }
+
+    @Override
+    public boolean isCoalescing() {
+        return coalescing;
+    }
+
+    @Override
+    public List<BleOperation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
 }
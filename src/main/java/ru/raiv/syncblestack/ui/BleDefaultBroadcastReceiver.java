@@ -10,6 +10,7 @@ import java.util.ArrayList;
 
 import ru.raiv.syncblestack.BleCallbacks;
 import ru.raiv.syncblestack.BleConst;
+import ru.raiv.syncblestack.BleDeviceChangesCallbacks;
 import ru.raiv.syncblestack.BleDeviceInfo;
 import ru.raiv.syncblestack.tasks.BleOperation;
 
@@ -56,18 +57,15 @@ public class BleDefaultBroadcastReceiver extends BroadcastReceiver {
             return;
         }
         if (BleConst.ACTION_DEVICES_FOUND.equals(action)){
-            Parcelable[] data =  intent.getParcelableArrayExtra(BleConst.PARAM_DEVICES_FOUND_LIST);
-            BleDeviceInfo[] bdi;
-            if(data !=null && data.length>0){// error in galxy s5
-                ArrayList<BleDeviceInfo> bdiArray = new ArrayList<>();
-                for(Parcelable p: data){
-                    bdiArray.add((BleDeviceInfo)p);
-                }
-                bdi=bdiArray.toArray(new BleDeviceInfo[bdiArray.size()]);
-            }else{
-                bdi = new BleDeviceInfo[0];
+            callbacks.onDevicesFound(getDevices(intent,BleConst.PARAM_DEVICES_FOUND_LIST));
+            return;
+        }
+        if (BleConst.ACTION_DEVICES_CHANGED.equals(action)){
+            if(callbacks instanceof BleDeviceChangesCallbacks) {
+                ((BleDeviceChangesCallbacks) callbacks).onDevicesChanged(getDevices(intent, BleConst.PARAM_DEVICES_ADDED),
+                        getDevices(intent, BleConst.PARAM_DEVICES_UPDATED),
+                        getDevices(intent, BleConst.PARAM_DEVICES_REMOVED));
             }
-            callbacks.onDevicesFound(bdi);
             return;
         }
         if (BleConst.ACTION_SEARCH_FINISHED.equals(action)){
@@ -76,6 +74,21 @@ public class BleDefaultBroadcastReceiver extends BroadcastReceiver {
         }
     }
 
+    private static BleDeviceInfo[] getDevices(Intent intent, String param){
+        Parcelable[] data =  intent.getParcelableArrayExtra(param);
+        BleDeviceInfo[] bdi;
+        if(data !=null && data.length>0){// error in galxy s5
+            ArrayList<BleDeviceInfo> bdiArray = new ArrayList<>();
+            for(Parcelable p: data){
+                bdiArray.add((BleDeviceInfo)p);
+            }
+            bdi=bdiArray.toArray(new BleDeviceInfo[bdiArray.size()]);
+        }else{
+            bdi = new BleDeviceInfo[0];
+        }
+        return bdi;
+    }
+
     public BleCallbacks getCallbacks() {
         return callbacks;
     }
@@ -60,9 +60,9 @@ public class ServiceConnectionManager {
 
         private BinderWrapper(){};
 
-        public boolean addTask(BleTask task){
+        public boolean addTask(BleDeviceInfo device,BleTask task){
             if(binder!=null){
-                binder.addTask(task);
+                binder.addTask(device,task);
                 return true;
             }
             return false;
@@ -0,0 +1,179 @@
+package ru.raiv.syncblestack.utils;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide lifecycle trace: fixed-size binary events in a preallocated ring, the oldest are
+ * overwritten. Recording formats nothing and allocates nothing, text is produced by {@link #format}
+ * only. Off until {@link #start(int)}, a disabled trace costs one volatile read per event.
+ * <p>
+ * Event: {@code [nanoTime][type u8 | device u48][subject u64][arg0 i32 | arg1 i32]}. Device is a MAC
+ * packed by {@link ConvertUtils#macToLong}, subject the most significant bits of a characteristic
+ * UUID (raw bytes for {@link #DECODE}).
+ */
+
+public final class BleTrace {
+
+    public static final int ENQUEUE = 1;
+    public static final int DISPATCH = 2;
+    public static final int CALLBACK = 3;
+    public static final int COMPLETE = 4;
+    public static final int ERROR = 5;
+    public static final int CONNECT = 6;
+    public static final int DISCONNECT = 7;
+    public static final int NOTIFICATION = 8;
+    public static final int DECODE = 9;
+
+    private static final String[] NAMES = {"?", "ENQUEUE", "DISPATCH", "CALLBACK", "COMPLETE", "ERROR",
+            "CONNECT", "DISCONNECT", "NOTIFICATION", "DECODE"};
+    private static final int WORDS = 4;
+    private static final int MAGIC = 0x424C5452; // "BLTR"
+    private static final int VERSION = 1;
+    private static final long DEVICE_MASK = 0xFFFFFFFFFFFFL;
+
+    private static final class Ring {
+        final long[] words;
+        final int capacity;
+        final AtomicLong next = new AtomicLong();
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            this.words = new long[capacity * WORDS];
+        }
+    }
+
+    private static volatile Ring ring = null;
+
+    private BleTrace() {
+    }
+
+    /**
+     * Starts recording into a fresh ring, events recorded so far are dropped.
+     * @param capacity number of events kept
+     */
+    public static void start(int capacity) {
+        if(capacity < 1){
+            throw new IllegalArgumentException("BleTrace: capacity must be positive!");
+        }
+        ring = new Ring(capacity);
+    }
+
+    /**
+     * Stops recording and frees the ring.
+     */
+    public static void stop() {
+        ring = null;
+    }
+
+    public static boolean isEnabled() {
+        return ring != null;
+    }
+
+    /**
+     * @param device MAC packed by {@link ConvertUtils#macToLong}, 0 if there is none
+     */
+    public static void record(int event, long device, long subject, int arg0, int arg1) {
+        Ring current = ring;
+        if(current == null){
+            return;
+        }
+        long index = current.next.getAndIncrement();
+        int base = (int) (index % current.capacity) * WORDS;
+        long[] words = current.words;
+        words[base] = System.nanoTime();
+        words[base + 1] = ((long) event << 56) | (device & DEVICE_MASK);
+        words[base + 2] = subject;
+        words[base + 3] = ((long) arg0 << 32) | (arg1 & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Writes the recorded events, oldest first, in the compact binary form read by {@link #format}.
+     * Recording goes on meanwhile, so the newest events may be torn.
+     * @return number of events written
+     */
+    public static int export(@NonNull OutputStream stream) throws IOException {
+        long[] events = snapshot();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeShort(VERSION);
+        out.writeShort(WORDS * 8);
+        // maps nanoTime to wall clock time offline
+        out.writeLong(System.nanoTime());
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(events.length / WORDS);
+        for(long word : events){
+            out.writeLong(word);
+        }
+        out.flush();
+        return events.length / WORDS;
+    }
+
+    public static int export(@NonNull File file) throws IOException {
+        FileOutputStream stream = new FileOutputStream(file);
+        try{
+            return export(stream);
+        }finally{
+            stream.close();
+        }
+    }
+
+    /**
+     * Turns an exported trace into text, one event per line, times relative to the first event.
+     */
+    public static void format(@NonNull InputStream stream, @NonNull Writer writer) throws IOException {
+        DataInputStream in = new DataInputStream(stream);
+        if(in.readInt() != MAGIC || in.readUnsignedShort() != VERSION || in.readUnsignedShort() != WORDS * 8){
+            throw new IOException("BleTrace: not a trace file!");
+        }
+        long exportNanos = in.readLong();
+        long exportMillis = in.readLong();
+        int count = in.readInt();
+        writer.write(String.format(Locale.US, "# %d events, exported at %d ms wall clock%n", count, exportMillis));
+        long first = 0;
+        for(int i = 0; i < count; i++){
+            long time = in.readLong();
+            long head = in.readLong();
+            long subject = in.readLong();
+            long args = in.readLong();
+            if(i == 0){
+                first = time;
+                writer.write(String.format(Locale.US, "# first event %.3f ms before export%n", (exportNanos - first) / 1e6));
+            }
+            int event = (int) (head >>> 56);
+            long device = head & DEVICE_MASK;
+            writer.write(String.format(Locale.US, "%14.6f %-12s %s %016x %d %d%n",
+                    (time - first) / 1e6,
+                    event < NAMES.length ? NAMES[event] : Integer.toString(event),
+                    device != 0 ? ConvertUtils.longToMac(device) : "-",
+                    subject, (int) (args >> 32), (int) args));
+        }
+        writer.flush();
+    }
+
+    private static long[] snapshot() {
+        Ring current = ring;
+        if(current == null){
+            return new long[0];
+        }
+        long end = current.next.get();
+        long start = Math.max(0, end - current.capacity);
+        long[] events = new long[(int) (end - start) * WORDS];
+        for(long index = start; index < end; index++){
+            System.arraycopy(current.words, (int) (index % current.capacity) * WORDS,
+                    events, (int) (index - start) * WORDS, WORDS);
+        }
+        return events;
+    }
+}
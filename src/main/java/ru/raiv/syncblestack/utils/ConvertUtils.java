@@ -1,7 +1,5 @@
 package ru.raiv.syncblestack.utils;
 
-import android.util.Log;
-
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 
@@ -10,7 +8,6 @@ import java.nio.ByteBuffer;
  */
 
 public class ConvertUtils {
-    private static final String TAG = ConvertUtils.class.getSimpleName();
     final private static char[] hexArray = "0123456789ABCDEF".toCharArray();
 
     public  static String bytesToHex(byte[] bytes) {
@@ -24,6 +21,58 @@ public class ConvertUtils {
         }
         return new String(hexChars);
     }
+    // raw bytes go to the trace, the hex string is only built on export
+    private static void traceDecode(byte[] data, int width){
+        if(!BleTrace.isEnabled()){
+            return;
+        }
+        int length = data!=null?data.length:-1;
+        long head=0;
+        for(int i=0;i<Math.min(8,length);i++){
+            head=(head<<8)|(data[i]&0xFF);
+        }
+        BleTrace.record(BleTrace.DECODE,0,head,length,width);
+    }
+
+    /**
+     * Packs "AA:BB:CC:DD:EE:FF" into the low 48 bits of a long without allocating.
+     * @return -1 if the address is malformed
+     */
+    public static long macToLong(String address){
+        if(address==null||address.length()!=17){
+            return -1;
+        }
+        long result=0;
+        for(int i=0;i<17;i++){
+            char c=address.charAt(i);
+            if(i%3==2){
+                if(c!=':'){
+                    return -1;
+                }
+                continue;
+            }
+            int digit=Character.digit(c,16);
+            if(digit<0){
+                return -1;
+            }
+            result=(result<<4)|digit;
+        }
+        return result;
+    }
+
+    public static String longToMac(long mac){
+        char[] chars=new char[17];
+        for(int i=0;i<6;i++){
+            int v=(int)(mac>>>(8*(5-i)))&0xFF;
+            chars[i*3]=hexArray[v>>>4];
+            chars[i*3+1]=hexArray[v&0x0F];
+            if(i<5){
+                chars[i*3+2]=':';
+            }
+        }
+        return new String(chars);
+    }
+
     public static byte[] numberToCharsWithTerminator(String number){
         if(number==null){
             return null;
@@ -71,7 +120,7 @@ public class ConvertUtils {
     }
 
     public static int toShortBe(byte[] data){
-        Log.d(TAG,"toShort: "+bytesToHex(data));
+        traceDecode(data,2);
         if(data==null ||data.length<2){
             return -1;
         }
@@ -87,7 +136,7 @@ public class ConvertUtils {
     }
 
     public static int toShortLe(byte[] data){
-        Log.d(TAG,"toShort: "+bytesToHex(data));
+        traceDecode(data,2);
         if(data==null ||data.length<2){
             return -1;
         }
@@ -106,7 +155,7 @@ public class ConvertUtils {
     }
 
     public static int toIntBe(byte[] data){
-        Log.d(TAG,"toInt: "+bytesToHex(data));
+        traceDecode(data,4);
         if(data==null ||data.length<4){
             return -1;
         }
@@ -128,7 +177,7 @@ public class ConvertUtils {
     }
 
     public static int toIntLe(byte[] data){
-        Log.d(TAG,"toInt: "+bytesToHex(data));
+        traceDecode(data,4);
         if(data==null ||data.length<4){
             return -1;
         }
@@ -151,7 +200,7 @@ public class ConvertUtils {
     }
 
     public static float toFloatLe(byte[] data){
-        Log.d(TAG,"toFloat: "+bytesToHex(data));
+        traceDecode(data,4);
         if(data==null ||data.length<4){
             return -1;
         }
@@ -173,7 +222,7 @@ public class ConvertUtils {
     }
 
     public static float toFloatBe(byte[] data){
-        Log.d(TAG,"toFloat: "+bytesToHex(data));
+        traceDecode(data,4);
         if(data==null ||data.length<4){
             return -1;
         }
@@ -188,7 +237,7 @@ public class ConvertUtils {
 
     public static int toByte(byte[] data){
 
-        Log.d(TAG,"toByte: "+bytesToHex(data));
+        traceDecode(data,1);
         if(data==null ||data.length<1){
             return -1;
         }
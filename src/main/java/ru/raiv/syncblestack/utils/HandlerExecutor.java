@@ -0,0 +1,23 @@
+package ru.raiv.syncblestack.utils;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Executor posting to a {@link Handler}, e.g. to get future callbacks on the UI thread.
+ */
+
+public class HandlerExecutor implements Executor {
+    private final Handler handler;
+
+    public HandlerExecutor(@NonNull Handler handler) {
+        this.handler = handler;
+    }
+
+    @Override
+    public void execute(@NonNull Runnable command) {
+        handler.post(command);
+    }
+}
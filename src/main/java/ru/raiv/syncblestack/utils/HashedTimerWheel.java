@@ -0,0 +1,233 @@
+package ru.raiv.syncblestack.utils;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timer wheel: one worker thread serves any number of pending timeouts with O(1)
+ * schedule and cancel. Expiration precision is one tick, which is enough for watchdogs.
+ * The worker sleeps while the wheel is empty, cancelled timeouts leave it within one rotation.
+ */
+
+public class HashedTimerWheel {
+
+    private static final String TAG = HashedTimerWheel.class.getSimpleName();
+
+    public final class Timeout {
+        private final Runnable action;
+        private final long deadline;
+        private long rounds;
+        private volatile boolean cancelled = false;
+        private Timeout nextInBucket;
+        private Timeout prevInBucket;
+
+        private Timeout(Runnable action, long deadline) {
+            this.action = action;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout, the action is not run if it has not fired yet.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // intrusive list, touched by the worker thread only
+    private static final class Bucket {
+        Timeout head;
+        Timeout tail;
+
+        void add(Timeout timeout) {
+            if(head == null){
+                head = tail = timeout;
+            }else{
+                tail.nextInBucket = timeout;
+                timeout.prevInBucket = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.nextInBucket;
+            if(timeout.prevInBucket != null){
+                timeout.prevInBucket.nextInBucket = next;
+            }
+            if(next != null){
+                next.prevInBucket = timeout.prevInBucket;
+            }
+            if(timeout == head){
+                head = next;
+            }
+            if(timeout == tail){
+                tail = timeout.prevInBucket;
+            }
+            timeout.prevInBucket = null;
+            timeout.nextInBucket = null;
+            return next;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final String name;
+    private final Object lifecycleSync = new Object();
+    private final Object idleSync = new Object();
+    private volatile Thread worker = null;
+    private volatile boolean stopped = false;
+    private volatile boolean parked = false;
+    private long startTime;
+    private long tick;
+    // timeouts in the wheel, touched by the worker thread only
+    private int size = 0;
+
+    /**
+     * @param tickMillis duration of one tick
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public HashedTimerWheel(@NonNull String name, long tickMillis, int ticksPerWheel) {
+        if(tickMillis <= 0 || ticksPerWheel <= 0){
+            throw new IllegalArgumentException("HashedTimerWheel: tick and wheel size must be positive!");
+        }
+        int size = 1;
+        while(size < ticksPerWheel){
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[size];
+        this.mask = size - 1;
+        for(int i = 0; i < size; i++){
+            wheel[i] = new Bucket();
+        }
+    }
+
+    /**
+     * Schedules {@code action} to run on the wheel thread after {@code delayMillis}.
+     * The action must be short, it delays all other expirations of the same tick.
+     */
+    public Timeout schedule(@NonNull Runnable action, long delayMillis) {
+        start();
+        Timeout timeout = new Timeout(action, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        pending.add(timeout);
+        if(parked){
+            synchronized (idleSync) {
+                idleSync.notify();
+            }
+        }
+        return timeout;
+    }
+
+    public void stop() {
+        synchronized (lifecycleSync) {
+            stopped = true;
+            if(worker != null){
+                worker.interrupt();
+                worker = null;
+            }
+        }
+        pending.clear();
+    }
+
+    private void start() {
+        if(worker != null){
+            return;
+        }
+        synchronized (lifecycleSync) {
+            if(worker != null || stopped){
+                return;
+            }
+            startTime = System.nanoTime();
+            tick = 0;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, name);
+            thread.setDaemon(true);
+            worker = thread;
+            thread.start();
+        }
+    }
+
+    private void work() {
+        while(!stopped){
+            if(size == 0 && pending.isEmpty()){
+                // nothing to expire, sleep until the next schedule() instead of ticking
+                synchronized (idleSync) {
+                    parked = true;
+                    try{
+                        while(pending.isEmpty() && !stopped){
+                            idleSync.wait();
+                        }
+                    }catch(InterruptedException e){
+                        return;
+                    }finally{
+                        parked = false;
+                    }
+                }
+                // no timeout was due in the ticks slept through
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+            }
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if(sleep > 0){
+                try{
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                }catch(InterruptedException e){
+                    return;
+                }
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while((timeout = pending.poll()) != null){
+            if(timeout.cancelled){
+                continue;
+            }
+            long ticks = Math.max((timeout.deadline - startTime + tickNanos - 1) / tickNanos, tick);
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (ticks & mask)].add(timeout);
+            size++;
+        }
+    }
+
+    private void expire(Bucket bucket, long tickDeadline) {
+        Timeout timeout = bucket.head;
+        while(timeout != null){
+            if(timeout.cancelled){
+                timeout = bucket.remove(timeout);
+                size--;
+            }else if(timeout.rounds <= 0 && timeout.deadline <= tickDeadline){
+                Timeout next = bucket.remove(timeout);
+                size--;
+                try{
+                    timeout.action.run();
+                }catch(RuntimeException e){
+                    // the worker must survive a failing action, the other timeouts still have to fire
+                    Log.e(TAG, name + ": timeout action failed", e);
+                }
+                timeout = next;
+            }else{
+                timeout.rounds--;
+                timeout = timeout.nextInBucket;
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.raiv.syncblestack.utils;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Map keyed by a (service, characteristic) pair. Two nested hash lookups, so reads neither
+ * allocate a composite key nor build strings.
+ */
+
+public class UuidPairMap<V> {
+
+    private final ConcurrentHashMap<UUID, ConcurrentHashMap<UUID, V>> map = new ConcurrentHashMap<>();
+
+    @Nullable
+    public V get(UUID service, UUID characteristic) {
+        Map<UUID, V> inner = map.get(service);
+        return inner != null ? inner.get(characteristic) : null;
+    }
+
+    public void put(@NonNull UUID service, @NonNull UUID characteristic, @NonNull V value) {
+        ConcurrentHashMap<UUID, V> inner = map.get(service);
+        if(inner == null){
+            inner = new ConcurrentHashMap<>();
+            ConcurrentHashMap<UUID, V> raced = map.putIfAbsent(service, inner);
+            if(raced != null){
+                inner = raced;
+            }
+        }
+        inner.put(characteristic, value);
+    }
+
+    @Nullable
+    public V remove(UUID service, UUID characteristic) {
+        Map<UUID, V> inner = map.get(service);
+        return inner != null ? inner.remove(characteristic) : null;
+    }
+
+    public boolean isEmpty() {
+        for(Map<UUID, V> inner : map.values()){
+            if(!inner.isEmpty()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void clear() {
+        map.clear();
+    }
+}
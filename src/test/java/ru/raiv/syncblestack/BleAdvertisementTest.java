@@ -0,0 +1,126 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Parses hand-built legacy advertisement records with {@link BleAdvertisement}.
+ */
+public class BleAdvertisementTest {
+
+    private static final UUID HEART_RATE = UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    // 62 bytes, zero padded like a legacy advertisement plus scan response
+    private static byte[] record(){
+        byte[] custom = new byte[16];
+        long msb = CUSTOM.getMostSignificantBits();
+        long lsb = CUSTOM.getLeastSignificantBits();
+        for(int i=0;i<8;i++){
+            custom[i] = (byte) (lsb>>>(8*i));
+            custom[8+i] = (byte) (msb>>>(8*i));
+        }
+        byte[] head = {
+                0x02,0x01,0x06,
+                0x05,0x09,'T','e','s','t',
+                0x05,0x03,0x0D,0x18,0x0F,0x18,
+                0x02,0x0A,(byte) 0xF4,
+                0x05,(byte) 0xFF,0x4C,0x00,0x01,0x02,
+                0x04,0x16,0x0F,0x18,0x64,
+                0x11,0x07};
+        byte[] record = Arrays.copyOf(head,62);
+        System.arraycopy(custom,0,record,head.length,16);
+        return record;
+    }
+
+    @Test
+    public void simpleFields_areParsed(){
+        BleAdvertisement advertisement = new BleAdvertisement(record());
+        assertEquals(0x06,advertisement.getFlags());
+        assertEquals("Test",advertisement.getLocalName());
+        assertEquals(-12,advertisement.getTxPower());
+        assertEquals(0x004C,advertisement.getManufacturerId());
+    }
+
+    @Test
+    public void serviceUuids_coverAllWidths(){
+        BleAdvertisement advertisement = new BleAdvertisement(record());
+        assertEquals(3,advertisement.getServiceUuidCount());
+        assertEquals(HEART_RATE,advertisement.getServiceUuid(0));
+        assertEquals(BATTERY,advertisement.getServiceUuid(1));
+        assertEquals(CUSTOM,advertisement.getServiceUuid(2));
+        assertTrue(advertisement.hasServiceUuid(BATTERY));
+        assertTrue(advertisement.hasServiceUuid(CUSTOM));
+        assertFalse(advertisement.hasServiceUuid(UUID.fromString("00001810-0000-1000-8000-00805f9b34fb")));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void missingServiceUuid_throws(){
+        new BleAdvertisement(record()).getServiceUuid(3);
+    }
+
+    @Test
+    public void manufacturerData_isFoundById(){
+        BleAdvertisement advertisement = new BleAdvertisement(record());
+        int position = advertisement.findManufacturerData(0x004C);
+        assertTrue(position>=0);
+        assertArrayEquals(new byte[]{0x01,0x02},advertisement.copyData(position,2));
+        assertEquals(-1,advertisement.findManufacturerData(0x0059));
+    }
+
+    @Test
+    public void serviceData_isFoundByUuid(){
+        BleAdvertisement advertisement = new BleAdvertisement(record());
+        int position = advertisement.findServiceData(BATTERY);
+        assertTrue(position>=0);
+        assertEquals(2,advertisement.serviceDataUuidWidth(position));
+        assertArrayEquals(new byte[]{0x64},advertisement.copyData(position,advertisement.serviceDataUuidWidth(position)));
+        assertEquals(-1,advertisement.findServiceData(HEART_RATE));
+    }
+
+    @Test
+    public void padding_endsTheWalk(){
+        BleAdvertisement advertisement = new BleAdvertisement(record());
+        int structures = 0;
+        for(int position=advertisement.first();position>=0;position=advertisement.next(position)){
+            structures++;
+        }
+        assertEquals(7,structures);
+    }
+
+    @Test
+    public void truncatedStructure_isIgnored(){
+        // the uuid list claims more bytes than the record holds
+        byte[] record = {0x02,0x01,0x06,0x09,0x03,0x0D,0x18};
+        BleAdvertisement advertisement = new BleAdvertisement(record);
+        assertEquals(0x06,advertisement.getFlags());
+        assertEquals(0,advertisement.getServiceUuidCount());
+        assertFalse(advertisement.hasServiceUuid(HEART_RATE));
+    }
+
+    @Test
+    public void emptyRecord_hasNothing(){
+        BleAdvertisement advertisement = new BleAdvertisement(null);
+        assertEquals(-1,advertisement.first());
+        assertEquals(-1,advertisement.getFlags());
+        assertEquals(BleAdvertisement.NO_TX_POWER,advertisement.getTxPower());
+        assertNull(advertisement.getLocalName());
+        assertEquals(-1,advertisement.getManufacturerId());
+    }
+
+    @Test
+    public void wrap_reusesTheView(){
+        BleAdvertisement advertisement = new BleAdvertisement();
+        byte[] named = {0x03,0x08,'A','B'};
+        assertSame(advertisement,advertisement.wrap(named));
+        assertEquals("AB",advertisement.getLocalName());
+        assertSame(named,advertisement.getRecord());
+        advertisement.wrap(record());
+        assertEquals("Test",advertisement.getLocalName());
+    }
+}
@@ -0,0 +1,183 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link BleBlobTransfer} against an in-memory peripheral that can drop packets and links.
+ */
+public class BleBlobTransferTest {
+
+    private static final class MemoryPeripheral implements BleTransferTransport {
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        final ArrayDeque<byte[]> answers = new ArrayDeque<>();
+        int transferId;
+        long length;
+        int ackInterval;
+        int expectedSeq;
+        int sinceAck;
+        boolean nackSent;
+        boolean linkUp = true;
+        int packets = 0;
+        int dropEvery = 0;
+        int failAfter = -1;
+
+        @Override
+        public void open() throws IOException {
+            checkLink();
+            answers.clear();
+        }
+
+        @Override
+        public int getMaxPacketSize() {
+            return 20;
+        }
+
+        @Override
+        public void sendPackets(List<byte[]> sent) throws IOException {
+            for(byte[] packet : sent){
+                checkLink();
+                packets++;
+                if(packets == failAfter){
+                    linkUp = false;
+                    throw new IOException("link lost");
+                }
+                if(dropEvery == 0 || packets % dropEvery != 0){
+                    onPacket(packet);
+                }
+            }
+        }
+
+        @Override
+        public void sendControl(byte[] command) throws IOException {
+            checkLink();
+            if(command[0] == BleBlobTransfer.CMD_START){
+                int id = (int) getInt(command, 1);
+                if(id != transferId){
+                    stored.reset();
+                    transferId = id;
+                }
+                length = getInt(command, 5);
+                ackInterval = (command[11] & 0xFF) | (command[12] & 0xFF) << 8;
+                expectedSeq = 0;
+                sinceAck = 0;
+                nackSent = false;
+                answer(BleBlobTransfer.RSP_STATUS, stored.size());
+            }else if(command[0] == BleBlobTransfer.CMD_VERIFY){
+                CRC32 crc = new CRC32();
+                crc.update(stored.toByteArray());
+                boolean match = stored.size() == length && crc.getValue() == getInt(command, 1);
+                answers.add(new byte[]{BleBlobTransfer.RSP_RESULT, (byte) (match ? 0 : 1)});
+            }
+        }
+
+        @Override
+        public byte[] receiveControl(long timeoutMillis) {
+            return answers.poll();
+        }
+
+        void reconnect() {
+            linkUp = true;
+            failAfter = -1;
+        }
+
+        private void onPacket(byte[] packet) {
+            int seq = (packet[0] & 0xFF) | (packet[1] & 0xFF) << 8;
+            if(seq != (expectedSeq & 0xFFFF)){
+                if(!nackSent){
+                    nackSent = true;
+                    answer(BleBlobTransfer.RSP_NACK, stored.size());
+                }
+                return;
+            }
+            nackSent = false;
+            expectedSeq++;
+            stored.write(packet, BleBlobTransfer.SEQ_HEADER, packet.length - BleBlobTransfer.SEQ_HEADER);
+            if(++sinceAck == ackInterval || stored.size() == length){
+                sinceAck = 0;
+                answer(BleBlobTransfer.RSP_ACK, stored.size());
+            }
+        }
+
+        private void answer(byte code, long offset) {
+            answers.add(new byte[]{code, (byte) offset, (byte) (offset >> 8), (byte) (offset >> 16), (byte) (offset >> 24)});
+        }
+
+        private void checkLink() throws IOException {
+            if(!linkUp){
+                throw new IOException("no link");
+            }
+        }
+
+        private static long getInt(byte[] src, int offset) {
+            long value = 0;
+            for(int i = 0; i < 4; i++){
+                value |= (src[offset + i] & 0xFFL) << (8 * i);
+            }
+            return value;
+        }
+    }
+
+    private static byte[] blob(int size) {
+        byte[] blob = new byte[size];
+        new Random(size).nextBytes(blob);
+        return blob;
+    }
+
+    @Test
+    public void transfer_isComplete() throws Exception {
+        byte[] blob = blob(10000);
+        MemoryPeripheral peripheral = new MemoryPeripheral();
+        BleBlobTransfer transfer = new BleBlobTransfer(new ByteArrayInputStream(blob), blob.length);
+        transfer.run(peripheral);
+        assertTrue(transfer.isComplete());
+        assertEquals(blob.length, transfer.getAcknowledged());
+        assertArrayEquals(blob, peripheral.stored.toByteArray());
+    }
+
+    @Test
+    public void lostPackets_areResent() throws Exception {
+        byte[] blob = blob(7777);
+        MemoryPeripheral peripheral = new MemoryPeripheral();
+        peripheral.dropEvery = 37;
+        BleBlobTransfer transfer = new BleBlobTransfer(new ByteArrayInputStream(blob), blob.length).setAckInterval(8);
+        transfer.run(peripheral);
+        assertTrue(transfer.isComplete());
+        assertArrayEquals(blob, peripheral.stored.toByteArray());
+    }
+
+    @Test
+    public void transfer_resumesAfterReconnect() throws Exception {
+        byte[] blob = blob(20000);
+        MemoryPeripheral peripheral = new MemoryPeripheral();
+        peripheral.failAfter = 500;
+        BleBlobTransfer transfer = new BleBlobTransfer(new ByteArrayInputStream(blob), blob.length);
+        try{
+            transfer.run(peripheral);
+            fail("link loss must fail the run");
+        }catch(IOException e){
+            // expected
+        }
+        assertFalse(transfer.isComplete());
+        long received = peripheral.stored.size();
+        assertTrue(transfer.getAcknowledged() > 0);
+        assertTrue(received >= transfer.getAcknowledged());
+
+        peripheral.reconnect();
+        peripheral.packets = 0;
+        transfer.run(peripheral);
+        assertTrue(transfer.isComplete());
+        assertArrayEquals(blob, peripheral.stored.toByteArray());
+        // only what the peripheral was missing went over the air again
+        assertEquals((blob.length - received + 17) / 18, peripheral.packets);
+    }
+}
@@ -0,0 +1,207 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import ru.raiv.syncblestack.tasks.BleTask;
+import ru.raiv.syncblestack.tasks.BleTaskBuilder;
+import ru.raiv.syncblestack.tasks.BleTaskFuture;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link BleFleetJob} against devices that never connect, on a manual clock.
+ */
+public class BleFleetJobTest {
+
+    private static final UUID SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("00002a29-0000-1000-8000-00805f9b34fb");
+
+    private static final class ManualScheduler implements BleFleetJob.Scheduler {
+        private static final class Entry {
+            final Runnable runnable;
+            final long due;
+
+            Entry(Runnable runnable, long due){
+                this.runnable=runnable;
+                this.due=due;
+            }
+        }
+
+        final List<Entry> entries = new ArrayList<>();
+        long now = 0;
+
+        @Override
+        public void post(Runnable runnable){
+            postDelayed(runnable,0);
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis){
+            entries.add(new Entry(runnable,now+delayMillis));
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable){
+            for(int i=entries.size()-1;i>=0;i--){
+                if(entries.get(i).runnable==runnable){
+                    entries.remove(i);
+                }
+            }
+        }
+
+        // runs everything due up to now+millis in due order
+        void advance(long millis){
+            long end = now+millis;
+            while(true){
+                Entry next = null;
+                for(Entry entry:entries){
+                    if(entry.due<=end && (next==null || entry.due<next.due)){
+                        next = entry;
+                    }
+                }
+                if(next==null){
+                    break;
+                }
+                entries.remove(next);
+                now = Math.max(now,next.due);
+                next.runnable.run();
+            }
+            now = end;
+        }
+    }
+
+    // like the service: a gatt that never came up is dropped on disconnect, without a callback
+    private static final class UnreachableHost implements BleFleetJob.Host {
+        final Set<String> gatts = new HashSet<>();
+        final List<BluetoothLeServiceSync.ConnectionStateListener> listeners = new ArrayList<>();
+        boolean reportLoss = true;
+        int connects = 0;
+        int refused = 0;
+
+        @Override
+        public void addConnectionStateListener(BluetoothLeServiceSync.ConnectionStateListener listener){
+            listeners.add(listener);
+        }
+
+        @Override
+        public void removeConnectionStateListener(BluetoothLeServiceSync.ConnectionStateListener listener){
+            listeners.remove(listener);
+        }
+
+        @Override
+        public boolean isConnectionReady(String address){
+            return false;
+        }
+
+        @Override
+        public boolean hasConnection(String address){
+            return gatts.contains(address);
+        }
+
+        @Override
+        public boolean connect(String address, boolean reconnect){
+            if(!gatts.add(address)){
+                refused++;
+                return false;
+            }
+            connects++;
+            return true;
+        }
+
+        @Override
+        public void disconnectDevice(String address){
+            if(gatts.remove(address) && reportLoss){
+                for(BluetoothLeServiceSync.ConnectionStateListener listener:new ArrayList<>(listeners)){
+                    listener.onConnectionStateChanged(address,false);
+                }
+            }
+        }
+
+        @Override
+        public BleTaskFuture addTask(String address, BleTask task){
+            throw new AssertionError("an unreachable device must not run tasks");
+        }
+    }
+
+    private static final class Results implements BleFleetListener {
+        List<BleFleetResult> results = null;
+
+        @Override
+        public void onDeviceFinished(BleFleetResult result, int finished, int total){
+        }
+
+        @Override
+        public void onJobFinished(List<BleFleetResult> results){
+            this.results = results;
+        }
+    }
+
+    private static BleFleetJob job(UnreachableHost host, ManualScheduler scheduler, Results results, String... addresses){
+        BleTask template = new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,CHARACTERISTIC).build();
+        List<BleDeviceInfo> targets = new ArrayList<>();
+        for(String address:Arrays.asList(addresses)){
+            targets.add(new BleDeviceInfo(null,address));
+        }
+        BleFleetConfig config = new BleFleetConfig().setMaxAttempts(3).setConnectTimeout(1000).setRetryDelay(500);
+        return new BleFleetJob(host,scheduler,null,template,targets,config,results);
+    }
+
+    @Test
+    public void connectTimeout_isRetried() throws Exception {
+        UnreachableHost host = new UnreachableHost();
+        ManualScheduler scheduler = new ManualScheduler();
+        Results results = new Results();
+        BleFleetJob job = job(host,scheduler,results,"00:11:22:33:44:55");
+        job.start();
+        scheduler.advance(60000);
+
+        assertEquals(3,host.connects);
+        assertEquals(0,host.refused);
+        assertTrue(job.isDone());
+        assertEquals(1,results.results.size());
+        assertFalse(results.results.get(0).isSucceed());
+        assertEquals(3,results.results.get(0).getAttempts());
+        assertTrue(host.listeners.isEmpty());
+    }
+
+    @Test
+    public void retry_waitsForRetryDelay() throws Exception {
+        UnreachableHost host = new UnreachableHost();
+        ManualScheduler scheduler = new ManualScheduler();
+        Results results = new Results();
+        job(host,scheduler,results,"00:11:22:33:44:55").start();
+
+        scheduler.advance(1000);
+        assertEquals(1,host.connects);
+        assertFalse(host.hasConnection("00:11:22:33:44:55"));
+        scheduler.advance(499);
+        assertEquals(1,host.connects);
+        scheduler.advance(1);
+        assertEquals(2,host.connects);
+    }
+
+    @Test
+    public void silentRelease_stillRetries() throws Exception {
+        UnreachableHost host = new UnreachableHost();
+        host.reportLoss = false;
+        ManualScheduler scheduler = new ManualScheduler();
+        Results results = new Results();
+        BleFleetJob job = job(host,scheduler,results,"00:11:22:33:44:55","66:77:88:99:AA:BB");
+        job.start();
+        scheduler.advance(60000);
+
+        assertEquals(6,host.connects);
+        assertEquals(0,host.refused);
+        assertTrue(job.isDone());
+        for(BleFleetResult result:results.results){
+            assertFalse(result.isSucceed());
+        }
+    }
+}
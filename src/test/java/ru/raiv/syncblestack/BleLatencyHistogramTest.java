@@ -0,0 +1,108 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Bucketing and percentiles of {@link BleLatencyHistogram}.
+ */
+public class BleLatencyHistogramTest {
+
+    private static final long MICROS = 1000;
+
+    @Test
+    public void empty_reportsZero(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        assertEquals(0,histogram.getCount());
+        assertEquals(0,histogram.getMeanNanos());
+        assertEquals(0,histogram.getMaxNanos());
+        assertEquals(0,histogram.getPercentileNanos(99));
+    }
+
+    @Test
+    public void record_fillsPowerOfTwoBuckets(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        histogram.record(500);// below 1us
+        histogram.record(MICROS);
+        histogram.record(3*MICROS);
+        histogram.record(1000*MICROS);
+        assertEquals(1,histogram.getBucketCount(0));
+        assertEquals(1,histogram.getBucketCount(1));
+        assertEquals(1,histogram.getBucketCount(2));
+        // 1000us is below 1024us
+        assertEquals(1,histogram.getBucketCount(10));
+        assertEquals(4,histogram.getCount());
+    }
+
+    @Test
+    public void bucketLimit_boundsItsSamples(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        long[] samples = {0,1,999,MICROS,2*MICROS-1,2*MICROS,12345*MICROS,987654321L};
+        for(long sample:samples){
+            histogram.record(sample);
+        }
+        long seen = 0;
+        for(int i=0;i<BleLatencyHistogram.BUCKETS;i++){
+            seen += histogram.getBucketCount(i);
+        }
+        assertEquals(samples.length,seen);
+        for(long sample:samples){
+            int bucket = 0;
+            while(BleLatencyHistogram.getBucketLimitNanos(bucket)<=sample && bucket<BleLatencyHistogram.BUCKETS-1){
+                bucket++;
+            }
+            assertTrue(histogram.getBucketCount(bucket)>0);
+        }
+    }
+
+    @Test
+    public void hugeLatency_landsInTheLastBucket(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        histogram.record(Long.MAX_VALUE/2);
+        assertEquals(1,histogram.getBucketCount(BleLatencyHistogram.BUCKETS-1));
+    }
+
+    @Test
+    public void negativeLatency_isIgnored(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        histogram.record(-1);
+        assertEquals(0,histogram.getCount());
+    }
+
+    @Test
+    public void meanAndMax_areExact(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        histogram.record(10*MICROS);
+        histogram.record(20*MICROS);
+        histogram.record(60*MICROS);
+        assertEquals(30*MICROS,histogram.getMeanNanos());
+        assertEquals(60*MICROS,histogram.getMaxNanos());
+    }
+
+    @Test
+    public void percentile_isTheBucketLimitCappedByMax(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        for(int i=0;i<99;i++){
+            histogram.record(100*MICROS);// bucket 7, below 128us
+        }
+        histogram.record(5000*MICROS);
+        assertEquals(128*MICROS,histogram.getPercentileNanos(50));
+        assertEquals(128*MICROS,histogram.getPercentileNanos(99));
+        // the 8192us bucket limit is above anything recorded
+        assertEquals(5000*MICROS,histogram.getPercentileNanos(100));
+        assertEquals(5000*MICROS,histogram.getPercentileNanos(250));
+        assertEquals(128*MICROS,histogram.getPercentileNanos(0));
+    }
+
+    @Test
+    public void copy_isDetached(){
+        BleLatencyHistogram histogram = new BleLatencyHistogram();
+        histogram.record(10*MICROS);
+        BleLatencyHistogram copy = histogram.copy();
+        histogram.record(20*MICROS);
+        assertEquals(1,copy.getCount());
+        assertEquals(10*MICROS,copy.getMaxNanos());
+        assertEquals(2,histogram.getCount());
+    }
+}
@@ -0,0 +1,186 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Ordering, overflow policies and blocking of {@link BleNotificationRing}.
+ */
+public class BleNotificationRingTest {
+
+    private static final int SLOT = 4;
+
+    private static byte[] sample(int n){
+        return new byte[]{(byte) n,(byte) (n+1)};
+    }
+
+    // drains everything and returns the first byte of each sample
+    private static int[] drainFirstBytes(BleNotificationRing ring){
+        byte[] values = new byte[64*SLOT];
+        int[] lengths = new int[64];
+        int n = ring.drain(values,lengths,null,64);
+        int[] first = new int[n];
+        for(int i=0;i<n;i++){
+            assertEquals(2,lengths[i]);
+            first[i] = values[i*SLOT];
+        }
+        return first;
+    }
+
+    @Test
+    public void drain_isOldestFirst(){
+        BleNotificationRing ring = new BleNotificationRing(8,SLOT,BleOverflowPolicy.DROP_NEWEST,0);
+        for(int i=0;i<5;i++){
+            ring.offer(sample(i),100+i);
+        }
+        assertEquals(5,ring.size());
+        byte[] values = new byte[8*SLOT];
+        int[] lengths = new int[8];
+        long[] timestamps = new long[8];
+        assertEquals(5,ring.drain(values,lengths,timestamps,8));
+        for(int i=0;i<5;i++){
+            assertEquals(2,lengths[i]);
+            assertEquals(i,values[i*SLOT]);
+            assertEquals(i+1,values[i*SLOT+1]);
+            assertEquals(100+i,timestamps[i]);
+        }
+        assertEquals(0,ring.size());
+        assertEquals(0,ring.drain(values,lengths,timestamps,8));
+    }
+
+    @Test
+    public void drain_respectsMaxAndArraySizes(){
+        BleNotificationRing ring = new BleNotificationRing(8,SLOT,BleOverflowPolicy.DROP_NEWEST,0);
+        for(int i=0;i<6;i++){
+            ring.offer(sample(i),0);
+        }
+        assertEquals(2,ring.drain(new byte[8*SLOT],new int[8],null,2));
+        // room for three values only
+        assertEquals(3,ring.drain(new byte[3*SLOT],new int[8],null,8));
+        assertEquals(1,ring.size());
+    }
+
+    @Test
+    public void ring_wrapsAround(){
+        BleNotificationRing ring = new BleNotificationRing(4,SLOT,BleOverflowPolicy.DROP_NEWEST,0);
+        int next = 0;
+        for(int round=0;round<5;round++){
+            for(int i=0;i<3;i++){
+                ring.offer(sample(next+i),0);
+            }
+            int[] first = drainFirstBytes(ring);
+            assertEquals(3,first.length);
+            for(int i=0;i<3;i++){
+                assertEquals(next+i,first[i]);
+            }
+            next += 3;
+        }
+        assertEquals(0,ring.getDropped());
+    }
+
+    @Test
+    public void dropNewest_keepsTheOldest(){
+        BleNotificationRing ring = new BleNotificationRing(3,SLOT,BleOverflowPolicy.DROP_NEWEST,0);
+        for(int i=0;i<5;i++){
+            ring.offer(sample(i),0);
+        }
+        int[] first = drainFirstBytes(ring);
+        assertEquals(3,first.length);
+        assertEquals(0,first[0]);
+        assertEquals(2,first[2]);
+        assertEquals(5,ring.getReceived());
+        assertEquals(2,ring.getDroppedNewest());
+        assertEquals(2,ring.getDropped());
+    }
+
+    @Test
+    public void dropOldest_keepsTheNewest(){
+        BleNotificationRing ring = new BleNotificationRing(3,SLOT,BleOverflowPolicy.DROP_OLDEST,0);
+        for(int i=0;i<5;i++){
+            ring.offer(sample(i),0);
+        }
+        int[] first = drainFirstBytes(ring);
+        assertEquals(3,first.length);
+        assertEquals(2,first[0]);
+        assertEquals(4,first[2]);
+        assertEquals(2,ring.getDroppedOldest());
+        assertEquals(2,ring.getDropped());
+    }
+
+    @Test
+    public void block_timesOutWithoutConsumer(){
+        BleNotificationRing ring = new BleNotificationRing(2,SLOT,BleOverflowPolicy.BLOCK,20);
+        ring.offer(sample(0),0);
+        ring.offer(sample(1),0);
+        long start = System.nanoTime();
+        ring.offer(sample(2),0);
+        assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1,ring.getBlockTimeouts());
+        assertEquals(2,ring.size());
+    }
+
+    @Test
+    public void block_resumesWhenDrained() throws Exception {
+        final BleNotificationRing ring = new BleNotificationRing(2,SLOT,BleOverflowPolicy.BLOCK,5000);
+        ring.offer(sample(0),0);
+        ring.offer(sample(1),0);
+        final CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run(){
+                ring.offer(sample(2),0);
+                offered.countDown();
+            }
+        });
+        producer.start();
+        assertFalse(offered.await(50,TimeUnit.MILLISECONDS));
+        assertEquals(1,ring.drain(new byte[SLOT],new int[1],null,1));
+        assertTrue(offered.await(2,TimeUnit.SECONDS));
+        int[] first = drainFirstBytes(ring);
+        assertEquals(2,first.length);
+        assertEquals(1,first[0]);
+        assertEquals(2,first[1]);
+        assertEquals(0,ring.getDropped());
+    }
+
+    @Test
+    public void close_releasesBlockedProducer() throws Exception {
+        final BleNotificationRing ring = new BleNotificationRing(1,SLOT,BleOverflowPolicy.BLOCK,5000);
+        ring.offer(sample(0),0);
+        final CountDownLatch returned = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run(){
+                ring.offer(sample(1),0);
+                returned.countDown();
+            }
+        }).start();
+        assertFalse(returned.await(50,TimeUnit.MILLISECONDS));
+        ring.close();
+        assertTrue(returned.await(2,TimeUnit.SECONDS));
+        assertTrue(ring.isClosed());
+        ring.offer(sample(2),0);
+        assertEquals(1,ring.size());
+    }
+
+    @Test
+    public void longValue_isTruncatedToTheSlot(){
+        BleNotificationRing ring = new BleNotificationRing(2,SLOT,BleOverflowPolicy.DROP_NEWEST,0);
+        ring.offer(new byte[]{1,2,3,4,5,6},0);
+        byte[] values = new byte[2*SLOT];
+        int[] lengths = new int[2];
+        assertEquals(1,ring.drain(values,lengths,null,2));
+        assertEquals(SLOT,lengths[0]);
+        assertEquals(4,values[3]);
+        assertEquals(1,ring.getTruncated());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroCapacity_isRejected(){
+        new BleNotificationRing(0,SLOT,BleOverflowPolicy.DROP_NEWEST,0);
+    }
+}
@@ -0,0 +1,108 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Cache policies of {@link CharacteristicCache} on a manual clock.
+ */
+public class CharacteristicCacheTest {
+
+    private static final UUID SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID MODEL = UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
+    private static final UUID FIRMWARE = UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
+
+    private static final class ManualClock implements CharacteristicCache.Clock {
+        long now = 1000;
+
+        @Override
+        public long elapsedRealtime(){
+            return now;
+        }
+    }
+
+    private final ManualClock clock = new ManualClock();
+
+    private CharacteristicCache cache(BleCachePolicy policy, long ttlMillis){
+        CharacteristicCache.Policies policies = new CharacteristicCache.Policies();
+        policies.set(SERVICE,MODEL,policy,ttlMillis);
+        return new CharacteristicCache(policies,clock);
+    }
+
+    @Test
+    public void uncachedCharacteristic_isNotStored(){
+        CharacteristicCache cache = cache(BleCachePolicy.UNTIL_DISCONNECT,0);
+        cache.store(SERVICE,FIRMWARE,new byte[]{1});
+        assertNull(cache.lookup(SERVICE,FIRMWARE));
+        assertNull(cache.lookup(SERVICE,MODEL));
+    }
+
+    @Test
+    public void lookup_returnsACopy(){
+        CharacteristicCache cache = cache(BleCachePolicy.UNTIL_DISCONNECT,0);
+        byte[] value = {1,2,3};
+        cache.store(SERVICE,MODEL,value);
+        value[0] = 9;
+        byte[] cached = cache.lookup(SERVICE,MODEL);
+        assertArrayEquals(new byte[]{1,2,3},cached);
+        cached[1] = 9;
+        assertArrayEquals(new byte[]{1,2,3},cache.lookup(SERVICE,MODEL));
+    }
+
+    @Test
+    public void ttl_expires(){
+        CharacteristicCache cache = cache(BleCachePolicy.TTL,500);
+        cache.store(SERVICE,MODEL,new byte[]{1});
+        clock.now += 500;
+        assertArrayEquals(new byte[]{1},cache.lookup(SERVICE,MODEL));
+        clock.now += 1;
+        assertNull(cache.lookup(SERVICE,MODEL));
+        // an expired value is gone for good
+        clock.now -= 1;
+        assertNull(cache.lookup(SERVICE,MODEL));
+    }
+
+    @Test
+    public void disconnect_dropsOnlyUntilDisconnectValues(){
+        CharacteristicCache.Policies policies = new CharacteristicCache.Policies();
+        policies.set(SERVICE,MODEL,BleCachePolicy.UNTIL_DISCONNECT,0);
+        policies.set(SERVICE,FIRMWARE,BleCachePolicy.TTL,10000);
+        CharacteristicCache cache = new CharacteristicCache(policies,clock);
+        cache.store(SERVICE,MODEL,new byte[]{1});
+        cache.store(SERVICE,FIRMWARE,new byte[]{2});
+        cache.onDisconnect();
+        assertNull(cache.lookup(SERVICE,MODEL));
+        assertArrayEquals(new byte[]{2},cache.lookup(SERVICE,FIRMWARE));
+    }
+
+    @Test
+    public void invalidate_dropsTheValue(){
+        CharacteristicCache cache = cache(BleCachePolicy.UNTIL_DISCONNECT,0);
+        cache.store(SERVICE,MODEL,new byte[]{1});
+        cache.invalidate(SERVICE,MODEL);
+        assertNull(cache.lookup(SERVICE,MODEL));
+        cache.store(SERVICE,MODEL,new byte[]{2});
+        cache.clear();
+        assertNull(cache.lookup(SERVICE,MODEL));
+    }
+
+    @Test
+    public void droppedRule_stopsServingTheValue(){
+        CharacteristicCache.Policies policies = new CharacteristicCache.Policies();
+        policies.set(SERVICE,MODEL,BleCachePolicy.UNTIL_DISCONNECT,0);
+        CharacteristicCache cache = new CharacteristicCache(policies,clock);
+        cache.store(SERVICE,MODEL,new byte[]{1});
+        policies.set(SERVICE,MODEL,BleCachePolicy.NEVER,0);
+        assertNull(cache.lookup(SERVICE,MODEL));
+    }
+
+    @Test
+    public void nullValue_isNotStored(){
+        CharacteristicCache cache = cache(BleCachePolicy.UNTIL_DISCONNECT,0);
+        cache.store(SERVICE,MODEL,null);
+        assertNull(cache.lookup(SERVICE,MODEL));
+    }
+}
@@ -0,0 +1,84 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Splitting rule of {@link NotificationReassembler}: full packets continue a value, a short one ends it.
+ */
+public class NotificationReassemblerTest {
+
+    private static final UUID SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID DATA = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID STATE = UUID.fromString("6e400004-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final int PACKET = 4;
+
+    private static byte[] bytes(int from, int count){
+        byte[] value = new byte[count];
+        for(int i=0;i<count;i++){
+            value[i] = (byte) (from+i);
+        }
+        return value;
+    }
+
+    @Test
+    public void shortPacket_isPassedThrough(){
+        NotificationReassembler reassembler = new NotificationReassembler();
+        byte[] value = bytes(0,3);
+        assertSame(value,reassembler.add(SERVICE,DATA,value,PACKET));
+    }
+
+    @Test
+    public void fullPackets_areJoinedUpToTheShortOne(){
+        NotificationReassembler reassembler = new NotificationReassembler();
+        assertNull(reassembler.add(SERVICE,DATA,bytes(0,4),PACKET));
+        assertNull(reassembler.add(SERVICE,DATA,bytes(4,4),PACKET));
+        assertArrayEquals(bytes(0,10),reassembler.add(SERVICE,DATA,bytes(8,2),PACKET));
+        // the next value starts from scratch
+        assertArrayEquals(bytes(0,1),reassembler.add(SERVICE,DATA,bytes(0,1),PACKET));
+    }
+
+    @Test
+    public void emptyPacket_endsAValueOfWholePackets(){
+        NotificationReassembler reassembler = new NotificationReassembler();
+        assertNull(reassembler.add(SERVICE,DATA,bytes(0,4),PACKET));
+        assertArrayEquals(bytes(0,4),reassembler.add(SERVICE,DATA,new byte[0],PACKET));
+    }
+
+    @Test
+    public void nullPacket_endsAValue(){
+        NotificationReassembler reassembler = new NotificationReassembler();
+        assertNull(reassembler.add(SERVICE,DATA,bytes(0,4),PACKET));
+        assertArrayEquals(bytes(0,4),reassembler.add(SERVICE,DATA,null,PACKET));
+        assertNull(reassembler.add(SERVICE,DATA,null,PACKET));
+    }
+
+    @Test
+    public void characteristics_areCollectedSeparately(){
+        NotificationReassembler reassembler = new NotificationReassembler();
+        assertNull(reassembler.add(SERVICE,DATA,bytes(0,4),PACKET));
+        assertNull(reassembler.add(SERVICE,STATE,bytes(100,4),PACKET));
+        assertArrayEquals(bytes(100,5),reassembler.add(SERVICE,STATE,bytes(104,1),PACKET));
+        assertArrayEquals(bytes(0,6),reassembler.add(SERVICE,DATA,bytes(4,2),PACKET));
+    }
+
+    @Test
+    public void clear_dropsIncompleteValues(){
+        NotificationReassembler reassembler = new NotificationReassembler();
+        assertNull(reassembler.add(SERVICE,DATA,bytes(0,4),PACKET));
+        reassembler.clear();
+        assertArrayEquals(bytes(50,2),reassembler.add(SERVICE,DATA,bytes(50,2),PACKET));
+    }
+
+    @Test
+    public void largerMtu_changesWhereValuesSplit(){
+        NotificationReassembler reassembler = new NotificationReassembler();
+        // after MTU negotiation a 4 byte packet is short
+        assertArrayEquals(bytes(0,4),reassembler.add(SERVICE,DATA,bytes(0,4),2*PACKET));
+        assertNull(reassembler.add(SERVICE,DATA,bytes(0,8),2*PACKET));
+        assertArrayEquals(bytes(0,12),reassembler.add(SERVICE,DATA,bytes(8,4),2*PACKET));
+    }
+}
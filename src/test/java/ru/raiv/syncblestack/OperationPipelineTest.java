@@ -0,0 +1,272 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import ru.raiv.syncblestack.tasks.BleOperation;
+import ru.raiv.syncblestack.tasks.BleOperationType;
+import ru.raiv.syncblestack.tasks.BleTask;
+import ru.raiv.syncblestack.tasks.BleTaskBuilder;
+import ru.raiv.syncblestack.tasks.BleTaskFuture;
+import ru.raiv.syncblestack.tasks.BleTaskQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * Request numbering, the credit window, fragmentation and skipped coalesced writes of
+ * {@link OperationPipeline}, driven the way the service drives it.
+ */
+public class OperationPipelineTest {
+
+    private static final UUID SERVICE = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID DATA = UUID.fromString("6e400002-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final UUID STATE = UUID.fromString("6e400003-b5a3-f393-e0a9-e50e24dcca9e");
+    private static final int PACKET = 20;
+
+    private static BleTask stream(int window, int packets){
+        BleTaskBuilder builder = new BleTaskBuilder(SERVICE).setWriteWindow(window);
+        for(int i=0;i<packets;i++){
+            builder.addWriteNoResponseOperation(SERVICE,DATA,new byte[]{(byte) i});
+        }
+        return builder.build();
+    }
+
+    private static OperationPipeline started(BleTask task){
+        OperationPipeline pipeline = new OperationPipeline();
+        pipeline.startTask(task);
+        return pipeline;
+    }
+
+    // issues packets while there are credits, as nextJobStep does
+    private static int fill(OperationPipeline pipeline, BleTask task){
+        int issued = 0;
+        while(pipeline.hasCredit()){
+            BleOperation operation = pipeline.next(task);
+            if(operation==null){
+                break;
+            }
+            pipeline.onStreamed(operation,pipeline.fragmentEnd(operation.getValue(),PACKET));
+            issued++;
+        }
+        return issued;
+    }
+
+    @Test
+    public void answer_matchesTheCurrentRequest(){
+        BleTask task = new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,STATE).addReadOperation(SERVICE,STATE).build();
+        OperationPipeline pipeline = started(task);
+        for(int i=0;i<2;i++){
+            assertNotNull(pipeline.next(task));
+            pipeline.onRequestIssued();
+            assertEquals(OperationPipeline.ANSWER_CURRENT,pipeline.takeAnswer());
+        }
+        assertNull(pipeline.next(task));
+        // nothing was asked for
+        assertEquals(OperationPipeline.ANSWER_LATE,pipeline.takeAnswer());
+    }
+
+    @Test
+    public void expiredRequest_answersLate(){
+        BleTask expired = new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,STATE).build();
+        OperationPipeline pipeline = started(expired);
+        BleOperation operation = pipeline.next(expired);
+        pipeline.onRequestIssued();
+        pipeline.abandon();
+        // the answer comes after the timeout, before anything else is issued
+        assertEquals(OperationPipeline.ANSWER_LATE,pipeline.takeAnswer());
+        BleTask next = new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,STATE).build();
+        pipeline.startTask(next);
+        pipeline.next(next);
+        pipeline.onRequestIssued();
+        assertEquals(OperationPipeline.ANSWER_CURRENT,pipeline.takeAnswer());
+        assertFalse(operation.isSucceed());
+    }
+
+    @Test
+    public void lostAnswer_doesNotShiftLaterAnswers(){
+        BleTask expired = new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,STATE).build();
+        OperationPipeline pipeline = started(expired);
+        pipeline.next(expired);
+        pipeline.onRequestIssued();
+        // the operation times out and its answer never comes
+        pipeline.abandon();
+        BleTask next = new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,STATE).addWriteOperation(SERVICE,STATE,new byte[]{1}).build();
+        pipeline.startTask(next);
+        for(int i=0;i<2;i++){
+            assertNotNull(pipeline.next(next));
+            pipeline.onRequestIssued();
+            assertEquals(OperationPipeline.ANSWER_CURRENT,pipeline.takeAnswer());
+        }
+    }
+
+    @Test
+    public void lostConfirmations_doNotShiftLaterAnswers(){
+        BleTask expired = stream(3,3);
+        OperationPipeline pipeline = started(expired);
+        assertEquals(3,fill(pipeline,expired));
+        pipeline.takeAnswer();
+        pipeline.confirmStreamed();
+        // two confirmations are lost, the task times out
+        pipeline.abandon();
+        BleTask next = stream(2,2);
+        pipeline.startTask(next);
+        assertEquals(2,fill(pipeline,next));
+        for(int i=0;i<2;i++){
+            assertEquals(OperationPipeline.ANSWER_STREAMED,pipeline.takeAnswer());
+            assertNotNull(pipeline.confirmStreamed());
+        }
+    }
+
+    @Test
+    public void streamedPackets_areAnsweredOldestFirst(){
+        BleTask task = stream(3,3);
+        OperationPipeline pipeline = started(task);
+        assertEquals(3,fill(pipeline,task));
+        for(int i=0;i<3;i++){
+            assertEquals(OperationPipeline.ANSWER_STREAMED,pipeline.takeAnswer());
+            BleOperation written = pipeline.confirmStreamed();
+            assertNotNull(written);
+            assertEquals(i,written.getValue()[0]);
+        }
+        assertFalse(pipeline.hasInFlight());
+        assertEquals(OperationPipeline.ANSWER_LATE,pipeline.takeAnswer());
+    }
+
+    @Test
+    public void requestAfterStream_isMatched(){
+        BleTask task = new BleTaskBuilder(SERVICE).setWriteWindow(2)
+                .addWriteNoResponseOperation(SERVICE,DATA,new byte[]{1})
+                .addWriteNoResponseOperation(SERVICE,DATA,new byte[]{2})
+                .addReadOperation(SERVICE,STATE).build();
+        OperationPipeline pipeline = started(task);
+        assertEquals(2,fill(pipeline,task));
+        BleOperation read = pipeline.next(task);
+        // the stream must drain first
+        pipeline.hold(read);
+        for(int i=0;i<2;i++){
+            assertEquals(OperationPipeline.ANSWER_STREAMED,pipeline.takeAnswer());
+            assertNotNull(pipeline.confirmStreamed());
+        }
+        assertSame(read,pipeline.next(task));
+        pipeline.onRequestIssued();
+        assertEquals(OperationPipeline.ANSWER_CURRENT,pipeline.takeAnswer());
+    }
+
+    @Test
+    public void window_limitsPacketsInFlight(){
+        BleTask task = stream(3,10);
+        OperationPipeline pipeline = started(task);
+        assertEquals(3,fill(pipeline,task));
+        assertFalse(pipeline.hasCredit());
+        pipeline.takeAnswer();
+        pipeline.confirmStreamed();
+        assertEquals(1,fill(pipeline,task));
+        assertFalse(pipeline.hasCredit());
+    }
+
+    @Test
+    public void busyStack_halvesTheWindowAndConfirmationsRegrowIt(){
+        BleTask task = stream(8,20);
+        OperationPipeline pipeline = started(task);
+        assertEquals(8,fill(pipeline,task));
+        pipeline.takeAnswer();
+        pipeline.confirmStreamed();
+        BleOperation refused = pipeline.next(task);
+        // confirmations are on their way, no timer needed
+        assertEquals(0,pipeline.onStackBusy(refused));
+        assertEquals(4,pipeline.getWriteWindow());
+        assertTrue(pipeline.hasPending());
+        assertSame(refused,pipeline.next(task));
+        pipeline.hold(refused);
+        while(pipeline.hasInFlight()){
+            pipeline.takeAnswer();
+            pipeline.confirmStreamed();
+        }
+        assertEquals(8,pipeline.getWriteWindow());
+    }
+
+    @Test
+    public void busyStack_withNothingInFlight_backsOffExponentially(){
+        BleTask task = stream(4,1);
+        OperationPipeline pipeline = started(task);
+        BleOperation refused = pipeline.next(task);
+        long delay = OperationPipeline.WRITE_BACKOFF_MIN;
+        for(int i=0;i<10;i++){
+            assertEquals(Math.min(delay,OperationPipeline.WRITE_BACKOFF_MAX),pipeline.onStackBusy(refused));
+            pipeline.next(task);
+            delay *= 2;
+        }
+        assertEquals(1,pipeline.getWriteWindow());
+        // the next confirmation resets the backoff
+        pipeline.onStreamed(refused,1);
+        pipeline.takeAnswer();
+        pipeline.confirmStreamed();
+        assertEquals(OperationPipeline.WRITE_BACKOFF_MIN,pipeline.onStackBusy(refused));
+    }
+
+    @Test
+    public void fragmentedValue_isWrittenAtItsLastFragment(){
+        byte[] value = new byte[2*PACKET+10];
+        BleTask task = new BleTaskBuilder(SERVICE).setWriteWindow(2).addWriteNoResponseOperation(SERVICE,DATA,value).build();
+        OperationPipeline pipeline = started(task);
+        BleOperation operation = pipeline.next(task);
+        assertEquals(PACKET,pipeline.fragmentEnd(value,PACKET));
+        pipeline.onStreamed(operation,PACKET);
+        assertEquals(PACKET,pipeline.getFragmentOffset());
+        assertSame(operation,pipeline.next(task));
+        assertEquals(2*PACKET,pipeline.fragmentEnd(value,PACKET));
+        pipeline.onStreamed(operation,2*PACKET);
+        assertFalse(pipeline.hasCredit());
+        // the first fragment is confirmed while the third is not sent yet
+        pipeline.takeAnswer();
+        assertNull(pipeline.confirmStreamed());
+        assertSame(operation,pipeline.next(task));
+        assertEquals(value.length,pipeline.fragmentEnd(value,PACKET));
+        pipeline.onStreamed(operation,value.length);
+        assertEquals(0,pipeline.getFragmentOffset());
+        assertFalse(pipeline.hasPending());
+        pipeline.takeAnswer();
+        assertNull(pipeline.confirmStreamed());
+        pipeline.takeAnswer();
+        assertSame(operation,pipeline.confirmStreamed());
+        assertNull(pipeline.next(task));
+    }
+
+    @Test
+    public void coalescedWrites_areSkipped(){
+        BleTask older = new BleTaskBuilder(SERVICE).setCoalesceWrites(true)
+                .addWriteOperation(SERVICE,STATE,new byte[]{1})
+                .addReadOperation(SERVICE,STATE)
+                .addWriteOperation(SERVICE,DATA,new byte[]{1}).build();
+        BleTask newer = new BleTaskBuilder(SERVICE).setCoalesceWrites(true)
+                .addWriteOperation(SERVICE,STATE,new byte[]{2})
+                .addWriteOperation(SERVICE,DATA,new byte[]{2}).build();
+        BleTaskQueue queue = new BleTaskQueue();
+        queue.add(new BleTaskFuture(older));
+        queue.add(new BleTaskFuture(newer));
+        OperationPipeline pipeline = started(older);
+        assertEquals(BleOperationType.READ,pipeline.next(older).getOpType());
+        assertNull(pipeline.next(older));
+        pipeline.startTask(newer);
+        assertEquals(2,pipeline.next(newer).getValue()[0]);
+        assertEquals(2,pipeline.next(newer).getValue()[0]);
+        assertNull(pipeline.next(newer));
+    }
+
+    @Test
+    public void abandon_failsEverythingIssuedOrHeld(){
+        BleTask task = stream(2,3);
+        OperationPipeline pipeline = started(task);
+        assertEquals(2,fill(pipeline,task));
+        BleOperation held = pipeline.next(task);
+        pipeline.hold(held);
+        pipeline.abandon();
+        assertFalse(pipeline.hasInFlight());
+        assertFalse(pipeline.hasPending());
+        assertFalse(held.isSucceed());
+        // confirmations of the abandoned stream belong to nobody
+        assertEquals(OperationPipeline.ANSWER_LATE,pipeline.takeAnswer());
+        assertEquals(OperationPipeline.ANSWER_LATE,pipeline.takeAnswer());
+    }
+}
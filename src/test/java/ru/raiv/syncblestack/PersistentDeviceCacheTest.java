@@ -0,0 +1,62 @@
+package ru.raiv.syncblestack;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Name truncation of {@link PersistentDeviceCache}: a stored name never ends inside a character.
+ */
+public class PersistentDeviceCacheTest {
+
+    private static final String SMILE = "\uD83D\uDE00";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static String stored(String name){
+        byte[] bytes = name.getBytes(UTF8);
+        return new String(Arrays.copyOf(bytes,PersistentDeviceCache.truncatedLength(bytes,PersistentDeviceCache.MAX_NAME)),UTF8);
+    }
+
+    private static String repeat(String s, int count){
+        StringBuilder builder = new StringBuilder();
+        for(int i=0;i<count;i++){
+            builder.append(s);
+        }
+        return builder.toString();
+    }
+
+    @Test
+    public void shortName_isKept(){
+        assertEquals("Heart rate",stored("Heart rate"));
+        assertEquals("",stored(""));
+    }
+
+    @Test
+    public void asciiName_isCutAtTheLimit(){
+        assertEquals(repeat("a",PersistentDeviceCache.MAX_NAME),stored(repeat("a",PersistentDeviceCache.MAX_NAME+5)));
+    }
+
+    @Test
+    public void twoByteCharacter_isNotSplit(){
+        // U+0436 takes two bytes, the 32nd byte starts the 17th one
+        assertEquals("a"+repeat("\u0436",15),stored("a"+repeat("\u0436",16)));
+    }
+
+    @Test
+    public void surrogatePair_isNotSplit(){
+        // U+1F600 takes four bytes, 30 bytes of ASCII leave room for none
+        String name = repeat("a",30)+SMILE;
+        assertEquals(repeat("a",30),stored(name));
+        assertEquals(repeat("a",28)+SMILE,stored(repeat("a",28)+SMILE+"b"));
+    }
+
+    @Test
+    public void threeByteCharacters_endOnABoundary(){
+        // U+20AC takes three bytes, 10 of them fill 30 bytes
+        assertEquals(repeat("\u20AC",10),stored(repeat("\u20AC",11)));
+    }
+}
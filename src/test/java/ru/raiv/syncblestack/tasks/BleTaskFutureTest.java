@@ -0,0 +1,216 @@
+package ru.raiv.syncblestack.tasks;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Completion, cancellation and chaining of {@link BleTaskFuture}.
+ */
+public class BleTaskFutureTest {
+
+    private static final UUID SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("00002a29-0000-1000-8000-00805f9b34fb");
+
+    private static BleTaskFuture future(){
+        return new BleTaskFuture(new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,CHARACTERISTIC).build());
+    }
+
+    // runs queued listeners on demand, to see on which executor they land
+    private static final class QueuedExecutor implements Executor {
+        final List<Runnable> queued = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command){
+            queued.add(command);
+        }
+
+        void runAll(){
+            while(!queued.isEmpty()){
+                queued.remove(0).run();
+            }
+        }
+    }
+
+    private static final class Counter implements BleTaskFuture.Listener {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public void onComplete(BleTaskFuture future){
+            calls.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void complete_returnsTheTask() throws Exception {
+        BleTaskFuture future = future();
+        assertFalse(future.isDone());
+        assertTrue(future.complete());
+        assertFalse(future.complete());
+        assertTrue(future.isDone());
+        assertFalse(future.isCancelled());
+        assertSame(future.getTask(),future.get());
+        assertSame(future.getTask(),future.get(1,TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancel_winsOnlyOverPendingFuture() throws Exception {
+        BleTaskFuture future = future();
+        assertTrue(future.cancel(false));
+        assertFalse(future.complete());
+        assertTrue(future.isCancelled());
+        assertTrue(future.isDone());
+        try{
+            future.get();
+            fail("a cancelled future has no result");
+        }catch(CancellationException e){
+            // expected
+        }
+        BleTaskFuture completed = future();
+        completed.complete();
+        assertFalse(completed.cancel(false));
+    }
+
+    @Test
+    public void cancel_runsTheHookOnce(){
+        final AtomicInteger hooks = new AtomicInteger();
+        Runnable hook = new Runnable() {
+            @Override
+            public void run(){
+                hooks.incrementAndGet();
+            }
+        };
+        BleTaskFuture future = future();
+        future.setCancelHook(hook);
+        future.cancel(false);
+        future.cancel(false);
+        assertEquals(1,hooks.get());
+
+        // installed too late: runs at once
+        BleTaskFuture cancelled = future();
+        cancelled.cancel(false);
+        cancelled.setCancelHook(hook);
+        assertEquals(2,hooks.get());
+
+        BleTaskFuture completed = future();
+        completed.setCancelHook(hook);
+        completed.complete();
+        assertEquals(2,hooks.get());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void get_timesOut() throws Exception {
+        future().get(10,TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void get_wakesOnCompletion() throws Exception {
+        final BleTaskFuture future = future();
+        final CountDownLatch waiting = new CountDownLatch(1);
+        new Thread(new Runnable() {
+            @Override
+            public void run(){
+                waiting.countDown();
+                future.complete();
+            }
+        }).start();
+        waiting.await();
+        assertSame(future.getTask(),future.get(2,TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void listeners_runOnTheirExecutor(){
+        BleTaskFuture future = future();
+        QueuedExecutor executor = new QueuedExecutor();
+        Counter counter = new Counter();
+        future.addListener(executor,counter);
+        assertTrue(executor.queued.isEmpty());
+        future.complete();
+        assertEquals(0,counter.calls.get());
+        executor.runAll();
+        assertEquals(1,counter.calls.get());
+
+        // added after completion: scheduled at once
+        future.addListener(executor,counter);
+        executor.runAll();
+        assertEquals(2,counter.calls.get());
+    }
+
+    @Test
+    public void listeners_runOnCancel(){
+        BleTaskFuture future = future();
+        Counter counter = new Counter();
+        future.addListener(BleTaskFuture.DIRECT,counter);
+        future.cancel(false);
+        assertEquals(1,counter.calls.get());
+    }
+
+    @Test
+    public void then_followsTheProducedFuture() throws Exception {
+        BleTaskFuture first = future();
+        final BleTaskFuture second = future();
+        BleTaskFuture chained = first.then(BleTaskFuture.DIRECT,new BleTaskFuture.Continuation() {
+            @Override
+            public BleTaskFuture then(BleTask completed){
+                return second;
+            }
+        });
+        first.complete();
+        assertFalse(chained.isDone());
+        second.complete();
+        assertTrue(chained.isDone());
+        assertSame(second.getTask(),chained.get());
+    }
+
+    @Test
+    public void then_endsWithNull() throws Exception {
+        BleTaskFuture first = future();
+        BleTaskFuture chained = first.then(BleTaskFuture.DIRECT,new BleTaskFuture.Continuation() {
+            @Override
+            public BleTaskFuture then(BleTask completed){
+                return null;
+            }
+        });
+        first.complete();
+        assertSame(first.getTask(),chained.get());
+    }
+
+    @Test
+    public void then_propagatesCancellation(){
+        final AtomicInteger steps = new AtomicInteger();
+        BleTaskFuture first = future();
+        BleTaskFuture chained = first.then(BleTaskFuture.DIRECT,new BleTaskFuture.Continuation() {
+            @Override
+            public BleTaskFuture then(BleTask completed){
+                steps.incrementAndGet();
+                return null;
+            }
+        });
+        first.cancel(false);
+        assertTrue(chained.isCancelled());
+        assertEquals(0,steps.get());
+
+        // a cancelled step cancels the rest of the chain
+        BleTaskFuture start = future();
+        final BleTaskFuture step = future();
+        BleTaskFuture tail = start.then(BleTaskFuture.DIRECT,new BleTaskFuture.Continuation() {
+            @Override
+            public BleTaskFuture then(BleTask completed){
+                return step;
+            }
+        });
+        start.complete();
+        step.cancel(false);
+        assertTrue(tail.isCancelled());
+    }
+}
@@ -0,0 +1,175 @@
+package ru.raiv.syncblestack.tasks;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+/**
+ * Lane order of {@link BleTaskQueue} under both policies.
+ */
+public class BleTaskQueueTest {
+
+    private static final UUID SERVICE = UUID.fromString("0000180a-0000-1000-8000-00805f9b34fb");
+    private static final UUID CHARACTERISTIC = UUID.fromString("00002a29-0000-1000-8000-00805f9b34fb");
+
+    private static BleTaskFuture task(BleTaskPriority priority){
+        return new BleTaskFuture(new BleTaskBuilder(SERVICE).addReadOperation(SERVICE,CHARACTERISTIC).setPriority(priority).build());
+    }
+
+    private static BleTaskFuture write(byte value){
+        return new BleTaskFuture(new BleTaskBuilder(SERVICE).addWriteOperation(SERVICE,CHARACTERISTIC,new byte[]{value})
+                .setCoalesceWrites(true).build());
+    }
+
+    private static BleTaskQueue queue(BleTaskQueue.Policy policy, int[] weights, int starvationLimit){
+        BleTaskQueue queue = new BleTaskQueue();
+        queue.configure(policy,weights,starvationLimit);
+        return queue;
+    }
+
+    @Test
+    public void strict_servesHigherLanesFirst(){
+        BleTaskQueue queue = queue(BleTaskQueue.Policy.STRICT,BleTaskQueue.DEFAULT_WEIGHTS,0);
+        BleTaskFuture bulk = task(BleTaskPriority.BULK);
+        BleTaskFuture normal = task(BleTaskPriority.NORMAL);
+        BleTaskFuture interactive = task(BleTaskPriority.INTERACTIVE);
+        queue.add(bulk);
+        queue.add(normal);
+        queue.add(interactive);
+        assertEquals(3,queue.size());
+        assertSame(interactive,queue.poll());
+        assertSame(normal,queue.poll());
+        assertSame(bulk,queue.poll());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void lane_isFifo(){
+        BleTaskQueue queue = new BleTaskQueue();
+        BleTaskFuture first = task(BleTaskPriority.NORMAL);
+        BleTaskFuture second = task(BleTaskPriority.NORMAL);
+        queue.add(first);
+        queue.add(second);
+        assertSame(first,queue.poll());
+        assertSame(second,queue.poll());
+    }
+
+    @Test
+    public void strict_servesStarvedLaneAtTheLimit(){
+        BleTaskQueue queue = queue(BleTaskQueue.Policy.STRICT,BleTaskQueue.DEFAULT_WEIGHTS,3);
+        for(int i=0;i<10;i++){
+            queue.add(task(BleTaskPriority.INTERACTIVE));
+        }
+        BleTaskFuture bulk = task(BleTaskPriority.BULK);
+        queue.add(bulk);
+        for(int i=0;i<3;i++){
+            assertEquals(BleTaskPriority.INTERACTIVE,queue.poll().getTask().getPriority());
+        }
+        assertSame(bulk,queue.poll());
+        assertEquals(BleTaskPriority.INTERACTIVE,queue.poll().getTask().getPriority());
+    }
+
+    @Test
+    public void strict_withoutLimit_starvesLowerLanes(){
+        BleTaskQueue queue = queue(BleTaskQueue.Policy.STRICT,BleTaskQueue.DEFAULT_WEIGHTS,0);
+        for(int i=0;i<20;i++){
+            queue.add(task(BleTaskPriority.INTERACTIVE));
+        }
+        queue.add(task(BleTaskPriority.BULK));
+        for(int i=0;i<20;i++){
+            assertEquals(BleTaskPriority.INTERACTIVE,queue.poll().getTask().getPriority());
+        }
+        assertEquals(BleTaskPriority.BULK,queue.poll().getTask().getPriority());
+    }
+
+    @Test
+    public void weighted_servesLanesInProportion(){
+        BleTaskQueue queue = queue(BleTaskQueue.Policy.WEIGHTED,new int[]{3,2,1},0);
+        for(int i=0;i<30;i++){
+            queue.add(task(BleTaskPriority.INTERACTIVE));
+            queue.add(task(BleTaskPriority.NORMAL));
+            queue.add(task(BleTaskPriority.BULK));
+        }
+        // every full round of 6 dispatches matches the weights exactly
+        for(int round=0;round<5;round++){
+            int[] served = new int[3];
+            for(int i=0;i<6;i++){
+                served[queue.poll().getTask().getPriority().ordinal()]++;
+            }
+            assertEquals(3,served[0]);
+            assertEquals(2,served[1]);
+            assertEquals(1,served[2]);
+        }
+    }
+
+    @Test
+    public void weighted_interleavesInsteadOfBursting(){
+        BleTaskQueue queue = queue(BleTaskQueue.Policy.WEIGHTED,new int[]{1,1,1},0);
+        for(int i=0;i<4;i++){
+            queue.add(task(BleTaskPriority.INTERACTIVE));
+            queue.add(task(BleTaskPriority.BULK));
+        }
+        BleTaskPriority last = null;
+        for(int i=0;i<8;i++){
+            BleTaskPriority priority = queue.poll().getTask().getPriority();
+            assertTrue(priority!=last);
+            last = priority;
+        }
+    }
+
+    @Test
+    public void weighted_skipsEmptyLanes(){
+        BleTaskQueue queue = queue(BleTaskQueue.Policy.WEIGHTED,new int[]{3,2,1},0);
+        for(int i=0;i<6;i++){
+            queue.add(task(BleTaskPriority.NORMAL));
+            queue.add(task(BleTaskPriority.BULK));
+        }
+        int normal = 0;
+        for(int i=0;i<6;i++){
+            if(queue.poll().getTask().getPriority()==BleTaskPriority.NORMAL){
+                normal++;
+            }
+        }
+        assertEquals(4,normal);
+    }
+
+    @Test
+    public void remove_dropsWaitingTask(){
+        BleTaskQueue queue = new BleTaskQueue();
+        BleTaskFuture first = task(BleTaskPriority.NORMAL);
+        BleTaskFuture second = task(BleTaskPriority.NORMAL);
+        queue.add(first);
+        queue.add(second);
+        assertTrue(queue.remove(first));
+        assertFalse(queue.remove(first));
+        assertEquals(1,queue.size());
+        assertSame(second,queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void coalescingWrite_supersedesWaitingWrite(){
+        BleTaskQueue queue = new BleTaskQueue();
+        BleTaskFuture older = write((byte) 1);
+        BleTaskFuture newer = write((byte) 2);
+        queue.add(older);
+        queue.add(newer);
+        BleOperation superseded = older.getTask().getOperations().get(0);
+        assertTrue(superseded.isCoalesced());
+        assertTrue(superseded.isSucceed());
+        assertFalse(newer.getTask().getOperations().get(0).isCoalesced());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configure_rejectsMissingWeights(){
+        new BleTaskQueue().configure(BleTaskQueue.Policy.WEIGHTED,new int[]{1,1},0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void configure_rejectsZeroWeight(){
+        new BleTaskQueue().configure(BleTaskQueue.Policy.WEIGHTED,new int[]{1,0,1},0);
+    }
+}
@@ -0,0 +1,48 @@
+package ru.raiv.syncblestack.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * MAC address packing of {@link ConvertUtils}.
+ */
+public class ConvertUtilsTest {
+
+    @Test
+    public void macToLong_packsBigEndian(){
+        assertEquals(0x001122334455L,ConvertUtils.macToLong("00:11:22:33:44:55"));
+        assertEquals(0xFFFFFFFFFFFFL,ConvertUtils.macToLong("FF:FF:FF:FF:FF:FF"));
+        assertEquals(0L,ConvertUtils.macToLong("00:00:00:00:00:00"));
+    }
+
+    @Test
+    public void macToLong_ignoresCase(){
+        assertEquals(ConvertUtils.macToLong("AA:BB:CC:DD:EE:FF"),ConvertUtils.macToLong("aa:bb:cc:dd:ee:ff"));
+    }
+
+    @Test
+    public void macToLong_rejectsMalformedAddresses(){
+        assertEquals(-1,ConvertUtils.macToLong(null));
+        assertEquals(-1,ConvertUtils.macToLong(""));
+        assertEquals(-1,ConvertUtils.macToLong("00:11:22:33:44"));
+        assertEquals(-1,ConvertUtils.macToLong("00:11:22:33:44:555"));
+        assertEquals(-1,ConvertUtils.macToLong("00-11-22-33-44-55"));
+        assertEquals(-1,ConvertUtils.macToLong("00:11:22:33:44:5G"));
+    }
+
+    @Test
+    public void longToMac_roundTrips(){
+        String[] addresses = {"00:11:22:33:44:55","FF:FF:FF:FF:FF:FF","00:00:00:00:00:00","A0:B1:C2:D3:E4:F5"};
+        for(String address:addresses){
+            assertEquals(address,ConvertUtils.longToMac(ConvertUtils.macToLong(address)));
+        }
+        assertEquals("AA:BB:CC:DD:EE:FF",ConvertUtils.longToMac(ConvertUtils.macToLong("aa:bb:cc:dd:ee:ff")));
+    }
+
+    @Test
+    public void distinctAddresses_getDistinctKeys(){
+        assertTrue(ConvertUtils.macToLong("00:11:22:33:44:55")!=ConvertUtils.macToLong("00:11:22:33:44:56"));
+        assertTrue(ConvertUtils.macToLong("10:11:22:33:44:55")!=ConvertUtils.macToLong("00:11:22:33:44:55"));
+    }
+}
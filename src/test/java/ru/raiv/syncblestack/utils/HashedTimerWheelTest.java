@@ -0,0 +1,140 @@
+package ru.raiv.syncblestack.utils;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs {@link HashedTimerWheel} in real time, so deadlines are only checked from below.
+ */
+public class HashedTimerWheelTest {
+
+    private static Runnable countDown(final CountDownLatch latch){
+        return new Runnable() {
+            @Override
+            public void run(){
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void timeout_neverFiresEarly() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel("test",10,64);
+        try{
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            wheel.schedule(countDown(fired),50);
+            assertTrue(fired.await(2,TimeUnit.SECONDS));
+            assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(50));
+        }finally{
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void timeouts_fireInDeadlineOrder() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel("test",10,64);
+        try{
+            final List<Integer> order = new CopyOnWriteArrayList<>();
+            final CountDownLatch fired = new CountDownLatch(3);
+            int[] delays = {90,30,60};
+            for(final int delay:delays){
+                wheel.schedule(new Runnable() {
+                    @Override
+                    public void run(){
+                        order.add(delay);
+                        fired.countDown();
+                    }
+                },delay);
+            }
+            assertTrue(fired.await(2,TimeUnit.SECONDS));
+            assertEquals(30,(int) order.get(0));
+            assertEquals(60,(int) order.get(1));
+            assertEquals(90,(int) order.get(2));
+        }finally{
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void cancelledTimeout_doesNotFire() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel("test",10,64);
+        try{
+            final AtomicBoolean cancelledFired = new AtomicBoolean(false);
+            HashedTimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+                @Override
+                public void run(){
+                    cancelledFired.set(true);
+                }
+            },30);
+            timeout.cancel();
+            assertTrue(timeout.isCancelled());
+            CountDownLatch later = new CountDownLatch(1);
+            wheel.schedule(countDown(later),100);
+            assertTrue(later.await(2,TimeUnit.SECONDS));
+            assertFalse(cancelledFired.get());
+        }finally{
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void delayBeyondOneRotation_waitsForItsRound() throws Exception {
+        // 8 buckets of 10ms, the timeout passes its bucket twice before it is due
+        HashedTimerWheel wheel = new HashedTimerWheel("test",10,8);
+        try{
+            CountDownLatch fired = new CountDownLatch(1);
+            long start = System.nanoTime();
+            wheel.schedule(countDown(fired),250);
+            assertTrue(fired.await(2,TimeUnit.SECONDS));
+            assertTrue(System.nanoTime()-start>=TimeUnit.MILLISECONDS.toNanos(250));
+        }finally{
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void parkedWorker_wakesOnSchedule() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel("test",10,64);
+        try{
+            CountDownLatch first = new CountDownLatch(1);
+            wheel.schedule(countDown(first),10);
+            assertTrue(first.await(2,TimeUnit.SECONDS));
+            // the wheel is empty now and the worker parks
+            Thread.sleep(200);
+            CountDownLatch second = new CountDownLatch(1);
+            long start = System.nanoTime();
+            wheel.schedule(countDown(second),40);
+            assertTrue(second.await(2,TimeUnit.SECONDS));
+            long elapsed = System.nanoTime()-start;
+            assertTrue(elapsed>=TimeUnit.MILLISECONDS.toNanos(40));
+            // ticks slept through are skipped, not replayed late
+            assertTrue(elapsed<TimeUnit.MILLISECONDS.toNanos(1000));
+        }finally{
+            wheel.stop();
+        }
+    }
+
+    @Test
+    public void stoppedWheel_runsNothing() throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel("test",10,64);
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(countDown(fired),50);
+        wheel.stop();
+        assertFalse(fired.await(200,TimeUnit.MILLISECONDS));
+        wheel.schedule(countDown(fired),10);
+        assertFalse(fired.await(200,TimeUnit.MILLISECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroTick_isRejected(){
+        new HashedTimerWheel("test",0,64);
+    }
+}